@@ -0,0 +1,131 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local load test for MapService. Starts the service in-process on a free port (or targets a running
+ * one with --port), then keeps the given number of clients busy for the given time with a mix of filter,
+ * remove-overlaps and overlap-report requests over the bundled maps. Prints throughput, client-side
+ * latency percentiles and the server's own /stats.
+ *
+ * Usage: MapServiceLoadTest [--maps dir] [--clients n] [--seconds n] [--pool maps] [--per-map n] [--port n]
+ */
+public class MapServiceLoadTest {
+    private static final List<String> MAPS = List.of("center_map.omap", "center_map_with_overlays.omap", "dedina_map.omap");
+    private static final List<String> SYMBOLS = List.of("Building", "Grave", "Small Tower", "Railway");
+
+    public static void main(String[] args) throws Exception {
+        File mapsDir = new File("RP/src/maps");
+        int clients = 16;
+        int seconds = 20;
+        int maxMaps = 8;
+        int concurrencyPerMap = 4;
+        int port = -1;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--maps": mapsDir = new File(args[i + 1]); break;
+                case "--clients": clients = Integer.parseInt(args[i + 1]); break;
+                case "--seconds": seconds = Integer.parseInt(args[i + 1]); break;
+                case "--pool": maxMaps = Integer.parseInt(args[i + 1]); break;
+                case "--per-map": concurrencyPerMap = Integer.parseInt(args[i + 1]); break;
+                case "--port": port = Integer.parseInt(args[i + 1]); break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+
+        MapService service = null;
+        if (port < 0) {
+            MapPool pool = new MapPool(mapsDir, maxMaps, concurrencyPerMap, null);
+            service = new MapService(new InetSocketAddress("localhost", 0), pool);
+            service.start();
+            port = service.getPort();
+        }
+
+        try {
+            run(new MapServiceClient("localhost", port), clients, seconds);
+        } finally {
+            if (service != null) service.stop();
+        }
+    }
+
+    private static void run(MapServiceClient client, int clients, int seconds) throws Exception {
+        // Warm-up: load every map into the pool and identify its overlaps once
+        for (String map : MAPS) {
+            client.removeOverlaps(map, SYMBOLS, OutputStream.nullOutputStream());
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        AtomicLong bytes = new AtomicLong();
+        AtomicLong failures = new AtomicLong();
+        List<long[]> latencies = Collections.synchronizedList(new ArrayList<>());
+
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        List<Future<?>> workers = new ArrayList<>();
+        long start = System.nanoTime();
+
+        for (int c = 0; c < clients; c++) {
+            int seed = c;
+            workers.add(executor.submit(() -> {
+                Random random = new Random(seed);
+                long[] samples = new long[1024];
+                int count = 0;
+
+                while (System.nanoTime() < deadline) {
+                    String map = MAPS.get(random.nextInt(MAPS.size()));
+                    List<String> symbols = SYMBOLS.subList(0, 1 + random.nextInt(SYMBOLS.size()));
+                    long requestStart = System.nanoTime();
+
+                    try {
+                        int kind = random.nextInt(10);
+                        if (kind < 6) {
+                            bytes.addAndGet(client.filter(map, symbols, OutputStream.nullOutputStream()).bytes);
+                        } else if (kind < 9) {
+                            bytes.addAndGet(client.removeOverlaps(map, symbols, OutputStream.nullOutputStream()).bytes);
+                        } else {
+                            bytes.addAndGet(client.overlaps(map).length());
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+
+                    if (count == samples.length) samples = Arrays.copyOf(samples, count * 2);
+                    samples[count++] = System.nanoTime() - requestStart;
+                }
+
+                latencies.add(Arrays.copyOf(samples, count));
+                return null;
+            }));
+        }
+
+        for (Future<?> worker : workers) worker.get();
+        executor.shutdown();
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+
+        int total = 0;
+        for (long[] samples : latencies) total += samples.length;
+        long[] all = new long[total];
+        int next = 0;
+        for (long[] samples : latencies) {
+            System.arraycopy(samples, 0, all, next, samples.length);
+            next += samples.length;
+        }
+        Arrays.sort(all);
+
+        System.out.printf(Locale.ROOT, "%d clients, %d requests in %.1f s: %.1f requests/s, %.1f MB/s, %d failed%n",
+                clients, total, elapsedSeconds, total / elapsedSeconds, bytes.get() / elapsedSeconds / 1e6, failures.get());
+        System.out.printf(Locale.ROOT, "client latency ms: p50 %.1f  p90 %.1f  p99 %.1f  max %.1f%n",
+                percentile(all, 0.50), percentile(all, 0.90), percentile(all, 0.99), percentile(all, 1.0));
+        System.out.print(client.stats());
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) return 0;
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+}
@@ -0,0 +1,118 @@
+import bench.Stages;
+import javax.xml.parsers.*;
+import org.w3c.dom.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * The stages bench.PipelineBenchmarks measures, see bench.Stages for why they are built here.
+ */
+public class PipelineStages implements Stages {
+    private static final List<String> FILTERED_SYMBOLS = List.of("Building", "Grave", "Small Tower", "Railway");
+
+    private interface Prepare<T> {
+        T prepare() throws Exception;
+    }
+
+    private interface Run<T> {
+        Object run(T prepared) throws Exception;
+    }
+
+    @Override
+    public void generateMap(File mapsDir, int objects, File output) throws IOException {
+        // Keep the density of the bundled maps: the extent grows with the square root of the object count
+        new MapGenerator(new File(mapsDir, "center_map.omap"))
+                .objects(objects)
+                .seed(42)
+                .extent((int) (100_000 * Math.sqrt(objects / 100.0)))
+                .write(output);
+    }
+
+    @Override
+    public Stage create(String name, File map, File output) throws Exception {
+        switch (name) {
+            case "parse":
+                return stage(() -> map, PipelineStages::parse);
+
+            case "extractGeometry": {
+                Document document = parse(map);
+                return stage(() -> document, parsed -> new GeometryCache(MapObjects.of(parsed)));
+            }
+
+            case "identifyOverlays": {
+                Document document = parse(map);
+                return stage(() -> new OverlayHandler(document), handler -> {
+                    handler.identifyOverlays();
+                    return handler;
+                });
+            }
+
+            case "filterObjects":
+                return stage(() -> new FilterObjects(map, output, new ArrayList<>(FILTERED_SYMBOLS), false, false), filter -> {
+                    filter.filterObjects();
+                    return filter;
+                });
+
+            case "filterObjectsWithOverlays":
+                return stage(() -> new FilterObjects(map, output, new ArrayList<>(FILTERED_SYMBOLS), true, true), filter -> {
+                    filter.filterObjects();
+                    return filter;
+                });
+
+            case "streamingFilter": {
+                StreamingFilter filter = new StreamingFilter(map, output.getParentFile(), new ArrayList<>(FILTERED_SYMBOLS));
+                return stage(() -> filter, prepared -> {
+                    prepared.filterTo(output);
+                    return prepared.objsDeleted;
+                });
+            }
+
+            case "mappedFilter":
+                return stage(() -> map, input -> {
+                    try (MappedMap mapped = new MappedMap(input)) {
+                        BitSet ids = new BitSet();
+                        for (String symbol : FILTERED_SYMBOLS) {
+                            Integer id = mapped.symbolId(symbol);
+                            if (id != null && id >= 0) ids.set(id);
+                        }
+                        return mapped.filterBySymbol(ids, output);
+                    }
+                });
+
+            case "saveDoc": {
+                FilterObjects filter = new FilterObjects(map, output, new ArrayList<>(FILTERED_SYMBOLS), false, false);
+                filter.filterObjects();
+                return stage(() -> filter, prepared -> {
+                    prepared.saveDoc(prepared.getResultMap(), output.getName());
+                    return output.length();
+                });
+            }
+
+            default:
+                throw new IllegalArgumentException("No stage named " + name);
+        }
+    }
+
+    private static <T> Stage stage(Prepare<T> prepare, Run<T> run) {
+        return new Stage() {
+            private T prepared;
+
+            @Override
+            public void prepare() throws Exception {
+                prepared = prepare.prepare();
+            }
+
+            @Override
+            public Object run() throws Exception {
+                return run.run(prepared);
+            }
+        };
+    }
+
+    private static Document parse(File map) throws Exception {
+        DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        Document document = builder.parse(map);
+        document.getDocumentElement().normalize();
+        return document;
+    }
+}
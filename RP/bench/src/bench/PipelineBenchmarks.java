@@ -0,0 +1,102 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the parse, filter, overlap and save stages on synthetic maps of the given object count
+ * that MapGenerator builds from the symbol set of center_map.omap.
+ *
+ * The map is generated and shared state such as a parsed input is built once per trial; state a run
+ * consumes, such as the document FilterObjects modifies, is rebuilt before every invocation outside the
+ * measured section. Each benchmark returns its result to JMH so the work cannot be eliminated.
+ *
+ * Build with mvn package and run from the repository root, writing JSON with -rf json:
+ *     java -jar RP/bench/target/benchmarks.jar -rf json -rff results.json [-p objects=1000] [regex]
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmarks {
+    @Param({"1000", "10000", "100000"})
+    public int objects;
+
+    // Directory holding center_map.omap, relative to the working directory
+    @Param("RP/src/maps")
+    public String mapsDir;
+
+    private File scratch;
+    private Stages.Stage stage;
+
+    @Setup(Level.Trial)
+    public void createStage(BenchmarkParams params) throws Exception {
+        Stages stages = (Stages) Class.forName("PipelineStages").getDeclaredConstructor().newInstance();
+
+        scratch = Files.createTempDirectory("omap-bench").toFile();
+        File map = new File(scratch, "synthetic_" + objects + ".omap");
+        stages.generateMap(new File(mapsDir), objects, map);
+
+        String benchmark = params.getBenchmark();
+        stage = stages.create(benchmark.substring(benchmark.lastIndexOf('.') + 1), map, new File(scratch, "benchmark_output.omap"));
+    }
+
+    @Setup(Level.Invocation)
+    public void prepare() throws Exception {
+        stage.prepare();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteScratch() {
+        File[] files = scratch.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        scratch.delete();
+    }
+
+    @Benchmark
+    public Object parse() throws Exception {
+        return stage.run();
+    }
+
+    @Benchmark
+    public Object extractGeometry() throws Exception {
+        return stage.run();
+    }
+
+    @Benchmark
+    public Object identifyOverlays() throws Exception {
+        return stage.run();
+    }
+
+    @Benchmark
+    public Object filterObjects() throws Exception {
+        return stage.run();
+    }
+
+    @Benchmark
+    public Object filterObjectsWithOverlays() throws Exception {
+        return stage.run();
+    }
+
+    @Benchmark
+    public Object streamingFilter() throws Exception {
+        return stage.run();
+    }
+
+    @Benchmark
+    public Object mappedFilter() throws Exception {
+        return stage.run();
+    }
+
+    @Benchmark
+    public Object saveDoc() throws Exception {
+        return stage.run();
+    }
+}
@@ -0,0 +1,34 @@
+package bench;
+
+import java.io.File;
+
+/**
+ * The pipeline stages as PipelineBenchmarks sees them. JMH only accepts benchmark classes in a named
+ * package and a named package cannot refer to the application classes, which are in the default package,
+ * so the stages are built by the default-package PipelineStages and reached through this interface.
+ */
+public interface Stages {
+    interface Stage {
+        /**
+         * Work the stage needs before every run, such as parsing a map the run modifies. Not measured.
+         */
+        void prepare() throws Exception;
+
+        /**
+         * The measured work. The result is handed back to JMH so the work cannot be eliminated.
+         */
+        Object run() throws Exception;
+    }
+
+    /**
+     * Writes a synthetic map with the given number of objects, built from the symbol set of
+     * center_map.omap in mapsDir, to output.
+     */
+    void generateMap(File mapsDir, int objects, File output) throws Exception;
+
+    /**
+     * The stage with the given benchmark name, reading map and writing its result to output. Work that
+     * can be shared between runs is done here.
+     */
+    Stage create(String name, File map, File output) throws Exception;
+}
@@ -0,0 +1,299 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Non-interactive mode: runs every job of a manifest file in one JVM on a bounded thread pool.
+ *
+ * Each manifest line is one job, fields separated by '|':
+ *     input map | symbol names separated by ';' | overlay mode (none, raw, mark or remove) | output file
+ * The symbol field may instead be '@' and the path of a rule file, see FilterRules. Mode raw copies the
+ * kept objects byte for byte from the memory-mapped input instead of re-serialising the map; like the
+ * other modes it filters every part and rewrites each part's objects count. Input and output may be
+ * binary maps (.omapb) in every mode but raw. Blank lines and lines starting with '#' are ignored.
+ *
+ * Jobs on the same input that write .omap files in modes none, mark or remove run together through
+ * MultiFilter, which parses the map and finds its overlaps once for all of them; each of those jobs
+ * reports the time of the shared run.
+ */
+public class BatchRunner {
+    public static class Job {
+        public final int number;
+        public final File input;
+        public final ArrayList<String> symbols;
+        // Rule file used instead of symbol names, or null
+        public final File rules;
+        public final String overlayMode;
+        public final File output;
+
+        public Job(int number, File input, ArrayList<String> symbols, String overlayMode, File output) {
+            this(number, input, symbols, null, overlayMode, output);
+        }
+
+        public Job(int number, File input, ArrayList<String> symbols, File rules, String overlayMode, File output) {
+            this.number = number;
+            this.input = input;
+            this.symbols = symbols;
+            this.rules = rules;
+            this.overlayMode = overlayMode;
+            this.output = output;
+        }
+    }
+
+    private static class Result {
+        final Job job;
+        final long millis;
+        final int objsDeleted;
+        final int overlaysHandled;
+        final String error;
+
+        Result(Job job, long millis, int objsDeleted, int overlaysHandled, String error) {
+            this.job = job;
+            this.millis = millis;
+            this.objsDeleted = objsDeleted;
+            this.overlaysHandled = overlaysHandled;
+            this.error = error;
+        }
+    }
+
+    private final List<Job> jobs;
+    private final int threads;
+    private final int parallelism;
+
+    public BatchRunner(List<Job> jobs, int threads) {
+        this(jobs, threads, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads     number of jobs run at once
+     * @param parallelism number of threads each job uses to find overlaps
+     */
+    public BatchRunner(List<Job> jobs, int threads, int parallelism) {
+        this.jobs = jobs;
+        this.threads = Math.max(1, threads);
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public static List<Job> readManifest(File manifest) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        File baseDir = manifest.getAbsoluteFile().getParentFile();
+        int lineNumber = 0;
+
+        for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            String[] fields = line.split("\\|", -1);
+            if (fields.length != 4) {
+                throw new IOException("Manifest line " + lineNumber + ": expected 4 fields separated by '|', got " + fields.length);
+            }
+
+            ArrayList<String> symbols = new ArrayList<>();
+            File rules = null;
+            if (fields[1].trim().startsWith("@")) {
+                rules = resolve(baseDir, fields[1].trim().substring(1).trim());
+            } else {
+                for (String name : fields[1].split(";")) {
+                    if (!name.trim().isEmpty()) symbols.add(name.trim());
+                }
+            }
+
+            String mode = fields[2].trim().toLowerCase();
+            if (!mode.equals("none") && !mode.equals("raw") && !mode.equals("mark") && !mode.equals("remove")) {
+                throw new IOException("Manifest line " + lineNumber + ": unknown overlay mode '" + fields[2].trim() + "'");
+            }
+
+            jobs.add(new Job(jobs.size() + 1, resolve(baseDir, fields[0].trim()), symbols, rules, mode,
+                    resolve(baseDir, fields[3].trim())));
+        }
+
+        return jobs;
+    }
+
+    private static File resolve(File baseDir, String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(baseDir, path);
+    }
+
+    public void run() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<List<Result>>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+
+        try {
+            for (List<Job> group : groupByInput(jobs)) {
+                if (group.size() == 1) {
+                    futures.add(executor.submit(() -> List.of(runJob(group.get(0)))));
+                } else {
+                    futures.add(executor.submit(() -> runGroup(group)));
+                }
+            }
+
+            List<Result> results = new ArrayList<>();
+            for (Future<List<Result>> future : futures) {
+                try {
+                    results.addAll(future.get());
+                } catch (ExecutionException e) {
+                    // runJob and runGroup catch everything themselves
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            results.sort(Comparator.comparingInt(result -> result.job.number));
+
+            printSummary(results, (System.nanoTime() - start) / 1_000_000);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Jobs that can share a MultiFilter run, grouped by input in manifest order and at most
+     * MultiFilter.MAX_PROFILES to a group; every other job is a group of its own.
+     */
+    private static List<List<Job>> groupByInput(List<Job> jobs) {
+        List<List<Job>> groups = new ArrayList<>();
+        Map<File, List<Job>> shared = new HashMap<>();
+
+        for (Job job : jobs) {
+            if (job.overlayMode.equals("raw") || BinaryMap.isBinaryMap(job.output)) {
+                groups.add(List.of(job));
+                continue;
+            }
+
+            List<Job> group = shared.get(job.input.getAbsoluteFile());
+            if (group == null || group.size() == MultiFilter.MAX_PROFILES) {
+                group = new ArrayList<>();
+                shared.put(job.input.getAbsoluteFile(), group);
+                groups.add(group);
+            }
+            group.add(job);
+        }
+
+        return groups;
+    }
+
+    private List<Result> runGroup(List<Job> group) {
+        long start = System.nanoTime();
+        List<Result> results = new ArrayList<>();
+        List<Job> sharedJobs = new ArrayList<>();
+        List<MultiFilter.Profile> profiles = new ArrayList<>();
+
+        // A rule file that cannot be read only fails its own job
+        for (Job job : group) {
+            try {
+                FilterRules rules = job.rules == null ? null : FilterRules.load(job.rules);
+                profiles.add(new MultiFilter.Profile(job.symbols, rules, job.overlayMode.equals("remove"), job.output));
+                sharedJobs.add(job);
+            } catch (Exception e) {
+                results.add(new Result(job, elapsedMillis(start), 0, 0, e.getClass().getSimpleName() + ": " + e.getMessage()));
+            }
+        }
+        if (profiles.isEmpty()) return results;
+
+        try {
+            MultiFilter filter = new MultiFilter(group.get(0).input, profiles);
+            filter.setParallelism(parallelism);
+            filter.filterObjects();
+
+            long millis = elapsedMillis(start);
+            for (int i = 0; i < sharedJobs.size(); i++) {
+                MultiFilter.Profile profile = profiles.get(i);
+                results.add(new Result(sharedJobs.get(i), millis, profile.objsDeleted, profile.overlaysHandled, null));
+            }
+        } catch (Exception e) {
+            for (Job job : sharedJobs) {
+                results.add(new Result(job, elapsedMillis(start), 0, 0, e.getClass().getSimpleName() + ": " + e.getMessage()));
+            }
+        }
+
+        return results;
+    }
+
+    private Result runJob(Job job) {
+        long start = System.nanoTime();
+
+        try {
+            // Binary maps and rule files go through the DOM; the streaming and raw paths only read and
+            // write XML and filter by symbol name
+            boolean binary = BinaryMap.isBinaryMap(job.input) || BinaryMap.isBinaryMap(job.output);
+            FilterRules rules = job.rules == null ? null : FilterRules.load(job.rules);
+
+            if (job.overlayMode.equals("none") && (binary || rules != null)) {
+                FilterObjects filter = new FilterObjects(job.input, job.output, job.symbols, false, false);
+                filter.setRules(rules);
+                filter.filterObjects();
+                return new Result(job, elapsedMillis(start), filter.objsDeleted, 0, null);
+            }
+
+            if (job.overlayMode.equals("none")) {
+                StreamingFilter filter = new StreamingFilter(job.input, job.output.getAbsoluteFile().getParentFile(), job.symbols);
+                filter.filterTo(job.output);
+                return new Result(job, elapsedMillis(start), filter.objsDeleted, 0, null);
+            }
+
+            if (job.overlayMode.equals("raw")) {
+                if (binary) throw new IOException("Mode raw copies XML bytes and cannot read or write binary maps");
+                if (rules != null) throw new IOException("Mode raw filters by symbol name and cannot apply a rule file");
+                try (MappedMap map = new MappedMap(job.input)) {
+                    int deleted = map.filterBySymbol(symbolIds(map, job.symbols), job.output);
+                    return new Result(job, elapsedMillis(start), deleted, 0, null);
+                }
+            }
+
+            FilterObjects filter = new FilterObjects(job.input, job.output, job.symbols, true, job.overlayMode.equals("remove"));
+            filter.setRules(rules);
+            filter.setParallelism(parallelism);
+            filter.filterObjects();
+            return new Result(job, elapsedMillis(start), filter.objsDeleted, filter.overlaysHandled, null);
+        } catch (Exception e) {
+            return new Result(job, elapsedMillis(start), 0, 0, e.getClass().getSimpleName() + ": " + e.getMessage());
+        }
+    }
+
+    private static BitSet symbolIds(MappedMap map, List<String> names) {
+        BitSet ids = new BitSet();
+        for (String name : names) {
+            Integer id = map.symbolId(name);
+            if (id == null) {
+                System.out.println("There is no symbol with name: " + name);
+                continue;
+            }
+            if (id >= 0) ids.set(id);
+        }
+        return ids;
+    }
+
+    private static long elapsedMillis(long start) {
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    private static void printSummary(List<Result> results, long totalMillis) {
+        System.out.println();
+        System.out.printf("%-4s %-32s %-7s %8s %9s %9s  %s%n", "Job", "Input", "Mode", "Deleted", "Overlaps", "Time ms", "Status");
+
+        int failed = 0;
+        for (Result result : results) {
+            String status = result.error == null ? "ok -> " + result.job.output.getPath() : "FAILED " + result.error;
+            if (result.error != null) failed++;
+
+            System.out.printf("%-4d %-32s %-7s %8d %9d %9d  %s%n", result.job.number, result.job.input.getName(),
+                    result.job.overlayMode, result.objsDeleted, result.overlaysHandled, result.millis, status);
+        }
+
+        System.out.println(results.size() + " jobs, " + failed + " failed, total " + totalMillis + " ms");
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: --batch <manifest> [threads] [overlap threads per job]");
+            return;
+        }
+
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int parallelism = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        new BatchRunner(readManifest(new File(args[0])), threads, parallelism).run();
+    }
+}
@@ -0,0 +1,727 @@
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.*;
+import org.xml.sax.SAXException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Binary interchange format (.omapb) for passing maps between pipeline stages without reparsing XML.
+ *
+ * Layout, all numbers big-endian:
+ *     header      MAGIC, FORMAT_VERSION, section count, then offset and length of every section
+ *     STRINGS     every attribute, tag name and text used outside coordinates, each stored once
+ *     TREE        the document without the objects of parts/part/objects, as tagged nodes
+ *     OBJECTS     one fixed-width column each for flags, type, symbol, point count, coordinate offset and
+ *                 extra offset, so any object can be looked up without reading the ones before it
+ *     COORDS      per object, zigzag varints of the x and y deltas to the previous point and the flags
+ *     EXTRAS      per object, attributes and child elements besides type, symbol and coords (patterns,
+ *                 texts, tags), as tagged nodes; objects that do not fit the columns are stored whole
+ *
+ * Converting .omap to .omapb and back gives the same document, except for whitespace-only text between
+ * elements, which OmapWriter drops as well. Opening a file memory-maps it and reads only the header; the
+ * columns are views on the mapping and coordinates are decoded per object on request.
+ */
+public class BinaryMap implements Closeable {
+    private static final int MAGIC = 0x4F4D4231; // "OMB1"
+    static final int FORMAT_VERSION = 1;
+
+    private static final int STRINGS = 0, TREE = 1, OBJECTS = 2, COORDS = 3, EXTRAS = 4, SECTION_COUNT = 5;
+
+    // Node tags in TREE and EXTRAS
+    private static final int END = 0, ELEMENT = 1, TEXT = 2, CDATA = 3, COMMENT = 4, OBJECT_RUN = 5;
+
+    // Object flags
+    private static final int HAS_TYPE = 1, HAS_SYMBOL = 2, HAS_EXTRA = 4, RAW = 8;
+
+    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();
+
+    private final FileChannel channel;
+    private final ByteBuffer data;
+    private final ByteBuffer[] sections = new ByteBuffer[SECTION_COUNT];
+
+    private final IntBuffer stringOffsets;
+    private final String[] strings;
+
+    private final int objectCount;
+    private final IntBuffer flags;
+    private final IntBuffer types;
+    private final IntBuffer symbolIds;
+    private final IntBuffer pointCounts;
+    private final LongBuffer coordOffsets;
+    private final LongBuffer extraOffsets;
+
+    public BinaryMap(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException(file + " is too large to map");
+            this.data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            if (size < 12 || data.getInt(0) != MAGIC || data.getInt(4) != FORMAT_VERSION || data.getInt(8) != SECTION_COUNT) {
+                throw new IOException(file + " is not a binary map of format version " + FORMAT_VERSION);
+            }
+
+            for (int i = 0; i < SECTION_COUNT; i++) {
+                long offset = data.getLong(12 + i * 16);
+                long length = data.getLong(20 + i * 16);
+                if (offset < 0 || length < 0 || offset + length > size) {
+                    throw new IOException(file + " is truncated or corrupt");
+                }
+                sections[i] = slice((int) offset, (int) length);
+            }
+
+            ByteBuffer stringSection = sections[STRINGS];
+            int stringCount = stringSection.getInt(0);
+            this.stringOffsets = slice(stringSection, 4, (stringCount + 1) * 4).asIntBuffer();
+            this.strings = new String[stringCount];
+
+            ByteBuffer objectSection = sections[OBJECTS];
+            int count = objectSection.getInt(0);
+            this.objectCount = count;
+            int position = 8;
+            this.flags = slice(objectSection, position, count * 4).asIntBuffer();
+            this.types = slice(objectSection, position += count * 4, count * 4).asIntBuffer();
+            this.symbolIds = slice(objectSection, position += count * 4, count * 4).asIntBuffer();
+            this.pointCounts = slice(objectSection, position += count * 4, count * 4).asIntBuffer();
+            this.coordOffsets = slice(objectSection, position += count * 4, (count + 1) * 8).asLongBuffer();
+            this.extraOffsets = slice(objectSection, position + (count + 1) * 8, count * 8).asLongBuffer();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            if (e instanceof IOException) throw (IOException) e;
+            throw new IOException(file + " is truncated or corrupt", e);
+        }
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+        return slice(data, offset, length);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer copy = buffer.duplicate();
+        copy.position(offset).limit(offset + length);
+        return copy.slice();
+    }
+
+    public static boolean isBinaryMap(File file) {
+        return file.getName().endsWith(".omapb");
+    }
+
+    public int objectCount() {
+        return objectCount;
+    }
+
+    /**
+     * Object type, or -1 if the object has none or is stored whole.
+     */
+    public int type(int object) {
+        return (flags.get(object) & HAS_TYPE) != 0 ? types.get(object) : -1;
+    }
+
+    /**
+     * Symbol id, or -1 if the object has none or is stored whole.
+     */
+    public int symbolId(int object) {
+        return (flags.get(object) & HAS_SYMBOL) != 0 ? symbolIds.get(object) : -1;
+    }
+
+    public int pointCount(int object) {
+        return pointCounts.get(object);
+    }
+
+    /**
+     * Coordinates of an object as consecutive x, y, flags triples; flags are 0 where the map omits them.
+     */
+    public int[] coordinates(int object) {
+        int points = pointCounts.get(object);
+        int[] result = new int[points * 3];
+        int[] position = {(int) coordOffsets.get(object)};
+        ByteBuffer coords = sections[COORDS];
+
+        long x = 0, y = 0;
+        for (int p = 0; p < points; p++) {
+            x += unzigzag(readVarLong(coords, position));
+            y += unzigzag(readVarLong(coords, position));
+            int pointFlags = (int) readVarLong(coords, position);
+            result[p * 3] = (int) x;
+            result[p * 3 + 1] = (int) y;
+            result[p * 3 + 2] = Math.max(0, pointFlags - 1);
+        }
+        return result;
+    }
+
+    private String string(int id) {
+        String value = strings[id];
+        if (value == null) {
+            int start = stringOffsets.get(id);
+            int end = stringOffsets.get(id + 1);
+            byte[] bytes = new byte[end - start];
+            slice(sections[STRINGS], 4 + (strings.length + 1) * 4 + start, bytes.length).get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+            strings[id] = value;
+        }
+        return value;
+    }
+
+    /**
+     * Rebuilds the whole map as a DOM document.
+     */
+    public Document toDocument(DocumentBuilder builder) throws IOException {
+        Document document = builder.newDocument();
+        int[] position = {0};
+        int[] nextObject = {0};
+
+        ByteBuffer tree = sections[TREE];
+        if (readVarLong(tree, position) != ELEMENT) throw new IOException("Binary map has no document element");
+        document.appendChild(readElement(document, tree, position, nextObject));
+
+        if (nextObject[0] != objectCount) {
+            throw new IOException("Binary map places " + nextObject[0] + " of its " + objectCount + " objects");
+        }
+        return document;
+    }
+
+    public Document toDocument() throws IOException, ParserConfigurationException {
+        return toDocument(DOCUMENT_BUILDER_FACTORY.newDocumentBuilder());
+    }
+
+    private Element readElement(Document document, ByteBuffer stream, int[] position, int[] nextObject) throws IOException {
+        Element element = document.createElement(string((int) readVarLong(stream, position)));
+        readAttributes(element, stream, position);
+        readChildren(element, stream, position, nextObject);
+        return element;
+    }
+
+    private void readAttributes(Element element, ByteBuffer stream, int[] position) {
+        int count = (int) readVarLong(stream, position);
+        for (int i = 0; i < count; i++) {
+            String name = string((int) readVarLong(stream, position));
+            element.setAttribute(name, string((int) readVarLong(stream, position)));
+        }
+    }
+
+    private void readChildren(Element parent, ByteBuffer stream, int[] position, int[] nextObject) throws IOException {
+        Document document = parent.getOwnerDocument();
+
+        while (true) {
+            int tag = (int) readVarLong(stream, position);
+            switch (tag) {
+                case END:
+                    return;
+                case ELEMENT:
+                    parent.appendChild(readElement(document, stream, position, nextObject));
+                    break;
+                case TEXT:
+                    parent.appendChild(document.createTextNode(string((int) readVarLong(stream, position))));
+                    break;
+                case CDATA:
+                    parent.appendChild(document.createCDATASection(string((int) readVarLong(stream, position))));
+                    break;
+                case COMMENT:
+                    parent.appendChild(document.createComment(string((int) readVarLong(stream, position))));
+                    break;
+                case OBJECT_RUN:
+                    int run = (int) readVarLong(stream, position);
+                    if (nextObject[0] + run > objectCount) throw new IOException("Binary map refers to missing objects");
+                    StringBuilder text = new StringBuilder();
+                    for (int i = 0; i < run; i++) {
+                        parent.appendChild(readObject(document, nextObject[0]++, text));
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown node tag " + tag + " in binary map");
+            }
+        }
+    }
+
+    private Element readObject(Document document, int object, StringBuilder text) throws IOException {
+        int objectFlags = flags.get(object);
+        ByteBuffer extras = sections[EXTRAS];
+        int[] position = {(int) extraOffsets.get(object)};
+
+        if ((objectFlags & RAW) != 0) {
+            if (readVarLong(extras, position) != ELEMENT) throw new IOException("Object " + object + " is corrupt");
+            return readElement(document, extras, position, new int[]{objectCount});
+        }
+
+        Element element = document.createElement("object");
+        if ((objectFlags & HAS_TYPE) != 0) element.setAttribute("type", String.valueOf(types.get(object)));
+        if ((objectFlags & HAS_SYMBOL) != 0) element.setAttribute("symbol", String.valueOf(symbolIds.get(object)));
+        if ((objectFlags & HAS_EXTRA) != 0) readAttributes(element, extras, position);
+
+        int points = pointCounts.get(object);
+        Element coords = document.createElement("coords");
+        coords.setAttribute("count", String.valueOf(points));
+        if (points > 0) {
+            text.setLength(0);
+            int[] coordPosition = {(int) coordOffsets.get(object)};
+            ByteBuffer coordBytes = sections[COORDS];
+            long x = 0, y = 0;
+
+            for (int p = 0; p < points; p++) {
+                x += unzigzag(readVarLong(coordBytes, coordPosition));
+                y += unzigzag(readVarLong(coordBytes, coordPosition));
+                long pointFlags = readVarLong(coordBytes, coordPosition);
+                text.append(x).append(' ').append(y);
+                if (pointFlags > 0) text.append(' ').append(pointFlags - 1);
+                text.append(';');
+            }
+            coords.appendChild(document.createTextNode(text.toString()));
+        }
+        element.appendChild(coords);
+
+        if ((objectFlags & HAS_EXTRA) != 0) readChildren(element, extras, position, new int[]{objectCount});
+        return element;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Converts an .omap file to a binary map.
+     */
+    public static void convert(File omap, File binary) throws IOException, ParserConfigurationException, SAXException {
+        Document document = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder().parse(omap);
+        write(document, binary);
+    }
+
+    public static void write(Document document, File file) throws IOException {
+        Writer writer = new Writer();
+        writer.writeNode(document.getDocumentElement(), writer.tree);
+
+        ByteBuffer[] sectionData = {writer.strings(), writer.tree.buffer(), writer.objects(), writer.coords.buffer(), writer.extras.buffer()};
+
+        ByteBuffer header = ByteBuffer.allocate(12 + SECTION_COUNT * 16);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(SECTION_COUNT);
+        long offset = header.capacity();
+        for (ByteBuffer section : sectionData) {
+            offset = align(offset);
+            header.putLong(offset).putLong(section.remaining());
+            offset += section.remaining();
+        }
+        header.flip();
+
+        try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) out.write(header);
+            for (ByteBuffer section : sectionData) {
+                long start = align(out.position());
+                if (start > out.position()) out.write(ByteBuffer.allocate((int) (start - out.position())));
+                while (section.hasRemaining()) out.write(section);
+            }
+        }
+    }
+
+    // Sections start at multiples of 8 so the column views are aligned
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    /**
+     * Collects the sections of one map while its document is walked.
+     */
+    private static class Writer {
+        final Map<String, Integer> stringIds = new HashMap<>();
+        final List<String> stringList = new ArrayList<>();
+
+        final Bytes tree = new Bytes();
+        final Bytes coords = new Bytes();
+        final Bytes extras = new Bytes();
+
+        int objectCount;
+        int[] flags = new int[1024];
+        int[] types = new int[1024];
+        int[] symbolIds = new int[1024];
+        int[] pointCounts = new int[1024];
+        long[] coordOffsets = new long[1025];
+        long[] extraOffsets = new long[1024];
+
+        // Scratch space for parsing one coords text: x, y and flags + 1 (0 where flags are omitted)
+        int[] parsed = new int[3 * 64];
+        final StringBuilder canonical = new StringBuilder();
+
+        int string(String value) {
+            Integer id = stringIds.get(value);
+            if (id == null) {
+                id = stringList.size();
+                stringIds.put(value, id);
+                stringList.add(value);
+            }
+            return id;
+        }
+
+        void writeNode(Node node, Bytes out) {
+            switch (node.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    out.varLong(ELEMENT);
+                    out.varLong(string(((Element) node).getTagName()));
+                    writeAttributes(node.getAttributes(), out, null);
+                    writeChildren(node, out);
+                    break;
+                case Node.TEXT_NODE:
+                    out.varLong(TEXT);
+                    out.varLong(string(node.getNodeValue()));
+                    break;
+                case Node.CDATA_SECTION_NODE:
+                    out.varLong(CDATA);
+                    out.varLong(string(node.getNodeValue()));
+                    break;
+                case Node.COMMENT_NODE:
+                    out.varLong(COMMENT);
+                    out.varLong(string(node.getNodeValue()));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        void writeAttributes(NamedNodeMap attributes, Bytes out, Set<String> skip) {
+            int count = 0;
+            for (int i = 0; i < attributes.getLength(); i++) {
+                if (skip == null || !skip.contains(attributes.item(i).getNodeName())) count++;
+            }
+
+            out.varLong(count);
+            for (int i = 0; i < attributes.getLength(); i++) {
+                Node attribute = attributes.item(i);
+                if (skip != null && skip.contains(attribute.getNodeName())) continue;
+                out.varLong(string(attribute.getNodeName()));
+                out.varLong(string(attribute.getNodeValue()));
+            }
+        }
+
+        void writeChildren(Node parent, Bytes out) {
+            boolean objectList = parent.getNodeName().equals("objects") && parent.getParentNode() != null
+                    && parent.getParentNode().getNodeName().equals("part") && out == tree;
+            boolean dropWhitespace = hasElementChild(parent);
+            int run = 0;
+
+            for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (dropWhitespace && child.getNodeType() == Node.TEXT_NODE && isWhitespace(child.getNodeValue())) continue;
+
+                if (objectList && child.getNodeType() == Node.ELEMENT_NODE && child.getNodeName().equals("object")) {
+                    writeObject((Element) child);
+                    run++;
+                    continue;
+                }
+
+                if (run > 0) {
+                    out.varLong(OBJECT_RUN);
+                    out.varLong(run);
+                    run = 0;
+                }
+                writeNode(child, out);
+            }
+
+            if (run > 0) {
+                out.varLong(OBJECT_RUN);
+                out.varLong(run);
+            }
+            out.varLong(END);
+        }
+
+        private static final Set<String> COLUMN_ATTRIBUTES = Set.of("type", "symbol");
+
+        void writeObject(Element object) {
+            int index = objectCount++;
+            if (index == flags.length) grow();
+
+            Element coordsElement = firstElementChild(object);
+            int points = coordsElement == null ? -1 : parseCoords(coordsElement);
+            Integer type = canonicalInt(object, "type");
+            Integer symbol = canonicalInt(object, "symbol");
+
+            if (points < 0 || (object.hasAttribute("type") && type == null) || (object.hasAttribute("symbol") && symbol == null)) {
+                flags[index] = RAW;
+                extraOffsets[index] = extras.size;
+                coordOffsets[index + 1] = coords.size;
+                writeNode(object, extras);
+                return;
+            }
+
+            int objectFlags = 0;
+            if (type != null) {
+                objectFlags |= HAS_TYPE;
+                types[index] = type;
+            }
+            if (symbol != null) {
+                objectFlags |= HAS_SYMBOL;
+                symbolIds[index] = symbol;
+            }
+
+            long x = 0, y = 0;
+            for (int p = 0; p < points; p++) {
+                coords.varLong(zigzag(parsed[p * 3] - x));
+                coords.varLong(zigzag(parsed[p * 3 + 1] - y));
+                coords.varLong(parsed[p * 3 + 2]);
+                x = parsed[p * 3];
+                y = parsed[p * 3 + 1];
+            }
+            pointCounts[index] = points;
+            coordOffsets[index + 1] = coords.size;
+
+            boolean extraAttributes = object.getAttributes().getLength() > (type != null ? 1 : 0) + (symbol != null ? 1 : 0);
+            boolean extraChildren = false;
+            for (Node child = coordsElement.getNextSibling(); child != null && !extraChildren; child = child.getNextSibling()) {
+                extraChildren = child.getNodeType() != Node.TEXT_NODE || !isWhitespace(child.getNodeValue());
+            }
+
+            if (extraAttributes || extraChildren) {
+                objectFlags |= HAS_EXTRA;
+                extraOffsets[index] = extras.size;
+                writeAttributes(object.getAttributes(), extras, COLUMN_ATTRIBUTES);
+
+                for (Node child = coordsElement.getNextSibling(); child != null; child = child.getNextSibling()) {
+                    if (child.getNodeType() == Node.TEXT_NODE && isWhitespace(child.getNodeValue())) continue;
+                    writeNode(child, extras);
+                }
+                extras.varLong(END);
+            } else {
+                extraOffsets[index] = -1;
+            }
+            flags[index] = objectFlags;
+        }
+
+        /**
+         * Returns the coords element if it is the object's first child, or null if the object does not
+         * start with coordinates that the columns can hold.
+         */
+        private static Element firstElementChild(Element object) {
+            for (Node child = object.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (child.getNodeType() == Node.TEXT_NODE && isWhitespace(child.getNodeValue())) continue;
+                if (child.getNodeType() == Node.ELEMENT_NODE && child.getNodeName().equals("coords")) return (Element) child;
+                return null;
+            }
+            return null;
+        }
+
+        /**
+         * Parses the coords element into points and returns the number of points, or -1 if the element
+         * would not come back exactly as it is (other attributes, a wrong count, unusual number or
+         * separator formatting, child elements).
+         */
+        private int parseCoords(Element coordsElement) {
+            NamedNodeMap attributes = coordsElement.getAttributes();
+            if (attributes.getLength() != 1 || !coordsElement.hasAttribute("count")) return -1;
+
+            Node text = coordsElement.getFirstChild();
+            if (text != null && (text.getNodeType() != Node.TEXT_NODE || text.getNextSibling() != null)) return -1;
+            String value = text == null ? "" : text.getNodeValue();
+
+            int count = 0;
+            int position = 0;
+            int length = value.length();
+            long[] number = new long[1];
+
+            while (position < length) {
+                if ((count + 1) * 3 > parsed.length) parsed = Arrays.copyOf(parsed, parsed.length * 2);
+
+                if ((position = parseInt(value, position, number)) < 0 || position >= length || value.charAt(position) != ' ') return -1;
+                parsed[count * 3] = (int) number[0];
+                if ((position = parseInt(value, position + 1, number)) < 0 || position >= length) return -1;
+                parsed[count * 3 + 1] = (int) number[0];
+                parsed[count * 3 + 2] = 0;
+
+                if (value.charAt(position) == ' ') {
+                    if ((position = parseInt(value, position + 1, number)) < 0 || position >= length || number[0] < 0) return -1;
+                    parsed[count * 3 + 2] = (int) number[0] + 1;
+                }
+                if (value.charAt(position) != ';') return -1;
+                position++;
+                count++;
+            }
+
+            if (!coordsElement.getAttribute("count").equals(String.valueOf(count))) return -1;
+            if (count == 0 && text != null) return -1;
+
+            // Numbers such as "007" or "+7" parse but would be written back differently
+            canonical.setLength(0);
+            for (int p = 0; p < count; p++) {
+                canonical.append(parsed[p * 3]).append(' ').append(parsed[p * 3 + 1]);
+                if (parsed[p * 3 + 2] > 0) canonical.append(' ').append(parsed[p * 3 + 2] - 1);
+                canonical.append(';');
+            }
+            return canonical.toString().equals(value) ? count : -1;
+        }
+
+        /**
+         * Parses an int starting at position into number[0]; returns the position after it, or -1.
+         */
+        private static int parseInt(String value, int position, long[] number) {
+            int length = value.length();
+            boolean negative = position < length && value.charAt(position) == '-';
+            if (negative) position++;
+
+            int start = position;
+            long result = 0;
+            while (position < length && value.charAt(position) >= '0' && value.charAt(position) <= '9') {
+                result = result * 10 + (value.charAt(position) - '0');
+                if (result > Integer.MAX_VALUE + 1L) return -1;
+                position++;
+            }
+            if (position == start) return -1;
+
+            result = negative ? -result : result;
+            if (result > Integer.MAX_VALUE) return -1;
+            number[0] = result;
+            return position;
+        }
+
+        private static Integer canonicalInt(Element element, String name) {
+            if (!element.hasAttribute(name)) return null;
+            String value = element.getAttribute(name);
+
+            try {
+                int parsed = Integer.parseInt(value);
+                return String.valueOf(parsed).equals(value) ? parsed : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        void grow() {
+            int size = flags.length * 2;
+            flags = Arrays.copyOf(flags, size);
+            types = Arrays.copyOf(types, size);
+            symbolIds = Arrays.copyOf(symbolIds, size);
+            pointCounts = Arrays.copyOf(pointCounts, size);
+            coordOffsets = Arrays.copyOf(coordOffsets, size + 1);
+            extraOffsets = Arrays.copyOf(extraOffsets, size);
+        }
+
+        ByteBuffer strings() {
+            byte[][] encoded = new byte[stringList.size()][];
+            int total = 0;
+            for (int i = 0; i < encoded.length; i++) {
+                encoded[i] = stringList.get(i).getBytes(StandardCharsets.UTF_8);
+                total += encoded[i].length;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(4 + (encoded.length + 1) * 4 + total);
+            buffer.putInt(encoded.length);
+            int offset = 0;
+            for (byte[] bytes : encoded) {
+                buffer.putInt(offset);
+                offset += bytes.length;
+            }
+            buffer.putInt(offset);
+            for (byte[] bytes : encoded) buffer.put(bytes);
+            return buffer.flip();
+        }
+
+        ByteBuffer objects() {
+            int count = objectCount;
+            ByteBuffer buffer = ByteBuffer.allocate(8 + count * 16 + (count + 1) * 8 + count * 8);
+            buffer.putInt(count).putInt(0);
+            buffer.asIntBuffer().put(flags, 0, count);
+            buffer.position(buffer.position() + count * 4);
+            buffer.asIntBuffer().put(types, 0, count);
+            buffer.position(buffer.position() + count * 4);
+            buffer.asIntBuffer().put(symbolIds, 0, count);
+            buffer.position(buffer.position() + count * 4);
+            buffer.asIntBuffer().put(pointCounts, 0, count);
+            buffer.position(buffer.position() + count * 4);
+            buffer.asLongBuffer().put(coordOffsets, 0, count + 1);
+            buffer.position(buffer.position() + (count + 1) * 8);
+            buffer.asLongBuffer().put(extraOffsets, 0, count);
+            buffer.position(buffer.position() + count * 8);
+            return buffer.flip();
+        }
+    }
+
+    private static boolean hasElementChild(Node node) {
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) return true;
+        }
+        return false;
+    }
+
+    private static boolean isWhitespace(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Growable byte array with varint output.
+     */
+    private static class Bytes {
+        byte[] data = new byte[1 << 12];
+        int size;
+
+        void varLong(long value) {
+            if (size + 10 > data.length) {
+                if (data.length > Integer.MAX_VALUE / 2) throw new IllegalStateException("Binary map section exceeds 2 GB");
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+
+            while ((value & ~0x7FL) != 0) {
+                data[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[size++] = (byte) value;
+        }
+
+        ByteBuffer buffer() {
+            return ByteBuffer.wrap(data, 0, size);
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long readVarLong(ByteBuffer buffer, int[] position) {
+        long result = 0;
+        int shift = 0;
+        int p = position[0];
+
+        while (true) {
+            byte b = buffer.get(p++);
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) break;
+            shift += 7;
+        }
+
+        position[0] = p;
+        return result;
+    }
+
+    /**
+     * Converts between .omap and .omapb, the direction given by the file names.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.out.println("Usage: BinaryMap <input.omap> <output.omapb> | <input.omapb> <output.omap>");
+            return;
+        }
+
+        File input = new File(args[0]);
+        File output = new File(args[1]);
+
+        if (isBinaryMap(input)) {
+            try (BinaryMap map = new BinaryMap(input); OmapWriter writer = OmapWriter.open(output, false)) {
+                writer.writeDocument(map.toDocument());
+            }
+        } else {
+            convert(input, output);
+        }
+        System.out.println("Converted " + input.getPath() + " to " + output.getPath());
+    }
+}
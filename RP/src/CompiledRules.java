@@ -0,0 +1,193 @@
+import java.util.*;
+
+/**
+ * FilterRules resolved against the symbols of one map, see FilterRules.compile().
+ *
+ * Symbol conditions are evaluated once per symbol into a bitset over symbol ids; priority and small rules
+ * fold into a SymbolTable with their values. What remains per object are bitset lookups and integer
+ * comparisons on the columns of a GeometryCache, run one rule at a time over all objects.
+ */
+public class CompiledRules {
+    /**
+     * One filter or keep rule: the symbols it matches plus the bounds on the object columns.
+     */
+    private static class ObjectRule {
+        final boolean keep;
+        // null when the rule matches objects of every symbol
+        final BitSet symbols;
+        final int objectTypes;
+        final boolean geometryConditions;
+        final long minSize;
+        final long maxSize;
+        final int[][] regions;
+
+        ObjectRule(FilterRules.Rule rule, BitSet symbols) {
+            this.keep = rule.action == FilterRules.Action.KEEP;
+            this.symbols = symbols;
+            this.objectTypes = rule.objectTypes;
+            this.geometryConditions = rule.hasGeometryConditions();
+            this.minSize = rule.minSize;
+            this.maxSize = rule.maxSize;
+            this.regions = rule.regions.toArray(new int[0][]);
+        }
+
+        void match(GeometryCache geometry, BitSet matched) {
+            int count = geometry.size();
+
+            for (int i = 0; i < count; i++) {
+                int symbolId = geometry.symbolId(i);
+                if (symbols != null && (symbolId < 0 || !symbols.get(symbolId))) continue;
+
+                int type = geometry.type(i);
+                if (objectTypes != 0 && (type < 0 || type > 31 || (objectTypes & (1 << type)) == 0)) continue;
+
+                if (geometryConditions && !matchesGeometry(geometry, i)) continue;
+
+                matched.set(i);
+            }
+        }
+
+        private boolean matchesGeometry(GeometryCache geometry, int i) {
+            if (!geometry.hasGeometry(i)) return false;
+
+            int minX = geometry.minX(i), minY = geometry.minY(i);
+            int maxX = geometry.maxX(i), maxY = geometry.maxY(i);
+
+            long size = Math.max((long) maxX - minX, (long) maxY - minY);
+            if (size < minSize || size > maxSize) return false;
+
+            if (regions.length == 0) return true;
+            for (int[] region : regions) {
+                if (maxX >= region[0] && maxY >= region[1] && minX <= region[2] && minY <= region[3]) return true;
+            }
+            return false;
+        }
+    }
+
+    private final ObjectRule[] objectRules;
+    private final boolean perSymbol;
+    private final BitSet filteredSymbols = new BitSet();
+    private final SymbolTable symbols;
+
+    CompiledRules(FilterRules rules, SymbolTable table) {
+        int symbolCount = table.maxId() + 1;
+        int[] priorities = new int[symbolCount];
+        BitSet small = new BitSet(symbolCount);
+        for (int id = 0; id < symbolCount; id++) {
+            priorities[id] = table.priority(id);
+            small.set(id, table.isSmall(id));
+        }
+
+        List<ObjectRule> objectRules = new ArrayList<>();
+        boolean perSymbol = true;
+
+        for (FilterRules.Rule rule : rules.rules()) {
+            BitSet matched = matchSymbols(rule, table, symbolCount);
+
+            switch (rule.action) {
+                case FILTER:
+                    // Only a rule without object conditions is sure to remove every object of its symbols
+                    if (!rule.hasObjectConditions()) filteredSymbols.or(matched);
+                    break;
+                case KEEP:
+                    filteredSymbols.andNot(matched);
+                    break;
+                case PRIORITY:
+                    for (int id = matched.nextSetBit(0); id >= 0; id = matched.nextSetBit(id + 1)) {
+                        priorities[id] = rule.priority;
+                    }
+                    break;
+                case SMALL:
+                    small.or(matched);
+                    break;
+                case NOT_SMALL:
+                    small.andNot(matched);
+                    break;
+            }
+
+            if (rule.action == FilterRules.Action.FILTER || rule.action == FilterRules.Action.KEEP) {
+                objectRules.add(new ObjectRule(rule, rule.hasSymbolConditions() ? matched : null));
+                if (rule.hasObjectConditions()) perSymbol = false;
+            }
+        }
+
+        this.objectRules = objectRules.toArray(new ObjectRule[0]);
+        this.perSymbol = perSymbol;
+        this.symbols = table.withPriorities(priorities, small);
+    }
+
+    private static BitSet matchSymbols(FilterRules.Rule rule, SymbolTable table, int symbolCount) {
+        BitSet matched = new BitSet(symbolCount);
+
+        for (int id = 0; id < symbolCount; id++) {
+            if (!table.contains(id)) continue;
+            if (rule.symbolTypes != 0 && (rule.symbolTypes & table.type(id)) == 0) continue;
+
+            if (!rule.names.isEmpty()) {
+                String name = table.name(id);
+                boolean found = false;
+                for (int i = 0; i < rule.names.size() && !found; i++) {
+                    found = rule.names.get(i).matcher(name).matches();
+                }
+                if (!found) continue;
+            }
+
+            if (!rule.codePrefixes.isEmpty()) {
+                String code = table.code(id);
+                boolean found = false;
+                for (int i = 0; i < rule.codePrefixes.size() && !found; i++) {
+                    found = code.startsWith(rule.codePrefixes.get(i));
+                }
+                if (!found) continue;
+            }
+
+            matched.set(id);
+        }
+
+        return matched;
+    }
+
+    /**
+     * True if no filter or keep rule has object conditions, so filteredSymbols() alone decides which
+     * objects are removed and evaluate() is not needed.
+     */
+    public boolean isPerSymbol() {
+        return perSymbol;
+    }
+
+    /**
+     * Symbols all of whose objects are removed. With object conditions, objects of other symbols may be
+     * removed as well; see evaluate().
+     */
+    public BitSet filteredSymbols() {
+        return (BitSet) filteredSymbols.clone();
+    }
+
+    /**
+     * Indices of the objects of geometry that the rules remove.
+     */
+    public BitSet evaluate(GeometryCache geometry) {
+        BitSet removed = new BitSet(geometry.size());
+        BitSet matched = new BitSet(geometry.size());
+
+        for (ObjectRule rule : objectRules) {
+            matched.clear();
+            rule.match(geometry, matched);
+
+            if (rule.keep) {
+                removed.andNot(matched);
+            } else {
+                removed.or(matched);
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * The map's symbol table with the priorities and small-object flags set by the rules.
+     */
+    public SymbolTable symbols() {
+        return symbols;
+    }
+}
@@ -0,0 +1,179 @@
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Decides which objects to hide so that no overlap between two objects remains unresolved.
+ *
+ * Objects are the vertices of a conflict graph and every overlap is an edge directed from the object
+ * that stays visible to the one that may be hidden: the lower priority object loses, ties go to the
+ * earlier object. Edges whose loser has a small-object symbol are tolerated and dropped.
+ *
+ * Each connected component is resolved on its own, in parallel with the others. Its objects are visited
+ * from highest to lowest priority; an object that is still visible hides every object it wins against,
+ * and an object that was already hidden no longer needs anything else hidden on its behalf. Every edge
+ * points forward in that order, so one pass settles the component, and every hidden object overlaps an
+ * object that stays visible. Union-find plus one sort per component keeps the whole run near-linear in
+ * the number of overlaps.
+ */
+public class ConflictResolver {
+    private final int objectCount;
+    private final int[] winners;
+    private final int[] losers;
+    private final int[] priorities;
+    private int edgeCount;
+
+    /**
+     * @param objectCount number of objects; object indices in the overlaps are 0 .. objectCount - 1
+     */
+    public ConflictResolver(int objectCount, List<OverlayHandler.OverlapPair> overlaps, SymbolTable symbols, BitSet excludedSymbols) {
+        this(objectCount, overlaps, symbols, excludedSymbols, null);
+    }
+
+    /**
+     * @param excludedObjects objects that are removed from the map anyway, like those of excludedSymbols;
+     *                        may be null
+     */
+    public ConflictResolver(int objectCount, List<OverlayHandler.OverlapPair> overlaps, SymbolTable symbols, BitSet excludedSymbols, BitSet excludedObjects) {
+        this.objectCount = objectCount;
+        this.winners = new int[overlaps.size()];
+        this.losers = new int[overlaps.size()];
+        this.priorities = new int[objectCount];
+
+        for (OverlayHandler.OverlapPair overlap : overlaps) {
+            if (overlap.index1 == overlap.index2 || overlap.symbolId1 == overlap.symbolId2) continue;
+            if (isExcluded(excludedSymbols, overlap.symbolId1) || isExcluded(excludedSymbols, overlap.symbolId2)) continue;
+            if (excludedObjects != null && (excludedObjects.get(overlap.index1) || excludedObjects.get(overlap.index2))) continue;
+
+            int priority1 = symbols.priority(overlap.symbolId1);
+            int priority2 = symbols.priority(overlap.symbolId2);
+            priorities[overlap.index1] = priority1;
+            priorities[overlap.index2] = priority2;
+
+            int winner, loser, loserSymbol;
+            if (priority1 > priority2 || (priority1 == priority2 && overlap.index1 < overlap.index2)) {
+                winner = overlap.index1;
+                loser = overlap.index2;
+                loserSymbol = overlap.symbolId2;
+            } else {
+                winner = overlap.index2;
+                loser = overlap.index1;
+                loserSymbol = overlap.symbolId1;
+            }
+
+            if (symbols.isSmall(loserSymbol)) continue;
+
+            winners[edgeCount] = winner;
+            losers[edgeCount] = loser;
+            edgeCount++;
+        }
+    }
+
+    private static boolean isExcluded(BitSet excludedSymbols, int symbolId) {
+        return excludedSymbols != null && symbolId >= 0 && excludedSymbols.get(symbolId);
+    }
+
+    /**
+     * Indices of the objects to hide, in ascending order.
+     */
+    public int[] resolve() {
+        // Connected components
+        int[] parent = new int[objectCount];
+        for (int i = 0; i < objectCount; i++) parent[i] = i;
+        for (int e = 0; e < edgeCount; e++) {
+            union(parent, winners[e], losers[e]);
+        }
+
+        // Objects of every component with at least one edge, grouped by component
+        boolean[] involved = new boolean[objectCount];
+        for (int e = 0; e < edgeCount; e++) {
+            involved[winners[e]] = true;
+            involved[losers[e]] = true;
+        }
+
+        int[] componentOf = new int[objectCount];
+        Arrays.fill(componentOf, -1);
+        int componentCount = 0;
+        int[] componentSize = new int[objectCount + 1];
+        for (int i = 0; i < objectCount; i++) {
+            if (!involved[i]) continue;
+            int root = find(parent, i);
+            if (componentOf[root] < 0) componentOf[root] = componentCount++;
+            componentOf[i] = componentOf[root];
+            componentSize[componentOf[i] + 1]++;
+        }
+
+        int[] componentStart = Arrays.copyOf(componentSize, componentCount + 1);
+        for (int c = 0; c < componentCount; c++) componentStart[c + 1] += componentStart[c];
+
+        int[] members = new int[componentStart[componentCount]];
+        int[] fill = Arrays.copyOf(componentStart, componentCount);
+        for (int i = 0; i < objectCount; i++) {
+            if (involved[i]) members[fill[componentOf[i]]++] = i;
+        }
+
+        // Outgoing edges (objects it wins against) per object
+        int[] edgeStart = new int[objectCount + 1];
+        for (int e = 0; e < edgeCount; e++) edgeStart[winners[e] + 1]++;
+        for (int i = 0; i < objectCount; i++) edgeStart[i + 1] += edgeStart[i];
+
+        int[] targets = new int[edgeCount];
+        int[] edgeFill = Arrays.copyOf(edgeStart, objectCount);
+        for (int e = 0; e < edgeCount; e++) targets[edgeFill[winners[e]]++] = losers[e];
+
+        // Components touch disjoint objects, so they can share the hidden flags
+        boolean[] hidden = new boolean[objectCount];
+        IntStream.range(0, componentCount).parallel().forEach(c ->
+                resolveComponent(members, componentStart[c], componentStart[c + 1], edgeStart, targets, hidden));
+
+        int count = 0;
+        for (boolean h : hidden) if (h) count++;
+
+        int[] result = new int[count];
+        int next = 0;
+        for (int i = 0; i < objectCount; i++) {
+            if (hidden[i]) result[next++] = i;
+        }
+        return result;
+    }
+
+    private void resolveComponent(int[] members, int from, int to, int[] edgeStart, int[] targets, boolean[] hidden) {
+        // Highest priority first, earlier objects first on equal priority; sorts packed (priority, index) keys
+        long[] order = new long[to - from];
+        for (int k = from; k < to; k++) {
+            int object = members[k];
+            order[k - from] = ((long) (Integer.MAX_VALUE - priorities[object]) << 32) | object;
+        }
+        Arrays.sort(order);
+
+        for (long key : order) {
+            int object = (int) key;
+            if (hidden[object]) continue;
+
+            for (int e = edgeStart[object]; e < edgeStart[object + 1]; e++) {
+                hidden[targets[e]] = true;
+            }
+        }
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA == rootB) return;
+
+        // Keep the smaller index as root so component numbering does not depend on edge order
+        if (rootA < rootB) parent[rootB] = rootA;
+        else parent[rootA] = rootB;
+    }
+
+    public int edgeCount() {
+        return edgeCount;
+    }
+}
@@ -1,130 +1,440 @@
 
 import javax.xml.parsers.*;
-import javax.xml.transform.*;
-import javax.xml.transform.dom.*;
-import javax.xml.transform.stream.*;
 import org.w3c.dom.*;
 import org.xml.sax.SAXException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
 import java.io.*;
 
 public class FilterObjects {
+    // Pre-defined color table written to every result map
+    static final String[][] COLOR_DATA = {
+            {"0", "Purple", "0.2", "1", "0", "0", "PURPLE", "0.8", "0", "1"},
+            {"1", "Black", "0", "0", "0", "1", "BLACK", "0", "0", "0"},
+            {"2", "Lower Purple", "0.2", "1", "0", "0", "PURPLE", "0.8", "0", "1"},
+            {"3", "Black 70%", "0", "0", "0", "0.7", "BLACK", "0.3", "0.3", "0.3"},
+            {"4", "Brown 50%", "0", "0.28", "0.5", "0.09", "BROWN", "0.91", "0.68", "0.5"},
+            {"5", "Black below light browns", "0", "0", "0", "1", "BLACK", "0", "0", "0"},
+            {"6", "Brown", "0", "0.56", "1", "0.18", "BROWN", "0.82", "0.361", "0"},
+            {"7", "OpenOrienteering Orange", "0", "0.474", "0.895", "0.09", "ORANGE", "0.91", "0.497", "0.105"},
+            {"8", "Opaque Blue", "0.87", "0.18", "0", "0", "BLUE", "0.13", "0.82", "1"},
+            {"9", "Blue", "0.87", "0.18", "0", "0", "BLUE", "0.13", "0.82", "1"},
+            {"10", "Blue 50%", "0.435", "0.09", "0", "0", "BLUE", "0.565", "0.91", "1"},
+            {"11", "Black 30%", "0", "0", "0", "0.3", "BLACK", "0.7", "0.7", "0.7"},
+            {"12", "Green 50%, Yellow", "0.38", "0.27", "0.886", "0", "GREEN", "0.62", "0.73", "0.114"},
+            {"13", "Green over White over Green", "0.76", "0", "0.91", "0", "GREEN", "0.24", "1", "0.09"},
+            {"14", "Opaque White over Green", "0", "0", "0", "0", "WHITE", "1", "1", "1"},
+            {"15", "Yellow over Green", "0", "0.27", "0.79", "0", "YELLOW", "1", "0.73", "0.21"},
+            {"16", "Opaque Green", "0.76", "0", "0.91", "0", "GREEN", "0.24", "1", "0.09"},
+            {"17", "Green", "0.76", "0", "0.91", "0", "GREEN", "0.24", "1", "0.09"},
+            {"18", "Green 60%", "0.456", "0", "0.546", "0", "GREEN", "0.544", "1", "0.454"},
+            {"19", "Green 30%", "0.228", "0", "0.273", "0", "GREEN", "0.772", "1", "0.727"},
+            {"20", "Green below light greens", "0.76", "0", "0.91", "0", "GREEN", "0.24", "1", "0.09"},
+            {"21", "Yellow", "0", "0.27", "0.79", "0", "YELLOW", "1", "0.73", "0.21"},
+            {"22", "Yellow 50%", "0", "0.135", "0.395", "0", "YELLOW", "1", "0.865", "0.605"},
+            {"23", "White over Yellow 70%", "0", "0", "0", "0", "WHITE", "1", "1", "1"},
+            {"24", "Yellow 70%", "0", "0.189", "0.553", "0", "YELLOW", "1", "0.811", "0.447"},
+    };
+
+    // The XML factory is looked up once per JVM; builders are not thread-safe, so each thread keeps its own
+    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = newDocumentBuilderFactory();
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = new ThreadLocal<>();
+
+    // Parts are filtered concurrently only if reading the source document has no side effects
+    private static final boolean CONCURRENT_READS = isExpanded(DOCUMENT_BUILDER_FACTORY);
+    private static final String DEFER_NODE_EXPANSION = "http://apache.org/xml/features/dom/defer-node-expansion";
+
+    /**
+     * The filtered copy of one map part.
+     */
+    private static class PartCopy {
+        final Element part;
+        final Map<Element, Element> copiedObjects = new IdentityHashMap<>();
+        int objectCount;
+        int objsDeleted;
+
+        PartCopy(Element part) {
+            this.part = part;
+        }
+    }
+
+    // Symbol tables of maps already seen in this JVM, keyed by path, size and modification time
+    private static final Map<String, SymbolTable> SYMBOL_TABLES = new ConcurrentHashMap<>();
+
     private final ArrayList<String> objects;
     private final Document document;
+    private final File output;
+    // Set for maps held in memory by MapService: results are kept for writeResult() instead of saved
+    private final boolean keepResult;
+    private Document keptResult;
+    private final SymbolTable symbols;
+    private final StaticSections sections;
     private Document resultMap;
     public int objsDeleted;
     public int overlaysHandled;
     private boolean handleOverlays;
     private boolean removeOverlays;
     private OverlayHandler overlayManager;
+    // Source object -> its copy in resultMap, for removing individual objects after overlap resolution
+    private final Map<Element, Element> copiedObjects = new IdentityHashMap<>();
+    private final PipelineMetrics metrics = new PipelineMetrics();
+    // Indent the saved map like the old DOM Transformer output; compact is several times faster to write
+    private boolean prettyPrint;
+    private FilterRules rules;
+    private boolean generalize;
+    private int targetScale;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
 
     public FilterObjects(String chosenMapName, ArrayList<String> objects, boolean handleOverlays, boolean removeOverlays) throws ParserConfigurationException, IOException, SAXException {
+        this(new File("RP\\src\\maps\\" + chosenMapName), null, objects, handleOverlays, removeOverlays, MapCache.defaultCache());
+    }
+
+    public FilterObjects(File chosenMap, File output, ArrayList<String> objects, boolean handleOverlays, boolean removeOverlays) throws ParserConfigurationException, IOException, SAXException {
+        this(chosenMap, output, objects, handleOverlays, removeOverlays, null);
+    }
+
+    /**
+     * @param output file the result is written to, or null for custom_map.omap / custom_map_no_overlays.omap
+     *               in the maps directory
+     * @param cache  cache for the geometry and overlaps of the map, so that re-running with another
+     *               filter list or overlay mode skips overlap detection; null to always compute
+     */
+    public FilterObjects(File chosenMap, File output, ArrayList<String> objects, boolean handleOverlays, boolean removeOverlays, MapCache cache) throws ParserConfigurationException, IOException, SAXException {
         this.objects = objects;
+        this.output = output;
+        this.keepResult = false;
         this.handleOverlays = handleOverlays;
         this.removeOverlays = removeOverlays;
         this.overlaysHandled = 0;
+        String symbolTableKey = chosenMap.getAbsolutePath() + ":" + chosenMap.length() + ":" + chosenMap.lastModified();
+        String cacheKey = null;
 
-        File chosenMap = new File("RP\\src\\maps\\" + chosenMapName);
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder docBuilder = factory.newDocumentBuilder();
-        this.document = docBuilder.parse(chosenMap);
-        this.document.getDocumentElement().normalize();
-        this.resultMap = docBuilder.newDocument();
+        PipelineMetrics.Timer parseTimer = metrics.start(PipelineMetrics.Stage.PARSE);
+        try (parseTimer) {
+            if (handleOverlays && cache != null) cacheKey = MapCache.key(chosenMap);
+
+            this.document = parseMap(chosenMap);
+            this.resultMap = documentBuilder().newDocument();
+        }
+
+        PipelineMetrics.Timer symbolTimer = metrics.start(PipelineMetrics.Stage.SYMBOL_MAP);
+        try (symbolTimer) {
+            this.symbols = SYMBOL_TABLES.computeIfAbsent(symbolTableKey, key -> new SymbolTable(this.document));
+        }
+        this.sections = StaticSections.forFile(symbolTableKey, this.document);
 
         if (handleOverlays) {
-            this.overlayManager = new OverlayHandler(this.document);
+            PipelineMetrics.Timer overlapTimer = metrics.start(PipelineMetrics.Stage.OVERLAP_DETECTION);
+            try (overlapTimer) {
+                this.overlayManager = new OverlayHandler(this.document, symbols, metrics, cache, cacheKey);
+            }
         }
     }
 
+    /**
+     * Filters an already parsed map. The document and overlay handler are only read, so they can be
+     * reused for later runs, but not by several runs at once. Nothing is saved; the result is written by
+     * writeResult().
+     *
+     * @param overlayManager handler built over document, or null if overlays are not handled
+     */
+    FilterObjects(Document document, SymbolTable symbols, OverlayHandler overlayManager, ArrayList<String> objects, boolean removeOverlays) throws ParserConfigurationException {
+        this.objects = objects;
+        this.output = null;
+        this.keepResult = true;
+        this.document = document;
+        this.symbols = symbols;
+        this.sections = StaticSections.forDocument(document);
+        this.overlayManager = overlayManager;
+        this.handleOverlays = overlayManager != null;
+        this.removeOverlays = removeOverlays;
+        this.overlaysHandled = 0;
+        this.resultMap = documentBuilder().newDocument();
+    }
+
     public FilterObjects(String chosenMapName, ArrayList<String> objects) throws ParserConfigurationException, IOException, SAXException {
         this(chosenMapName, objects, false, false);
     }
 
-    public void filterObjects() {
-        Map<String, Integer> symbolMap = new HashMap<>();
-
-        NodeList symbols = this.document.getElementsByTagName("symbol");
-        for (int i = 0; i < symbols.getLength(); i++) {
-            Node currentTag = symbols.item(i);
-
-            if (currentTag.getNodeType() == Node.ELEMENT_NODE) {
-                Element el = (Element) currentTag;
-                String name = el.getAttribute("name");
-                String id = el.getAttribute("id");
-
-                if (!name.isEmpty() && !id.isEmpty()) {
-                    try {
-                        symbolMap.put(name.toLowerCase(), Integer.parseInt(id));
-                    } catch (NumberFormatException e) {
-                        // Skip symbols with non-integer IDs
-                        continue;
-                    }
-                }
+    /**
+     * Factory for maps that FilterObjects may read from several threads at once. Xerces by default defers
+     * building nodes until they are first visited, so even reading its documents changes them; documents
+     * of this factory are built completely while parsing.
+     */
+    static DocumentBuilderFactory newDocumentBuilderFactory() {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        try {
+            factory.setFeature(DEFER_NODE_EXPANSION, false);
+        } catch (ParserConfigurationException e) {
+            // Not Xerces; isExpanded() reports that reads may not be safe
+        }
+        return factory;
+    }
+
+    private static boolean isExpanded(DocumentBuilderFactory factory) {
+        try {
+            return !factory.getFeature(DEFER_NODE_EXPANSION);
+        } catch (ParserConfigurationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses an .omap map, or rebuilds the document of a binary .omapb map.
+     */
+    static Document parseMap(File map) throws ParserConfigurationException, IOException, SAXException {
+        DocumentBuilder docBuilder = documentBuilder();
+        if (BinaryMap.isBinaryMap(map)) {
+            try (BinaryMap binaryMap = new BinaryMap(map)) {
+                return binaryMap.toDocument(docBuilder);
             }
         }
 
-        List<Integer> idsToFilter = new ArrayList<>();
-        for (String name : this.objects) {
-            if (symbolMap.containsKey(name.toLowerCase())) {
-                idsToFilter.add(symbolMap.get(name.toLowerCase()));
+        Document document = docBuilder.parse(map);
+        document.getDocumentElement().normalize();
+        return document;
+    }
+
+    static DocumentBuilder documentBuilder() throws ParserConfigurationException {
+        DocumentBuilder docBuilder = DOCUMENT_BUILDER.get();
+        if (docBuilder == null) {
+            docBuilder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();
+            DOCUMENT_BUILDER.set(docBuilder);
+        } else {
+            docBuilder.reset();
+        }
+        return docBuilder;
+    }
+
+    /**
+     * Saves the result indented with four spaces per level instead of compact. Either form opens the same
+     * in OpenOrienteering Mapper; the indented one is easier to diff.
+     */
+    public void setPrettyPrint(boolean prettyPrint) {
+        this.prettyPrint = prettyPrint;
+    }
+
+    /**
+     * Rules applied after the symbol names given to the constructor: they can filter by symbol name
+     * pattern, code, type, object type, size and region, keep objects back, and set the overlap
+     * priorities. See FilterRules for the file format.
+     */
+    public void setRules(FilterRules rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * Simplifies the kept path objects before saving, see Generalizer. targetScale is the scale the result
+     * is printed at, such as 15000 for 1:15000, or 0 for the map's own.
+     */
+    public void setGeneralization(int targetScale) {
+        this.generalize = true;
+        this.targetScale = targetScale;
+    }
+
+    /**
+     * Number of threads the overlap detection uses, by default one per available processor. Has no effect
+     * when the overlaps of the map were already identified, as for a handler shared through MapPool.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public void filterObjects() {
+        BitSet idsToFilter;
+        CompiledRules compiledRules = null;
+        SymbolTable priorities = symbols;
+
+        PipelineMetrics.Timer symbolTimer = metrics.start(PipelineMetrics.Stage.SYMBOL_MAP);
+        try (symbolTimer) {
+            if (rules == null) {
+                idsToFilter = symbols.select(this.objects);
+            } else {
+                compiledRules = FilterRules.forSymbols(this.objects).followedBy(rules).compile(symbols);
+                idsToFilter = compiledRules.filteredSymbols();
+                priorities = compiledRules.symbols();
             }
         }
 
         if (handleOverlays) {
-            overlayManager.identifyOverlays();
-            System.out.println("Found " + overlayManager.getOverlaps().size() + " overlapping objects");
+            PipelineMetrics.Timer overlapTimer = metrics.start(PipelineMetrics.Stage.OVERLAP_DETECTION);
+            try (overlapTimer) {
+                overlayManager.identifyOverlays(parallelism);
+            }
         }
 
-        filter(idsToFilter, symbols);
+        // Indices into MapObjects.of(document) of the objects removed by rules with object conditions
+        BitSet removedObjects = null;
+
+        PipelineMetrics.Timer filterTimer = metrics.start(PipelineMetrics.Stage.FILTER);
+        try (filterTimer) {
+            if (compiledRules != null && !compiledRules.isPerSymbol()) {
+                GeometryCache geometry = handleOverlays
+                        ? overlayManager.getGeometry()
+                        : new GeometryCache(MapObjects.of(this.document), symbols);
+                removedObjects = compiledRules.evaluate(geometry);
+            }
+
+            filter(idsToFilter, removedObjects);
+        }
 
         if (handleOverlays) {
             if (removeOverlays) {
-                List<Element> objectsToHide = overlayManager.getObjectsToHide();
+                List<Element> objectsToHide;
+                PipelineMetrics.Timer hideTimer = metrics.start(PipelineMetrics.Stage.HIDE_RESOLUTION);
+                try (hideTimer) {
+                    objectsToHide = overlayManager.getObjectsToHide(idsToFilter, removedObjects, priorities);
+                }
 
                 overlaysHandled = removeOverlappingObjects(objectsToHide);
+            } else if (this.resultMap.getDocumentElement() != null) {
+                saveDoc(this.resultMap, "custom_map.omap");
             }
         }
     }
 
-    private void filter(List<Integer> idsToFilter, NodeList symbols) {
-        NodeList objectNodes = this.document.getElementsByTagName("objects");
+    private void filter(BitSet idsToFilter, BitSet removedObjects) {
+        List<Element> sourcePartList = MapObjects.parts(this.document);
 
-        if (objectNodes.getLength() == 0) {
-            System.out.println("Warning: No 'objects' element found in the document");
-            return;
+        // Maps without <part>s keep their objects in a single <objects> element
+        Element looseObjects = null;
+        if (sourcePartList.isEmpty()) {
+            looseObjects = MapObjects.looseObjects(this.document);
+
+            if (looseObjects == null) {
+                System.out.println("Warning: No 'objects' element found in the document");
+                return;
+            }
+        }
+
+        Element root = appendResultRoot(this.document, this.resultMap);
+        Element parts = MapObjects.childElement(root, "parts");
+        // The source is only read here: a kept result is written later, without the caller's lock on it
+        this.sections.build();
+
+        PartCopy[] partCopies = looseObjects != null
+                ? new PartCopy[]{filterPart(null, looseObjects, 0, idsToFilter, removedObjects, this.resultMap)}
+                : filterParts(sourcePartList, idsToFilter, removedObjects);
+
+        for (PartCopy partCopy : partCopies) {
+            parts.appendChild(partCopy.part);
+            this.objsDeleted += partCopy.objsDeleted;
+            if (handleOverlays) copiedObjects.putAll(partCopy.copiedObjects);
         }
+        parts.setAttribute("count", String.valueOf(partCopies.length));
 
-        Node objectsNode = objectNodes.item(0);
-        NodeList objects = objectsNode.getChildNodes();
+        if(!handleOverlays) saveDoc(this.resultMap, "custom_map.omap");
+    }
 
-        // Root element for the result
-        Element root = this.resultMap.createElement("map");
+    /**
+     * Creates the result's <map> element in target with an empty <parts> element carrying the source's
+     * parts attributes, such as the current part, without the count. The sections around <parts> are
+     * written from StaticSections; appendStaticSections() adds them where a complete document is needed.
+     */
+    static Element appendResultRoot(Document source, Document target) {
+        Element root = target.createElement("map");
         root.setAttribute("xmlns", "http://openorienteering.org/apps/mapper/xml/v2");
         root.setAttribute("version", "9");
-        this.resultMap.appendChild(root);
+        target.appendChild(root);
+
+        Element parts = target.createElement("parts");
+        Element sourceParts = MapObjects.partsElement(source);
+        if (sourceParts != null) {
+            copyAttributes(sourceParts, parts);
+        } else {
+            parts.setAttribute("current", "0");
+        }
+        root.appendChild(parts);
+        return root;
+    }
+
+    /**
+     * Adds georeferencing, colors, barrier and symbols before the <parts> element of root, and templates
+     * and view after it.
+     */
+    static void appendStaticSections(Document source, Element root) {
+        Element parts = MapObjects.childElement(root, "parts");
+        root.removeChild(parts);
 
         // Add default tags in the beginning
-        appendGeoreferencingAndColors(root);
-        appendBarrierAndSymbols(root, symbols);
+        appendGeoreferencingAndColors(source, root);
+        appendBarrierAndSymbols(source, root);
+        root.appendChild(parts);
+        appendTemplatesAndView(source, root);
+    }
 
-        // Create parts wrapper
-        Element parts = this.resultMap.createElement("parts");
-        parts.setAttribute("count", "1");
-        parts.setAttribute("current", "0");
+    /**
+     * Filters every part, concurrently when there are several. Each worker copies its part into a scratch
+     * document of its own, as DOM documents cannot be changed from several threads; the copies are then
+     * moved into resultMap in the original order.
+     */
+    private PartCopy[] filterParts(List<Element> sourcePartList, BitSet idsToFilter, BitSet removedObjects) {
+        Element[] sourceObjects = new Element[sourcePartList.size()];
+        for (int i = 0; i < sourceObjects.length; i++) {
+            sourceObjects[i] = MapObjects.childElement(sourcePartList.get(i), "objects");
+        }
 
-        Element part = this.resultMap.createElement("part");
-        part.setAttribute("name", "default part");
+        // Index of each part's first object among the objects of all parts, for looking up removedObjects
+        int[] firstIndex = new int[sourceObjects.length];
+        for (int i = 1; removedObjects != null && i < firstIndex.length; i++) {
+            int previousCount = sourceObjects[i - 1] == null ? 0 : MapObjects.objects(sourceObjects[i - 1]).size();
+            firstIndex[i] = firstIndex[i - 1] + previousCount;
+        }
 
-        Element objectsWrapper = this.resultMap.createElement("objects");
-        int objectCount = 0;
+        if (sourcePartList.size() == 1 || !CONCURRENT_READS) {
+            PartCopy[] partCopies = new PartCopy[sourcePartList.size()];
+            for (int i = 0; i < partCopies.length; i++) {
+                partCopies[i] = filterPart(sourcePartList.get(i), sourceObjects[i], firstIndex[i], idsToFilter, removedObjects, this.resultMap);
+            }
+            return partCopies;
+        }
 
-        // Copy <object> elements
-        for (int i = 0; i < objects.getLength(); i++) {
-            Node currentTag = objects.item(i);
+        PartCopy[] partCopies = IntStream.range(0, sourcePartList.size()).parallel()
+                .mapToObj(i -> filterPart(sourcePartList.get(i), sourceObjects[i], firstIndex[i], idsToFilter, removedObjects, scratchDocument()))
+                .toArray(PartCopy[]::new);
 
-            if (currentTag.getNodeType() == Node.ELEMENT_NODE) {
-                Element el = (Element) currentTag;
+        // Adopting keeps the element identities that copiedObjects refers to
+        for (PartCopy partCopy : partCopies) {
+            this.resultMap.adoptNode(partCopy.part);
+        }
+        return partCopies;
+    }
+
+    private static Document scratchDocument() {
+        try {
+            return documentBuilder().newDocument();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Copies one part with the objects that are not filtered out into target. Only reads the source.
+     *
+     * @param sourcePart    the part to copy the attributes of, or null for a new "default part"
+     * @param sourceObjects the part's <objects> element, may be null
+     * @param firstIndex    index of the part's first object in removedObjects
+     * @param removedObjects objects removed by rules with object conditions, or null
+     */
+    private PartCopy filterPart(Element sourcePart, Element sourceObjects, int firstIndex, BitSet idsToFilter, BitSet removedObjects, Document target) {
+        Element part = target.createElement("part");
+        if (sourcePart != null) {
+            copyAttributes(sourcePart, part);
+        } else {
+            part.setAttribute("name", "default part");
+        }
+
+        PartCopy partCopy = new PartCopy(part);
+        Element objectsWrapper = target.createElement("objects");
+
+        // Copy <object> elements
+        if (sourceObjects != null) {
+            int index = firstIndex - 1;
+            for (Element el : MapObjects.objects(sourceObjects)) {
+                index++;
                 String symbolAttr = el.getAttribute("symbol");
+                metrics.increment(PipelineMetrics.Counter.OBJECTS_SCANNED);
 
                 // Skip objects with filtered symbols or empty symbol attributes
                 if (symbolAttr.isEmpty()) {
@@ -133,8 +443,8 @@ public class FilterObjects {
 
                 try {
                     int symbolId = Integer.parseInt(symbolAttr);
-                    if (idsToFilter.contains(symbolId)) {
-                        this.objsDeleted++;
+                    if ((symbolId >= 0 && idsToFilter.get(symbolId)) || (removedObjects != null && removedObjects.get(index))) {
+                        partCopy.objsDeleted++;
                         continue;
                     }
                 } catch (NumberFormatException e) {
@@ -143,55 +453,47 @@ public class FilterObjects {
                 }
 
                 // Ensure the `symbol` attribute is retained
-                Element copiedObject = (Element) this.resultMap.importNode(el, true);
+                Element copiedObject = (Element) target.importNode(el, true);
                 objectsWrapper.appendChild(copiedObject);
-                objectCount++;
+                if (handleOverlays) partCopy.copiedObjects.put(el, copiedObject);
+                partCopy.objectCount++;
             }
         }
 
-        objectsWrapper.setAttribute("count", String.valueOf(objectCount));
+        objectsWrapper.setAttribute("count", String.valueOf(partCopy.objectCount));
         part.appendChild(objectsWrapper);
-        parts.appendChild(part);
-        root.appendChild(parts);
-
-        appendTemplatesAndView(root);
+        return partCopy;
+    }
 
-        if(!handleOverlays) saveDoc(this.resultMap, "custom_map.omap");
+    static void copyAttributes(Element source, Element target) {
+        NamedNodeMap attributes = source.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Node attribute = attributes.item(i);
+            if (!attribute.getNodeName().equals("count")) {
+                target.setAttribute(attribute.getNodeName(), attribute.getNodeValue());
+            }
+        }
     }
 
     private int removeOverlappingObjects(List<Element> objectsToHide) {
         int removed = 0;
+        Map<Element, Integer> removedPerPart = new IdentityHashMap<>();
 
-        Set<String> idsToHide = new HashSet<>();
+        // Remove exactly the hidden objects; objects that were not copied (filtered out) are already gone
         for (Element element : objectsToHide) {
-            String id = element.getAttribute("symbol");
-            if (id != null && !id.isEmpty()) {
-                idsToHide.add(id);
-            }
-        }
-
-        NodeList allObjectsNodes = resultMap.getElementsByTagName("object");
-        List<Node> toRemove = new ArrayList<>();
-
-        for (int i = 0; i < allObjectsNodes.getLength(); i++) {
-            Element object = (Element) allObjectsNodes.item(i);
-            String id = object.getAttribute("symbol");
-
-            if (id != null && !id.isEmpty() && idsToHide.contains(id)) {
-                toRemove.add(object);
+            Element copy = copiedObjects.get(element);
+            if (copy != null && copy.getParentNode() != null) {
+                Element objectsWrapper = (Element) copy.getParentNode();
+                objectsWrapper.removeChild(copy);
+                removedPerPart.merge(objectsWrapper, 1, Integer::sum);
                 removed++;
             }
         }
 
-        for (Node node : toRemove) {
-            node.getParentNode().removeChild(node);
-        }
-
-        NodeList objectsWrapperList = resultMap.getElementsByTagName("objects");
-        if (objectsWrapperList.getLength() > 0) {
-            Element objectsWrapper = (Element) objectsWrapperList.item(0);
+        for (Map.Entry<Element, Integer> entry : removedPerPart.entrySet()) {
+            Element objectsWrapper = entry.getKey();
             int currentCount = Integer.parseInt(objectsWrapper.getAttribute("count"));
-            objectsWrapper.setAttribute("count", String.valueOf(currentCount - removed));
+            objectsWrapper.setAttribute("count", String.valueOf(currentCount - entry.getValue()));
         }
 
         // Save the updated document
@@ -200,52 +502,25 @@ public class FilterObjects {
         return removed;
     }
 
-    private void appendGeoreferencingAndColors(Element root) {
+    private static void appendGeoreferencingAndColors(Document source, Element root) {
+        Document target = root.getOwnerDocument();
+
         // Georeferencing
-        NodeList georeferencingNodes = this.document.getElementsByTagName("georeferencing");
+        NodeList georeferencingNodes = source.getElementsByTagName("georeferencing");
         if (georeferencingNodes.getLength() > 0) {
             Node georeferencingNode = georeferencingNodes.item(0);
-            Node importedGeoreferencing = this.resultMap.importNode(georeferencingNode, true);
+            Node importedGeoreferencing = target.importNode(georeferencingNode, true);
             root.appendChild(importedGeoreferencing);
         } else {
             System.out.println("Warning: No georeferencing element found in the document");
         }
 
         // Colors
-        Element colors = this.resultMap.createElement("colors");
-        colors.setAttribute("count", "25");
-
-        // Adding pre-defined color elements
-        String[][] colorData = {
-                {"0", "Purple", "0.2", "1", "0", "0", "PURPLE", "0.8", "0", "1"},
-                {"1", "Black", "0", "0", "0", "1", "BLACK", "0", "0", "0"},
-                {"2", "Lower Purple", "0.2", "1", "0", "0", "PURPLE", "0.8", "0", "1"},
-                {"3", "Black 70%", "0", "0", "0", "0.7", "BLACK", "0.3", "0.3", "0.3"},
-                {"4", "Brown 50%", "0", "0.28", "0.5", "0.09", "BROWN", "0.91", "0.68", "0.5"},
-                {"5", "Black below light browns", "0", "0", "0", "1", "BLACK", "0", "0", "0"},
-                {"6", "Brown", "0", "0.56", "1", "0.18", "BROWN", "0.82", "0.361", "0"},
-                {"7", "OpenOrienteering Orange", "0", "0.474", "0.895", "0.09", "ORANGE", "0.91", "0.497", "0.105"},
-                {"8", "Opaque Blue", "0.87", "0.18", "0", "0", "BLUE", "0.13", "0.82", "1"},
-                {"9", "Blue", "0.87", "0.18", "0", "0", "BLUE", "0.13", "0.82", "1"},
-                {"10", "Blue 50%", "0.435", "0.09", "0", "0", "BLUE", "0.565", "0.91", "1"},
-                {"11", "Black 30%", "0", "0", "0", "0.3", "BLACK", "0.7", "0.7", "0.7"},
-                {"12", "Green 50%, Yellow", "0.38", "0.27", "0.886", "0", "GREEN", "0.62", "0.73", "0.114"},
-                {"13", "Green over White over Green", "0.76", "0", "0.91", "0", "GREEN", "0.24", "1", "0.09"},
-                {"14", "Opaque White over Green", "0", "0", "0", "0", "WHITE", "1", "1", "1"},
-                {"15", "Yellow over Green", "0", "0.27", "0.79", "0", "YELLOW", "1", "0.73", "0.21"},
-                {"16", "Opaque Green", "0.76", "0", "0.91", "0", "GREEN", "0.24", "1", "0.09"},
-                {"17", "Green", "0.76", "0", "0.91", "0", "GREEN", "0.24", "1", "0.09"},
-                {"18", "Green 60%", "0.456", "0", "0.546", "0", "GREEN", "0.544", "1", "0.454"},
-                {"19", "Green 30%", "0.228", "0", "0.273", "0", "GREEN", "0.772", "1", "0.727"},
-                {"20", "Green below light greens", "0.76", "0", "0.91", "0", "GREEN", "0.24", "1", "0.09"},
-                {"21", "Yellow", "0", "0.27", "0.79", "0", "YELLOW", "1", "0.73", "0.21"},
-                {"22", "Yellow 50%", "0", "0.135", "0.395", "0", "YELLOW", "1", "0.865", "0.605"},
-                {"23", "White over Yellow 70%", "0", "0", "0", "0", "WHITE", "1", "1", "1"},
-                {"24", "Yellow 70%", "0", "0.189", "0.553", "0", "YELLOW", "1", "0.811", "0.447"},
-        };
-
-        for (String[] color : colorData) {
-            Element colorElement = this.resultMap.createElement("color");
+        Element colors = target.createElement("colors");
+        colors.setAttribute("count", String.valueOf(COLOR_DATA.length));
+
+        for (String[] color : COLOR_DATA) {
+            Element colorElement = target.createElement("color");
             colorElement.setAttribute("priority", color[0]);
             colorElement.setAttribute("name", color[1]);
             colorElement.setAttribute("c", color[2]);
@@ -254,15 +529,15 @@ public class FilterObjects {
             colorElement.setAttribute("k", color[5]);
             colorElement.setAttribute("opacity", "1");
 
-            Element spotColors = this.resultMap.createElement("spotcolors");
-            Element namedColor = this.resultMap.createElement("namedcolor");
+            Element spotColors = target.createElement("spotcolors");
+            Element namedColor = target.createElement("namedcolor");
             namedColor.setTextContent(color[6]);
             spotColors.appendChild(namedColor);
 
-            Element cmyk = this.resultMap.createElement("cmyk");
+            Element cmyk = target.createElement("cmyk");
             cmyk.setAttribute("method", "custom");
 
-            Element rgb = this.resultMap.createElement("rgb");
+            Element rgb = target.createElement("rgb");
             rgb.setAttribute("method", "cmyk");
             rgb.setAttribute("r", color[7]);
             rgb.setAttribute("g", color[8]);
@@ -277,32 +552,49 @@ public class FilterObjects {
         root.appendChild(colors);
     }
 
-    private void appendBarrierAndSymbols(Element root, NodeList symbols) {
-        Element barrier = this.resultMap.createElement("barrier");
+    private static void appendBarrierAndSymbols(Document source, Element root) {
+        Document target = root.getOwnerDocument();
+
+        Element barrier = target.createElement("barrier");
         barrier.setAttribute("version", "6");
         barrier.setAttribute("required", "0.6.0");
 
-        Element symbolsWrapper = this.resultMap.createElement("symbols");
-        symbolsWrapper.setAttribute("count", String.valueOf(symbols.getLength()));
+        // Only the symbol definitions directly under <symbols>; nested <symbol> parts of
+        // combined and point symbols are copied along with their parent
+        List<Node> symbols = new ArrayList<>();
+        NodeList symbolsNodes = source.getElementsByTagName("symbols");
+        if (symbolsNodes.getLength() > 0) {
+            NodeList children = symbolsNodes.item(0).getChildNodes();
+            for (int i = 0; i < children.getLength(); i++) {
+                Node child = children.item(i);
+                if (child.getNodeType() == Node.ELEMENT_NODE && child.getNodeName().equals("symbol")) {
+                    symbols.add(child);
+                }
+            }
+        }
+
+        Element symbolsWrapper = target.createElement("symbols");
+        symbolsWrapper.setAttribute("count", String.valueOf(symbols.size()));
         symbolsWrapper.setAttribute("id", "ISMTBOM");
 
         //Copy all <symbol> elements
-        for (int i = 0; i < symbols.getLength(); i++) {
-            Node symbol = symbols.item(i);
-            symbolsWrapper.appendChild(this.resultMap.importNode(symbol, true));
+        for (Node symbol : symbols) {
+            symbolsWrapper.appendChild(target.importNode(symbol, true));
         }
 
         barrier.appendChild(symbolsWrapper);
         root.appendChild(barrier);
     }
 
-    private void appendTemplatesAndView(Element root) {
+    private static void appendTemplatesAndView(Document source, Element root) {
+        Document target = root.getOwnerDocument();
+
         //Templates
-        Element templates = this.resultMap.createElement("templates");
+        Element templates = target.createElement("templates");
         templates.setAttribute("count", "1");
         templates.setAttribute("first_front_template", "1");
 
-        Element template = this.resultMap.createElement("template");
+        Element template = target.createElement("template");
         template.setAttribute("type", "OgrTemplate");
         template.setAttribute("open", "true");
         template.setAttribute("name", "map (1).osm");
@@ -311,17 +603,17 @@ public class FilterObjects {
         template.setAttribute("georef", "true");
         templates.appendChild(template);
 
-        NodeList defaultsTag = this.document.getElementsByTagName("defaults");
+        NodeList defaultsTag = source.getElementsByTagName("defaults");
         if (defaultsTag.getLength() > 0) {
             Node defaultsNode = defaultsTag.item(0);
-            templates.appendChild(this.resultMap.importNode(defaultsNode, true));
+            templates.appendChild(target.importNode(defaultsNode, true));
         }
         root.appendChild(templates);
 
         //View part
-        Element view = this.resultMap.createElement("view");
+        Element view = target.createElement("view");
 
-        Element grid = this.resultMap.createElement("grid");
+        Element grid = target.createElement("grid");
         grid.setAttribute("color", "#646464");
         grid.setAttribute("display", "0");
         grid.setAttribute("alignment", "0");
@@ -334,20 +626,20 @@ public class FilterObjects {
         grid.setAttribute("snapping_enabled", "true");
         view.appendChild(grid);
 
-        Element mapView = this.resultMap.createElement("map_view");
+        Element mapView = target.createElement("map_view");
         mapView.setAttribute("zoom", "1.41421");
         mapView.setAttribute("position_x", "867");
         mapView.setAttribute("position_y", "-10751");
 
-        Element map = this.resultMap.createElement("map");
+        Element map = target.createElement("map");
         map.setAttribute("opacity", "1");
         map.setAttribute("visible", "true");
         mapView.appendChild(map);
 
-        Element templatesRef = this.resultMap.createElement("templates");
+        Element templatesRef = target.createElement("templates");
         templatesRef.setAttribute("count", "1");
 
-        Element refTemplate = this.resultMap.createElement("ref");
+        Element refTemplate = target.createElement("ref");
         refTemplate.setAttribute("template", "0");
         refTemplate.setAttribute("opacity", "1");
         templatesRef.appendChild(refTemplate);
@@ -357,23 +649,96 @@ public class FilterObjects {
         root.appendChild(view);
     }
 
-    public Map<String, Integer> getSymbolPriorities() {
-        if (overlayManager != null) {
-            return overlayManager.getSymbolPriorities();
-        }
-        return new HashMap<>();
+    /**
+     * Timings and counters of this run; use toJson() for a machine readable dump.
+     */
+    public PipelineMetrics getMetrics() {
+        return metrics;
     }
 
-    private void saveDoc(Document document, String fileName) {
-        try {
-            TransformerFactory transformerFactory = TransformerFactory.newInstance();
-            Transformer transformer = transformerFactory.newTransformer();
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            DOMSource source = new DOMSource(document);
-            StreamResult result = new StreamResult(new File("RP\\src\\maps\\", fileName));
-            transformer.transform(source, result);
+    /**
+     * The result as built by appendResultRoot(): objects only, without the static sections.
+     */
+    Document getResultMap() {
+        return resultMap;
+    }
+
+    public SymbolTable getSymbolTable() {
+        return symbols;
+    }
+
+    void saveDoc(Document document, String fileName) {
+        if (generalize) generalize(document);
+
+        if (keepResult) {
+            this.keptResult = document;
+            return;
+        }
+
+        // An output name ending in .gz is written gzip-compressed, one ending in .omapb as a binary map
+        File target = this.output != null ? this.output : new File("RP\\src\\maps\\", fileName);
+
+        PipelineMetrics.Timer saveTimer = metrics.start(PipelineMetrics.Stage.SAVE);
+        try (saveTimer) {
+            if (BinaryMap.isBinaryMap(target)) {
+                appendStaticSections(this.document, document.getDocumentElement());
+                BinaryMap.write(document, target);
+            } else {
+                try (OmapWriter writer = OmapWriter.open(target, prettyPrint)) {
+                    writeResultDocument(writer, document);
+                }
+            }
+            metrics.add(PipelineMetrics.Counter.BYTES_WRITTEN, target.length());
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    private void generalize(Document document) {
+        PipelineMetrics.Timer generalizeTimer = metrics.start(PipelineMetrics.Stage.GENERALIZE);
+        try (generalizeTimer) {
+            Generalizer generalizer = new Generalizer(symbols, Generalizer.mapScale(this.document), targetScale);
+            generalizer.generalize(MapObjects.of(document));
+
+            metrics.add(PipelineMetrics.Counter.VERTICES_REMOVED, generalizer.verticesRemoved);
+            metrics.add(PipelineMetrics.Counter.BYTES_SAVED, generalizer.bytesSaved);
+        }
+    }
+
+    /**
+     * Writes a result built by appendResultRoot(), with the static sections spliced in around <parts>;
+     * the same bytes as writeDocument() on the complete document.
+     */
+    private void writeResultDocument(OmapWriter writer, Document result) throws IOException {
+        Element root = result.getDocumentElement();
+
+        writer.writeDeclaration();
+        writer.start(root);
+        writer.bytes(sections.head(prettyPrint));
+        writer.node(MapObjects.childElement(root, "parts"));
+        writer.bytes(sections.tail(prettyPrint));
+        writer.end();
+        writer.text("\n");
+    }
+
+    boolean hasResult() {
+        return keptResult != null;
+    }
+
+    /**
+     * Writes the result of filterObjects() on a map created with keepResult to out, without closing it.
+     */
+    void writeResult(OutputStream out) throws IOException {
+        if (keptResult == null) {
+            throw new IllegalStateException("No result; filterObjects() has not run or produced no map");
+        }
+
+        PipelineMetrics.Timer saveTimer = metrics.start(PipelineMetrics.Stage.SAVE);
+        try (saveTimer) {
+            OmapWriter writer = new OmapWriter(out, prettyPrint);
+            writeResultDocument(writer, keptResult);
+            writer.flush();
+            metrics.add(PipelineMetrics.Counter.BYTES_WRITTEN, writer.bytesWritten());
+        }
+    }
 }
\ No newline at end of file
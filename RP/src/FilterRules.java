@@ -0,0 +1,299 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Filter and priority rules read from a rule file. The rules name no symbol ids, so one file serves every
+ * map; compile() resolves them against the symbols of one map.
+ *
+ * Each line is one rule: an action, '|', and conditions separated by ';'. Conditions on different
+ * properties must all hold; repeating a property lists alternatives, any of which may hold.
+ *     filter       | name=*tower*
+ *     filter       | code=5; object=point; size<1500
+ *     keep         | region=0,0,20000,20000
+ *     priority 90  | name=*building*; name=*tower*
+ *     small        | symbol=point
+ *     not-small    | code=526
+ * Symbol conditions:
+ *     name=PATTERN   symbol name, case-insensitive; '*' matches any text and '?' one character
+ *     code=PREFIX    ISOM code starting with PREFIX, so code=52 matches 521 and 526.1
+ *     symbol=TYPE    point, line, area, text, combined or the numeric type
+ * Object conditions:
+ *     object=TYPE    point, path, text or the numeric type
+ *     size<N, size>N, size<=N, size>=N
+ *                    longer side of the object's bounding box, including the drawn line width, in map
+ *                    units (1/1000 mm)
+ *     region=MINX,MINY,MAXX,MAXY
+ *                    the bounding box intersects the rectangle
+ * Actions filter and keep remove and restore matching objects; priority N, small and not-small set the
+ * overlap priority and small-object flag of matching symbols, so they only take symbol conditions. A
+ * later rule overrides an earlier one. Symbols no priority or small rule matches keep the defaults of
+ * SymbolTable. Blank lines and lines starting with '#' are ignored.
+ */
+public class FilterRules {
+    public enum Action {FILTER, KEEP, PRIORITY, SMALL, NOT_SMALL}
+
+    static final int[] SYMBOL_TYPES = {1, 2, 4, 8, 16};
+    static final String[] SYMBOL_TYPE_NAMES = {"point", "line", "area", "text", "combined"};
+    static final int[] OBJECT_TYPES = {0, 1, 4};
+    static final String[] OBJECT_TYPE_NAMES = {"point", "path", "text"};
+
+    /**
+     * One parsed rule. Empty lists and zero masks mean the property is not restricted.
+     */
+    static class Rule {
+        final int line;
+        final Action action;
+        final int priority;
+        final List<Pattern> names = new ArrayList<>();
+        final List<String> codePrefixes = new ArrayList<>();
+        int symbolTypes;
+        int objectTypes;
+        long minSize = Long.MIN_VALUE;
+        long maxSize = Long.MAX_VALUE;
+        final List<int[]> regions = new ArrayList<>();
+
+        Rule(int line, Action action, int priority) {
+            this.line = line;
+            this.action = action;
+            this.priority = priority;
+        }
+
+        boolean hasSymbolConditions() {
+            return !names.isEmpty() || !codePrefixes.isEmpty() || symbolTypes != 0;
+        }
+
+        boolean hasGeometryConditions() {
+            return minSize != Long.MIN_VALUE || maxSize != Long.MAX_VALUE || !regions.isEmpty();
+        }
+
+        boolean hasObjectConditions() {
+            return objectTypes != 0 || hasGeometryConditions();
+        }
+    }
+
+    private final List<Rule> rules;
+
+    private FilterRules(List<Rule> rules) {
+        this.rules = rules;
+    }
+
+    public static FilterRules load(File file) throws IOException {
+        return parse(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8), file.getName());
+    }
+
+    /**
+     * @param source name used in error messages, such as the file name
+     */
+    public static FilterRules parse(List<String> lines, String source) throws IOException {
+        List<Rule> rules = new ArrayList<>();
+        int lineNumber = 0;
+
+        for (String line : lines) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            int separator = line.indexOf('|');
+            if (separator < 0) {
+                throw new IOException(source + " line " + lineNumber + ": expected an action and conditions separated by '|'");
+            }
+
+            Rule rule = parseAction(line.substring(0, separator).trim(), source, lineNumber);
+            for (String condition : line.substring(separator + 1).split(";")) {
+                if (!condition.trim().isEmpty()) parseCondition(rule, condition.trim(), source, lineNumber);
+            }
+
+            if (rule.hasObjectConditions() && rule.action != Action.FILTER && rule.action != Action.KEEP) {
+                throw new IOException(source + " line " + lineNumber + ": " + rule.action.name().toLowerCase().replace('_', '-')
+                        + " applies to whole symbols and cannot use object conditions");
+            }
+
+            rules.add(rule);
+        }
+
+        return new FilterRules(rules);
+    }
+
+    /**
+     * Rules filtering exactly the named symbols, matched case-insensitively like SymbolTable.select().
+     */
+    public static FilterRules forSymbols(Collection<String> names) {
+        List<Rule> rules = new ArrayList<>();
+
+        for (String name : names) {
+            Rule rule = new Rule(0, Action.FILTER, 0);
+            rule.names.add(Pattern.compile(Pattern.quote(name), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE));
+            rules.add(rule);
+        }
+
+        return new FilterRules(rules);
+    }
+
+    /**
+     * These rules followed by the other ones, which override them where both match.
+     */
+    public FilterRules followedBy(FilterRules other) {
+        List<Rule> combined = new ArrayList<>(rules);
+        combined.addAll(other.rules);
+        return new FilterRules(combined);
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    List<Rule> rules() {
+        return rules;
+    }
+
+    /**
+     * Resolves the rules against the symbols of one map. The result only holds bitsets and tables over
+     * symbol ids and numeric bounds, so evaluating it does no string work.
+     */
+    public CompiledRules compile(SymbolTable symbols) {
+        return new CompiledRules(this, symbols);
+    }
+
+    private static Rule parseAction(String action, String source, int lineNumber) throws IOException {
+        String[] words = action.toLowerCase().split("\\s+");
+
+        switch (words[0]) {
+            case "filter":
+                if (words.length == 1) return new Rule(lineNumber, Action.FILTER, 0);
+                break;
+            case "keep":
+                if (words.length == 1) return new Rule(lineNumber, Action.KEEP, 0);
+                break;
+            case "small":
+                if (words.length == 1) return new Rule(lineNumber, Action.SMALL, 0);
+                break;
+            case "not-small":
+                if (words.length == 1) return new Rule(lineNumber, Action.NOT_SMALL, 0);
+                break;
+            case "priority":
+                if (words.length != 2) break;
+                try {
+                    int priority = Integer.parseInt(words[1]);
+                    if (priority >= 0 && priority <= 100) return new Rule(lineNumber, Action.PRIORITY, priority);
+                } catch (NumberFormatException e) {
+                    // Reported below
+                }
+                throw new IOException(source + " line " + lineNumber + ": priority must be a number from 0 to 100, got '" + words[1] + "'");
+            default:
+                break;
+        }
+
+        throw new IOException(source + " line " + lineNumber + ": unknown action '" + action + "'");
+    }
+
+    private static void parseCondition(Rule rule, String condition, String source, int lineNumber) throws IOException {
+        int operatorStart = indexOfAny(condition, "=<>");
+        if (operatorStart <= 0) {
+            throw new IOException(source + " line " + lineNumber + ": expected a condition such as name=..., got '" + condition + "'");
+        }
+
+        int valueStart = operatorStart + 1;
+        if (valueStart < condition.length() && condition.charAt(valueStart) == '=') valueStart++;
+
+        String property = condition.substring(0, operatorStart).trim().toLowerCase();
+        String operator = condition.substring(operatorStart, valueStart);
+        String value = condition.substring(valueStart).trim();
+
+        if (!property.equals("size") && !operator.equals("=")) {
+            throw new IOException(source + " line " + lineNumber + ": " + property + " only takes '=', got '" + condition + "'");
+        }
+
+        switch (property) {
+            case "name":
+                rule.names.add(globPattern(value));
+                break;
+            case "code":
+                rule.codePrefixes.add(value.endsWith("*") ? value.substring(0, value.length() - 1) : value);
+                break;
+            case "symbol":
+                rule.symbolTypes |= type(value, SYMBOL_TYPES, SYMBOL_TYPE_NAMES, source, lineNumber);
+                break;
+            case "object":
+                rule.objectTypes |= 1 << type(value, OBJECT_TYPES, OBJECT_TYPE_NAMES, source, lineNumber);
+                break;
+            case "size":
+                long size = parseLong(value, source, lineNumber);
+                switch (operator) {
+                    case "<":
+                        rule.maxSize = Math.min(rule.maxSize, size - 1);
+                        break;
+                    case "<=":
+                        rule.maxSize = Math.min(rule.maxSize, size);
+                        break;
+                    case ">":
+                        rule.minSize = Math.max(rule.minSize, size + 1);
+                        break;
+                    case ">=":
+                        rule.minSize = Math.max(rule.minSize, size);
+                        break;
+                    default:
+                        throw new IOException(source + " line " + lineNumber + ": size takes <, <=, > or >=, got '" + condition + "'");
+                }
+                break;
+            case "region":
+                String[] bounds = value.split(",");
+                if (bounds.length != 4) {
+                    throw new IOException(source + " line " + lineNumber + ": region takes MINX,MINY,MAXX,MAXY, got '" + value + "'");
+                }
+                int[] region = new int[4];
+                for (int i = 0; i < 4; i++) {
+                    region[i] = (int) parseLong(bounds[i].trim(), source, lineNumber);
+                }
+                rule.regions.add(region);
+                break;
+            default:
+                throw new IOException(source + " line " + lineNumber + ": unknown property '" + property + "'");
+        }
+    }
+
+    private static int indexOfAny(String text, String characters) {
+        for (int i = 0; i < text.length(); i++) {
+            if (characters.indexOf(text.charAt(i)) >= 0) return i;
+        }
+        return -1;
+    }
+
+    private static Pattern globPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int literalStart = 0;
+
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c != '*' && c != '?') continue;
+
+            if (i > literalStart) regex.append(Pattern.quote(glob.substring(literalStart, i)));
+            regex.append(c == '*' ? ".*" : ".");
+            literalStart = i + 1;
+        }
+        if (literalStart < glob.length()) regex.append(Pattern.quote(glob.substring(literalStart)));
+
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL);
+    }
+
+    /**
+     * A numeric type, or the type of the given name; for symbols the result is the type itself, which is
+     * a single bit, for objects it is the type number.
+     */
+    private static int type(String value, int[] types, String[] names, String source, int lineNumber) throws IOException {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equalsIgnoreCase(value) || String.valueOf(types[i]).equals(value)) return types[i];
+        }
+        throw new IOException(source + " line " + lineNumber + ": unknown type '" + value + "', expected one of " + String.join(", ", names));
+    }
+
+    private static long parseLong(String value, String source, int lineNumber) throws IOException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException(source + " line " + lineNumber + ": expected a whole number in map units, got '" + value + "'");
+        }
+    }
+}
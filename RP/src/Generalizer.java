@@ -0,0 +1,241 @@
+import org.w3c.dom.*;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Drops vertices of path objects that make no visible difference in print, with Douglas-Peucker on
+ * every straight run of points. Objects are simplified in parallel; the document is only changed
+ * afterwards, from one thread.
+ *
+ * The tolerance of a symbol is a quarter of its drawn line width and at least MIN_TOLERANCE, in map units
+ * (1/1000 mm on paper). For a result printed at a smaller scale than the map's, it grows by the ratio of
+ * the two scales.
+ *
+ * Some points are never removed: the ends of every part, points with any flag (curves with their control
+ * points, close, hole, dash and gap points) and points that occur more than once among all path objects.
+ * The last rule keeps edges shared by several objects, such as the common border of two areas, identical
+ * in all of them.
+ */
+public class Generalizer {
+    // 0.05 mm, below what print resolves
+    static final int MIN_TOLERANCE = 50;
+    private static final double LINE_WIDTH_FRACTION = 0.25;
+
+    private final SymbolTable symbols;
+    private final double scaleFactor;
+    public int verticesRemoved;
+    public long bytesSaved;
+
+    /**
+     * @param mapScale    scale of the map, such as 10000 for 1:10000; see mapScale()
+     * @param targetScale scale the result is printed at, 0 for the map's own
+     */
+    public Generalizer(SymbolTable symbols, int mapScale, int targetScale) {
+        this.symbols = symbols;
+        this.scaleFactor = mapScale > 0 && targetScale > mapScale ? (double) targetScale / mapScale : 1;
+    }
+
+    /**
+     * The scale attribute of the map's georeferencing, 0 if it has none.
+     */
+    public static int mapScale(Document document) {
+        NodeList georeferencing = document.getElementsByTagName("georeferencing");
+        if (georeferencing.getLength() == 0) return 0;
+
+        try {
+            return Integer.parseInt(((Element) georeferencing.item(0)).getAttribute("scale"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    double tolerance(int symbolId) {
+        return Math.max(MIN_TOLERANCE, symbols.lineWidth(symbolId) * LINE_WIDTH_FRACTION) * scaleFactor;
+    }
+
+    /**
+     * Simplifies the path objects among objects in place, rewriting their coords text and count.
+     */
+    public void generalize(NodeList objects) {
+        GeometryCache geometry = new GeometryCache(objects);
+        int count = geometry.size();
+        long[] shared = sharedPoints(geometry);
+
+        String[] simplified = new String[count];
+        int[] keptCounts = new int[count];
+        IntStream.range(0, count).parallel().forEach(i -> {
+            if (geometry.type(i) == 1) simplified[i] = simplify(geometry, i, shared, keptCounts);
+        });
+
+        for (int i = 0; i < count; i++) {
+            if (simplified[i] == null) continue;
+
+            Element coords = coordsElement(geometry.element(i));
+            bytesSaved += coords.getTextContent().length() - simplified[i].length();
+            verticesRemoved += geometry.vertexCount(i) - keptCounts[i];
+
+            coords.setTextContent(simplified[i]);
+            coords.setAttribute("count", String.valueOf(keptCounts[i]));
+        }
+    }
+
+    /**
+     * Points of path objects that occur more than once, as sorted keys.
+     */
+    private static long[] sharedPoints(GeometryCache geometry) {
+        int total = 0;
+        for (int i = 0; i < geometry.size(); i++) {
+            if (geometry.type(i) == 1) total += geometry.vertexCount(i);
+        }
+
+        long[] keys = new long[total];
+        int k = 0;
+        for (int i = 0; i < geometry.size(); i++) {
+            if (geometry.type(i) != 1) continue;
+            for (int v = 0; v < geometry.vertexCount(i); v++) {
+                keys[k++] = key(geometry.x(i, v), geometry.y(i, v));
+            }
+        }
+        Arrays.parallelSort(keys);
+
+        int sharedCount = 0;
+        for (int j = 1; j < keys.length; j++) {
+            if (keys[j] == keys[j - 1] && (sharedCount == 0 || keys[sharedCount - 1] != keys[j])) {
+                keys[sharedCount++] = keys[j];
+            }
+        }
+        return Arrays.copyOf(keys, sharedCount);
+    }
+
+    private static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    /**
+     * The coords text of the simplified object, or null if no point can be removed.
+     */
+    private String simplify(GeometryCache geometry, int object, long[] shared, int[] keptCounts) {
+        int n = geometry.vertexCount(object);
+        if (n < 3) return null;
+
+        int symbolId = geometry.symbolId(object);
+        double tolerance = tolerance(symbolId);
+        boolean line = symbols.lineWidth(symbolId) > 0 || symbols.type(symbolId) == 2;
+        boolean[] keep = new boolean[n];
+
+        int partStart = 0;
+        for (int v = 0; v < n; v++) {
+            int flags = geometry.flags(object, v);
+            boolean partEnd = (flags & GeometryCache.HOLE_POINT) != 0 || v == n - 1;
+
+            if (flags != 0 || v == partStart || partEnd
+                    || Arrays.binarySearch(shared, key(geometry.x(object, v), geometry.y(object, v))) >= 0) {
+                keep[v] = true;
+            }
+            if ((flags & GeometryCache.CURVE_START) != 0) {
+                for (int c = v + 1; c <= Math.min(v + 3, n - 1); c++) keep[c] = true;
+            }
+
+            if (partEnd) {
+                simplifyPart(geometry, object, partStart, v, tolerance * tolerance, line, keep);
+                partStart = v + 1;
+            }
+        }
+
+        int kept = 0;
+        for (boolean k : keep) {
+            if (k) kept++;
+        }
+        if (kept == n) return null;
+
+        StringBuilder text = new StringBuilder(kept * 14);
+        for (int v = 0; v < n; v++) {
+            if (!keep[v]) continue;
+
+            text.append(geometry.x(object, v)).append(' ').append(geometry.y(object, v));
+            int flags = geometry.flags(object, v);
+            if (flags != 0) text.append(' ').append(flags);
+            text.append(';');
+        }
+
+        keptCounts[object] = kept;
+        return text.toString();
+    }
+
+    /**
+     * Runs Douglas-Peucker between every two kept points of the part first .. last. A part left too
+     * small to keep its shape, fewer than four points for a ring or three for an area, is kept whole.
+     */
+    private static void simplifyPart(GeometryCache geometry, int object, int first, int last, double toleranceSquared, boolean line, boolean[] keep) {
+        int anchor = first;
+        for (int v = first + 1; v <= last; v++) {
+            if (!keep[v]) continue;
+            if (v - anchor > 1) douglasPeucker(geometry, object, anchor, v, toleranceSquared, keep);
+            anchor = v;
+        }
+
+        boolean ring = geometry.x(object, first) == geometry.x(object, last) && geometry.y(object, first) == geometry.y(object, last);
+        int minimum = ring ? 4 : line ? 2 : 3;
+        int original = last - first + 1;
+
+        int kept = 0;
+        for (int v = first; v <= last; v++) {
+            if (keep[v]) kept++;
+        }
+        if (kept < Math.min(minimum, original)) {
+            for (int v = first; v <= last; v++) keep[v] = true;
+        }
+    }
+
+    private static void douglasPeucker(GeometryCache geometry, int object, int start, int end, double toleranceSquared, boolean[] keep) {
+        int[] stack = new int[64];
+        int size = 0;
+        stack[size++] = start;
+        stack[size++] = end;
+
+        while (size > 0) {
+            int to = stack[--size];
+            int from = stack[--size];
+
+            int farthest = -1;
+            double farthestDistance = toleranceSquared;
+            for (int v = from + 1; v < to; v++) {
+                double distance = segmentDistanceSquared(geometry, object, v, from, to);
+                if (distance > farthestDistance) {
+                    farthest = v;
+                    farthestDistance = distance;
+                }
+            }
+            if (farthest < 0) continue;
+
+            keep[farthest] = true;
+            if (size + 4 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+            if (farthest - from > 1) {
+                stack[size++] = from;
+                stack[size++] = farthest;
+            }
+            if (to - farthest > 1) {
+                stack[size++] = farthest;
+                stack[size++] = to;
+            }
+        }
+    }
+
+    /**
+     * Squared distance of point v from the segment between points a and b.
+     */
+    private static double segmentDistanceSquared(GeometryCache geometry, int object, int v, int a, int b) {
+        double px = geometry.x(object, v), py = geometry.y(object, v);
+        double ax = geometry.x(object, a), ay = geometry.y(object, a);
+        double dx = geometry.x(object, b) - ax, dy = geometry.y(object, b) - ay;
+
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / lengthSquared));
+        double ex = px - (ax + t * dx), ey = py - (ay + t * dy);
+        return ex * ex + ey * ey;
+    }
+
+    private static Element coordsElement(Element object) {
+        return MapObjects.childElement(object, "coords");
+    }
+}
@@ -0,0 +1,402 @@
+import org.w3c.dom.*;
+import java.awt.BasicStroke;
+import java.awt.geom.Area;
+import java.awt.geom.Path2D;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Parsed geometry of a list of map objects. Every object's <coords> text is parsed exactly once
+ * into flat primitive arrays; the java.awt Area used for intersection tests is built on first use.
+ *
+ * Shapes follow the point flags of OpenOrienteering Mapper: an object is one or more parts, each ending
+ * at a HOLE_POINT (or the last point); the parts after the first are holes of an area. A CURVE_START
+ * point begins a cubic bezier whose next two points are control points. Areas are always closed, lines
+ * only where their part ends with a CLOSE_POINT.
+ */
+public class GeometryCache {
+    public static final int NO_SYMBOL = -1;
+
+    // Point flags, as in Mapper's MapCoord
+    public static final int CURVE_START = 1;
+    public static final int CLOSE_POINT = 2;
+    public static final int GAP_POINT = 4;
+    public static final int HOLE_POINT = 16;
+    public static final int DASH_POINT = 32;
+
+    // Width given to lines whose symbol draws no stroke of its own, such as course lines made of mid
+    // symbols, so that they still overlap as lines rather than as the polygon of their points
+    private static final int HAIRLINE_WIDTH = 1;
+
+    private final Element[] elements;
+    private final Map<Element, Integer> indexByElement;
+    private final int[] symbolIds;
+    private final int[] types;
+
+    // Vertices of object i are offsets[i] .. offsets[i + 1] - 1
+    private final int[] offsets;
+    private int[] coords;
+    private byte[] flags;
+
+    // minX, minY, maxX, maxY per object
+    private final int[] envelopes;
+    // Drawn width of objects with line symbols, 0 for everything else
+    private final int[] lineWidths;
+    private final Area[] areas;
+    // Scratch copy of the coords text being tokenized
+    private char[] chars = new char[256];
+
+    public GeometryCache(NodeList objects) {
+        this(objects, (SymbolTable) null);
+    }
+
+    /**
+     * @param symbols symbol table giving the drawn width of line symbols; objects with those symbols are
+     *                treated as lines of that width instead of as polygons. May be null.
+     */
+    public GeometryCache(NodeList objects, SymbolTable symbols) {
+        int count = objects.getLength();
+
+        this.elements = new Element[count];
+        this.indexByElement = new IdentityHashMap<>(count * 2);
+        this.symbolIds = new int[count];
+        this.types = new int[count];
+        this.offsets = new int[count + 1];
+        this.coords = new int[Math.max(16, count * 16)];
+        this.flags = new byte[Math.max(8, count * 8)];
+        this.envelopes = new int[count * 4];
+        this.lineWidths = new int[count];
+        this.areas = new Area[count];
+
+        for (int i = 0; i < count; i++) {
+            Element object = (Element) objects.item(i);
+            elements[i] = object;
+            indexByElement.put(object, i);
+            symbolIds[i] = parseIntAttribute(object, "symbol", NO_SYMBOL);
+            types[i] = parseIntAttribute(object, "type", 0);
+            lineWidths[i] = lineWidth(symbols, symbolIds[i]);
+
+            offsets[i + 1] = parseCoords(object, offsets[i]);
+            computeEnvelope(i);
+        }
+    }
+
+    private GeometryCache(NodeList objects, DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count != objects.getLength()) {
+            throw new IOException("cached geometry has " + count + " objects, document has " + objects.getLength());
+        }
+
+        this.elements = new Element[count];
+        this.indexByElement = new IdentityHashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            elements[i] = (Element) objects.item(i);
+            indexByElement.put(elements[i], i);
+        }
+
+        this.symbolIds = readInts(in, count);
+        this.types = readInts(in, count);
+        this.lineWidths = readInts(in, count);
+        this.offsets = readInts(in, count + 1);
+        if (offsets[0] != 0 || offsets[count] < 0) {
+            throw new IOException("corrupt vertex offsets");
+        }
+        this.envelopes = readInts(in, count * 4);
+        this.coords = readInts(in, offsets[count] * 2);
+        this.flags = new byte[offsets[count]];
+        in.readFully(flags);
+        this.areas = new Area[count];
+    }
+
+    /**
+     * Reads geometry written by writeTo() and attaches it to the given object elements, which must be
+     * the same objects in the same order the geometry was built from.
+     */
+    public static GeometryCache readFrom(DataInput in, NodeList objects) throws IOException {
+        return new GeometryCache(objects, in);
+    }
+
+    /**
+     * Writes everything except the elements and the Area cache.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        int count = elements.length;
+        out.writeInt(count);
+        writeInts(out, symbolIds, count);
+        writeInts(out, types, count);
+        writeInts(out, lineWidths, count);
+        writeInts(out, offsets, count + 1);
+        writeInts(out, envelopes, count * 4);
+        writeInts(out, coords, offsets[count] * 2);
+        out.write(flags, 0, offsets[count]);
+    }
+
+    // Arrays go through a byte buffer in bulk; DataInput.readInt() per value is several times slower
+    static int[] readInts(DataInput in, int length) throws IOException {
+        byte[] bytes = new byte[length * 4];
+        in.readFully(bytes);
+
+        int[] values = new int[length];
+        ByteBuffer.wrap(bytes).asIntBuffer().get(values);
+        return values;
+    }
+
+    static void writeInts(DataOutput out, int[] values, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(length * 4);
+        bytes.asIntBuffer().put(values, 0, length);
+        out.write(bytes.array());
+    }
+
+    private static int lineWidth(SymbolTable symbols, int symbolId) {
+        if (symbols == null) return 0;
+
+        int width = symbols.lineWidth(symbolId);
+        return width == 0 && symbols.type(symbolId) == 2 ? HAIRLINE_WIDTH : width;
+    }
+
+    private static int parseIntAttribute(Element object, String name, int fallback) {
+        String value = object.getAttribute(name);
+        if (value.isEmpty()) return fallback;
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private int parseCoords(Element object, int vertex) {
+        Element coordsElement = coordsElement(object);
+        if (coordsElement == null) return vertex;
+
+        // A coords element holds one text node; reading it directly avoids building a copy
+        Node textNode = coordsElement.getFirstChild();
+        if (textNode == null) return vertex;
+        String text = textNode.getNextSibling() == null ? textNode.getNodeValue() : coordsElement.getTextContent();
+
+        int length = text.length();
+        if (length > chars.length) chars = new char[Math.max(length, chars.length * 2)];
+        text.getChars(0, length, chars, 0);
+        return tokenize(chars, length, vertex);
+    }
+
+    private static Element coordsElement(Element object) {
+        for (Node child = object.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && child.getNodeName().equals("coords")) return (Element) child;
+        }
+        return null;
+    }
+
+    /**
+     * Reads the points of a coords text, "x y[ flags];" each, into coords and flags starting at vertex,
+     * in a single pass over text[0, length). Returns the index after the last point. Entries with one
+     * number or with anything but digits, signs and whitespace are skipped.
+     */
+    private int tokenize(char[] text, int length, int vertex) {
+        int pos = 0;
+
+        while (pos < length) {
+            int entryStart = pos;
+            int count = 0;
+            int x = 0, y = 0, pointFlags = 0;
+            boolean malformed = false;
+
+            while (true) {
+                char c;
+                while (pos < length && ((c = text[pos]) == ' ' || c == '\n' || c == '\r' || c == '\t')) pos++;
+                if (pos == length || text[pos] == ';') break;
+
+                boolean negative = text[pos] == '-';
+                if (negative || text[pos] == '+') pos++;
+
+                int digitsStart = pos;
+                int value = 0;
+                while (pos < length && (c = text[pos]) >= '0' && c <= '9') {
+                    value = value * 10 + (c - '0');
+                    pos++;
+                }
+
+                if (pos == digitsStart || (pos < length && (c = text[pos]) != ' ' && c != ';' && c != '\n' && c != '\r' && c != '\t')) {
+                    malformed = true;
+                    while (pos < length && text[pos] != ';') pos++;
+                    break;
+                }
+
+                if (negative) value = -value;
+                if (count == 0) x = value;
+                else if (count == 1) y = value;
+                else if (count == 2) pointFlags = value;
+                count++;
+            }
+
+            if (!malformed && count >= 2) {
+                ensureCapacity(vertex + 1);
+                coords[vertex * 2] = x;
+                coords[vertex * 2 + 1] = y;
+                flags[vertex] = count > 2 ? (byte) pointFlags : 0;
+                vertex++;
+            } else if (malformed || count == 1) {
+                System.err.println("Skipping invalid coordinate: " + new String(text, entryStart, pos - entryStart).trim());
+            }
+
+            // Past the ';'
+            pos++;
+        }
+
+        return vertex;
+    }
+
+    private void ensureCapacity(int vertices) {
+        if (vertices * 2 > coords.length) {
+            coords = Arrays.copyOf(coords, Math.max(vertices * 2, coords.length * 2));
+        }
+        if (vertices > flags.length) {
+            flags = Arrays.copyOf(flags, Math.max(vertices, flags.length * 2));
+        }
+    }
+
+    private void computeEnvelope(int object) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+
+        for (int v = offsets[object]; v < offsets[object + 1]; v++) {
+            minX = Math.min(minX, coords[v * 2]);
+            minY = Math.min(minY, coords[v * 2 + 1]);
+            maxX = Math.max(maxX, coords[v * 2]);
+            maxY = Math.max(maxY, coords[v * 2 + 1]);
+        }
+
+        // Lines are buffered by half their width on every side
+        int margin = (lineWidths[object] + 1) / 2;
+        envelopes[object * 4] = minX - margin;
+        envelopes[object * 4 + 1] = minY - margin;
+        envelopes[object * 4 + 2] = maxX + margin;
+        envelopes[object * 4 + 3] = maxY + margin;
+    }
+
+    public int size() {
+        return elements.length;
+    }
+
+    public Element element(int object) {
+        return elements[object];
+    }
+
+    public int indexOf(Element element) {
+        return indexByElement.getOrDefault(element, -1);
+    }
+
+    public int symbolId(int object) {
+        return symbolIds[object];
+    }
+
+    public int type(int object) {
+        return types[object];
+    }
+
+    public boolean hasGeometry(int object) {
+        return offsets[object + 1] > offsets[object];
+    }
+
+    public int vertexCount(int object) {
+        return offsets[object + 1] - offsets[object];
+    }
+
+    public int x(int object, int vertex) {
+        return coords[(offsets[object] + vertex) * 2];
+    }
+
+    public int y(int object, int vertex) {
+        return coords[(offsets[object] + vertex) * 2 + 1];
+    }
+
+    public int flags(int object, int vertex) {
+        return flags[offsets[object] + vertex] & 0xFF;
+    }
+
+    public int minX(int object) {
+        return envelopes[object * 4];
+    }
+
+    public int minY(int object) {
+        return envelopes[object * 4 + 1];
+    }
+
+    public int maxX(int object) {
+        return envelopes[object * 4 + 2];
+    }
+
+    public int maxY(int object) {
+        return envelopes[object * 4 + 3];
+    }
+
+    /**
+     * The outline of the object as an area: every part closed, holes cut out by the even-odd rule.
+     */
+    public Path2D path(int object) {
+        return hasGeometry(object) ? buildPath(object, true) : null;
+    }
+
+    /**
+     * The centre line of the object as drawn by a line symbol: parts stay open unless they end with a
+     * CLOSE_POINT.
+     */
+    public Path2D centreLine(int object) {
+        return hasGeometry(object) ? buildPath(object, false) : null;
+    }
+
+    private Path2D buildPath(int object, boolean area) {
+        return buildPath(coords, flags, offsets[object], offsets[object + 1], area);
+    }
+
+    /**
+     * Path through points start .. end - 1 of coords, given as x, y pairs, with their point flags. With
+     * area set every part is closed and holes are cut out by the even-odd rule.
+     */
+    static Path2D buildPath(int[] coords, byte[] flags, int start, int end, boolean area) {
+        Path2D path = new Path2D.Double(area ? Path2D.WIND_EVEN_ODD : Path2D.WIND_NON_ZERO, end - start + 1);
+
+        int v = start;
+        while (v < end) {
+            path.moveTo(coords[v * 2], coords[v * 2 + 1]);
+
+            // Up to the last point of the part
+            while (v + 1 < end && (flags[v] & HOLE_POINT) == 0) {
+                if ((flags[v] & CURVE_START) != 0 && v + 3 < end) {
+                    path.curveTo(coords[(v + 1) * 2], coords[(v + 1) * 2 + 1], coords[(v + 2) * 2], coords[(v + 2) * 2 + 1],
+                            coords[(v + 3) * 2], coords[(v + 3) * 2 + 1]);
+                    v += 3;
+                } else {
+                    path.lineTo(coords[(v + 1) * 2], coords[(v + 1) * 2 + 1]);
+                    v++;
+                }
+            }
+
+            if (area || (flags[v] & CLOSE_POINT) != 0) path.closePath();
+            v++;
+        }
+
+        return path;
+    }
+
+    public int lineWidth(int object) {
+        return lineWidths[object];
+    }
+
+    /**
+     * The surface covered by the object: the outline for area objects, the stroked centre line for
+     * objects with a line symbol. Point objects cover nothing.
+     */
+    public Area area(int object) {
+        if (areas[object] == null && hasGeometry(object)) {
+            if (lineWidths[object] > 0) {
+                BasicStroke stroke = new BasicStroke(lineWidths[object], BasicStroke.CAP_BUTT, BasicStroke.JOIN_ROUND);
+                areas[object] = new Area(stroke.createStrokedShape(centreLine(object)));
+            } else {
+                areas[object] = new Area(path(object));
+            }
+        }
+        return areas[object];
+    }
+}
@@ -2,7 +2,40 @@ import java.util.*;
 import java.io.*;
 
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals("--batch")) {
+            BatchRunner.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("--serve")) {
+            MapService.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("--extract")) {
+            RegionExtractor.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("--render")) {
+            try {
+                TileRenderer.main(Arrays.copyOfRange(args, 1, args.length));
+            } catch (Exception e) {
+                System.out.println("Rendering failed: " + e.getMessage());
+            }
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("--convert")) {
+            try {
+                BinaryMap.main(Arrays.copyOfRange(args, 1, args.length));
+            } catch (Exception e) {
+                System.out.println("Conversion failed: " + e.getMessage());
+            }
+            return;
+        }
+
         Scanner sc = new Scanner(System.in);
         ArrayList<String> objectsToFilter = new ArrayList<>();
         List<String> mostFilteredElementsForCenter = List.of("High Tower", "Small Tower", "Building", "Grave", "Firing Range", "Railway");
@@ -48,6 +81,18 @@ public class Main {
         }
 
         try {
+            if (!handleOverlays) {
+                // Plain symbol filtering does not need the DOM, stream the map instead
+                StreamingFilter streamingFilter = new StreamingFilter(maps[mapIndex - 1].getName(), objectsToFilter);
+
+                streamingFilter.filterObjects();
+
+                System.out.println("Filtering complete!");
+                System.out.println("Objects deleted from the map: " + streamingFilter.objsDeleted);
+                System.out.println("\nResult saved to: RP\\src\\maps\\custom_map.omap");
+                return;
+            }
+
             FilterObjects filterMap = new FilterObjects(maps[mapIndex - 1].getName(), objectsToFilter, handleOverlays, removeOverlays);
 
             filterMap.filterObjects();
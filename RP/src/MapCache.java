@@ -0,0 +1,161 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * On-disk cache of per-map results that are expensive to recompute, keyed by the SHA-256 of the map's
+ * content. A changed .omap hashes to a different key, so stale entries are never read; they are simply
+ * evicted once the cache grows past its size bound, least recently used first.
+ *
+ * The cache only handles files, versioning and eviction; what goes into an entry is written and read
+ * by the caller (see OverlayHandler and MappedMap).
+ */
+public class MapCache {
+    private static final int MAGIC = 0x4F4D4331; // "OMC1"
+    // Bump whenever the layout of an entry or the results stored in it change
+    static final int FORMAT_VERSION = 3;
+
+    private static final String SUFFIX = ".cache";
+    private static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+
+    public interface EntryWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    public interface EntryReader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    private final File directory;
+    private final long maxBytes;
+
+    public MapCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Cache in omap-cache under the system temp directory, bounded to 512 MB.
+     */
+    public static MapCache defaultCache() {
+        return new MapCache(new File(System.getProperty("java.io.tmpdir"), "omap-cache"), DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Hex SHA-256 of the file content.
+     */
+    public static String key(File map) throws IOException {
+        MessageDigest digest = sha256();
+
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(map)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+
+        return hex(digest.digest());
+    }
+
+    /**
+     * Hex SHA-256 of kind and the file's path, size and modification time. Unlike key() it costs the
+     * same for any file size, for entries that must be found without reading the whole map; a map
+     * rewritten with the same size within the file system's timestamp resolution is not noticed.
+     */
+    public static String fileKey(File map, String kind) throws IOException {
+        String identity = kind + "|" + map.getCanonicalPath() + "|" + map.length() + "|" + map.lastModified();
+        return hex(sha256().digest(identity.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Reads the entry for key, or returns null if there is none or it cannot be read. Unreadable entries
+     * (truncated, older format) are deleted.
+     */
+    public <T> T load(String key, EntryReader<T> reader) {
+        File file = new File(directory, key + SUFFIX);
+        if (!file.isFile()) return null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("unsupported cache format");
+            }
+
+            T value = reader.read(in);
+            file.setLastModified(System.currentTimeMillis());
+            return value;
+        } catch (IOException e) {
+            System.out.println("Warning: Discarding cache entry " + file.getName() + ": " + e.getMessage());
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Writes the entry for key, replacing any previous one, then evicts old entries beyond the size bound.
+     * Failures are reported and otherwise ignored; the cache is only an optimisation.
+     */
+    public void store(String key, EntryWriter writer) {
+        File file = new File(directory, key + SUFFIX);
+
+        try {
+            Files.createDirectories(directory.toPath());
+            File temp = File.createTempFile(key, ".tmp", directory);
+
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(FORMAT_VERSION);
+                    writer.write(out);
+                }
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            System.out.println("Warning: Could not write cache entry " + file.getName() + ": " + e.getMessage());
+            return;
+        }
+
+        evict();
+    }
+
+    private synchronized void evict() {
+        File[] entries = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (entries == null) return;
+
+        long total = 0;
+        for (File entry : entries) total += entry.length();
+        if (total <= maxBytes) return;
+
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        for (File entry : entries) {
+            if (total <= maxBytes) break;
+            long length = entry.length();
+            if (entry.delete()) total -= length;
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+}
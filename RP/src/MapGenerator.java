@@ -0,0 +1,284 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes synthetic maps for scale and load testing. Georeferencing, colors, symbols, templates and view
+ * are copied from a template map; the objects are random points, lines and areas using the template's
+ * point, line and area symbols. The same settings and seed always produce the same file.
+ *
+ * Objects are written one at a time, so maps of any size can be produced with constant memory.
+ */
+public class MapGenerator {
+    private static final Pattern SYMBOL_TAG = Pattern.compile("<symbol\\b([^>]*)>");
+    private static final Pattern TYPE_ATTR = Pattern.compile("\\btype=\"(\\d+)\"");
+    private static final Pattern ID_ATTR = Pattern.compile("\\bid=\"(\\d+)\"");
+
+    // Centres of recently written objects that new overlapping objects are placed on
+    private static final int RECENT_CENTRES = 1024;
+
+    private final File template;
+    private long seed = 1;
+    private long objectCount = 1000;
+    private double pointShare = 0.2;
+    private double lineShare = 0.3;
+    private int extent = 100_000;
+    private double overlapDensity = 0.2;
+
+    public MapGenerator(File template) {
+        this.template = template;
+    }
+
+    public MapGenerator seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public MapGenerator objects(long objectCount) {
+        this.objectCount = objectCount;
+        return this;
+    }
+
+    /**
+     * Share of points and lines among the generated objects; the rest are areas.
+     */
+    public MapGenerator mix(double pointShare, double lineShare) {
+        if (pointShare < 0 || lineShare < 0 || pointShare + lineShare > 1) {
+            throw new IllegalArgumentException("Point and line shares must be non-negative and add up to at most 1");
+        }
+        this.pointShare = pointShare;
+        this.lineShare = lineShare;
+        return this;
+    }
+
+    /**
+     * Objects are placed within [-extent, extent] on both axes, in map units (1/1000 mm).
+     */
+    public MapGenerator extent(int extent) {
+        this.extent = extent;
+        return this;
+    }
+
+    /**
+     * Share of objects deliberately placed on top of a recently written object.
+     */
+    public MapGenerator overlapDensity(double overlapDensity) {
+        this.overlapDensity = overlapDensity;
+        return this;
+    }
+
+    public void write(File output) throws IOException {
+        try (Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(template), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8), 1 << 16)) {
+
+            // Header up to the object parts; symbol ids are picked up on the way
+            StringBuilder header = new StringBuilder();
+            if (!copyUntil(in, out, "<parts", header)) {
+                throw new IOException("Template map " + template + " has no <parts> element");
+            }
+
+            List<Integer> points = new ArrayList<>();
+            List<Integer> lines = new ArrayList<>();
+            List<Integer> areas = new ArrayList<>();
+            collectSymbols(header, points, lines, areas);
+            header = null;
+
+            if (points.isEmpty() || lines.isEmpty() || areas.isEmpty()) {
+                throw new IOException("Template map " + template + " needs at least one point, line and area symbol");
+            }
+
+            writeObjects(out, points, lines, areas);
+
+            // Skip the template's own objects, keep templates and view up to the end of the first barrier
+            copyUntil(in, null, "</parts>", null);
+            copyUntil(in, out, "</barrier>", null);
+            out.write("</barrier>\n</map>\n");
+        }
+    }
+
+    /**
+     * Copies characters to out (if given) until the marker is found; the marker itself is consumed but
+     * not written. Returns false if the input ended first.
+     */
+    private static boolean copyUntil(Reader in, Writer out, String marker, StringBuilder copy) throws IOException {
+        char[] window = new char[marker.length()];
+        int filled = 0;
+
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (filled == window.length) {
+                if (out != null) out.write(window[0]);
+                if (copy != null) copy.append(window[0]);
+                System.arraycopy(window, 1, window, 0, filled - 1);
+                filled--;
+            }
+            window[filled++] = (char) c;
+
+            if (filled == window.length && matches(window, marker)) return true;
+        }
+
+        if (out != null) out.write(window, 0, filled);
+        return false;
+    }
+
+    private static boolean matches(char[] window, String marker) {
+        for (int i = 0; i < window.length; i++) {
+            if (window[i] != marker.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static void collectSymbols(CharSequence header, List<Integer> points, List<Integer> lines, List<Integer> areas) {
+        Matcher symbol = SYMBOL_TAG.matcher(header);
+        while (symbol.find()) {
+            Matcher type = TYPE_ATTR.matcher(symbol.group(1));
+            Matcher id = ID_ATTR.matcher(symbol.group(1));
+            if (!type.find() || !id.find()) continue;
+
+            int symbolId = Integer.parseInt(id.group(1));
+            switch (type.group(1)) {
+                case "1": points.add(symbolId); break;
+                case "2": lines.add(symbolId); break;
+                case "4": case "16": areas.add(symbolId); break;
+                default: break;
+            }
+        }
+    }
+
+    private void writeObjects(Writer out, List<Integer> points, List<Integer> lines, List<Integer> areas) throws IOException {
+        Random random = new Random(seed);
+        int[] recentX = new int[RECENT_CENTRES];
+        int[] recentY = new int[RECENT_CENTRES];
+        long recent = 0;
+
+        out.write("<parts count=\"1\" current=\"0\">\n<part name=\"default part\"><objects count=\"");
+        out.write(Long.toString(objectCount));
+        out.write("\">\n");
+
+        for (long i = 0; i < objectCount; i++) {
+            int x, y;
+            if (recent > 0 && random.nextDouble() < overlapDensity) {
+                int other = random.nextInt((int) Math.min(recent, RECENT_CENTRES));
+                x = recentX[other] + random.nextInt(4001) - 2000;
+                y = recentY[other] + random.nextInt(4001) - 2000;
+            } else {
+                x = random.nextInt(2 * extent + 1) - extent;
+                y = random.nextInt(2 * extent + 1) - extent;
+            }
+
+            int slot = (int) (recent++ % RECENT_CENTRES);
+            recentX[slot] = x;
+            recentY[slot] = y;
+
+            double kind = random.nextDouble();
+            if (kind < pointShare) {
+                writePoint(out, points.get(random.nextInt(points.size())), x, y);
+            } else if (kind < pointShare + lineShare) {
+                writeLine(out, lines.get(random.nextInt(lines.size())), x, y, random);
+            } else {
+                writeArea(out, areas.get(random.nextInt(areas.size())), x, y, random);
+            }
+        }
+
+        out.write("</objects></part>\n</parts>");
+    }
+
+    private static void writePoint(Writer out, int symbol, int x, int y) throws IOException {
+        out.write("<object type=\"0\" symbol=\"");
+        out.write(Integer.toString(symbol));
+        out.write("\"><coords count=\"1\">");
+        writeCoord(out, x, y, 0);
+        out.write("</coords></object>\n");
+    }
+
+    private static void writeLine(Writer out, int symbol, int x, int y, Random random) throws IOException {
+        int vertices = 2 + random.nextInt(7);
+        double heading = random.nextDouble() * 2 * Math.PI;
+
+        out.write("<object type=\"1\" symbol=\"");
+        out.write(Integer.toString(symbol));
+        out.write("\"><coords count=\"");
+        out.write(Integer.toString(vertices));
+        out.write("\">");
+
+        for (int v = 0; v < vertices; v++) {
+            writeCoord(out, x, y, v == vertices - 1 ? 16 : 0);
+            heading += random.nextGaussian() * 0.5;
+            int step = 1000 + random.nextInt(5000);
+            x += (int) (step * Math.cos(heading));
+            y += (int) (step * Math.sin(heading));
+        }
+
+        out.write("</coords><pattern rotation=\"0\"><coord x=\"0\" y=\"0\"/></pattern></object>\n");
+    }
+
+    private static void writeArea(Writer out, int symbol, int x, int y, Random random) throws IOException {
+        int vertices = 3 + random.nextInt(8);
+        int radius = 1000 + random.nextInt(8000);
+
+        out.write("<object type=\"1\" symbol=\"");
+        out.write(Integer.toString(symbol));
+        out.write("\"><coords count=\"");
+        out.write(Integer.toString(vertices + 1));
+        out.write("\">");
+
+        int firstX = 0, firstY = 0;
+        for (int v = 0; v < vertices; v++) {
+            double angle = 2 * Math.PI * v / vertices;
+            double r = radius * (0.6 + 0.4 * random.nextDouble());
+            int px = x + (int) (r * Math.cos(angle));
+            int py = y + (int) (r * Math.sin(angle));
+            if (v == 0) {
+                firstX = px;
+                firstY = py;
+            }
+            writeCoord(out, px, py, 0);
+        }
+        writeCoord(out, firstX, firstY, 18);
+
+        out.write("</coords><pattern rotation=\"0\"><coord x=\"0\" y=\"0\"/></pattern></object>\n");
+    }
+
+    private static void writeCoord(Writer out, int x, int y, int flags) throws IOException {
+        out.write(Integer.toString(x));
+        out.write(' ');
+        out.write(Integer.toString(y));
+        if (flags != 0) {
+            out.write(' ');
+            out.write(Integer.toString(flags));
+        }
+        out.write(';');
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: MapGenerator <template.omap> <output.omap> [--objects n] [--seed n] "
+                    + "[--points share] [--lines share] [--extent units] [--overlap share]");
+            return;
+        }
+
+        MapGenerator generator = new MapGenerator(new File(args[0]));
+        double points = 0.2, lines = 0.3;
+
+        for (int i = 2; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--objects": generator.objects(Long.parseLong(args[i + 1])); break;
+                case "--seed": generator.seed(Long.parseLong(args[i + 1])); break;
+                case "--points": points = Double.parseDouble(args[i + 1]); break;
+                case "--lines": lines = Double.parseDouble(args[i + 1]); break;
+                case "--extent": generator.extent(Integer.parseInt(args[i + 1])); break;
+                case "--overlap": generator.overlapDensity(Double.parseDouble(args[i + 1])); break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+
+        generator.mix(points, lines);
+        long start = System.nanoTime();
+        generator.write(new File(args[1]));
+        System.out.println("Wrote " + args[1] + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+}
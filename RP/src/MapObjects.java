@@ -0,0 +1,139 @@
+import org.w3c.dom.*;
+import java.util.*;
+
+/**
+ * The objects of a map: the <object> elements under parts/part/objects, part after part in document
+ * order. Other <object> elements are not map objects: point and combined symbol definitions draw their
+ * glyphs with objects of their own, available from symbolObjects(), and undo/redo steps keep copies of
+ * edited objects. document.getElementsByTagName("object") returns all of them.
+ *
+ * Usable as a NodeList, so GeometryCache and other code indexing objects by position take it directly.
+ */
+public class MapObjects implements NodeList {
+    private final Element[] objects;
+
+    private MapObjects(List<Element> objects) {
+        this.objects = objects.toArray(new Element[0]);
+    }
+
+    /**
+     * All objects of all parts. Maps without <parts> have their objects in a single <objects> element.
+     */
+    public static MapObjects of(Document document) {
+        List<Element> objects = new ArrayList<>();
+        List<Element> parts = parts(document);
+
+        if (parts.isEmpty()) {
+            Element looseObjects = looseObjects(document);
+            if (looseObjects != null) objects.addAll(objects(looseObjects));
+        } else {
+            for (Element part : parts) {
+                Element partObjects = childElement(part, "objects");
+                if (partObjects != null) objects.addAll(objects(partObjects));
+            }
+        }
+
+        return new MapObjects(objects);
+    }
+
+    /**
+     * The given objects, such as the glyph objects of a symbol, as a NodeList.
+     */
+    static MapObjects of(List<Element> objects) {
+        return new MapObjects(objects);
+    }
+
+    @Override
+    public Element item(int index) {
+        return index >= 0 && index < objects.length ? objects[index] : null;
+    }
+
+    @Override
+    public int getLength() {
+        return objects.length;
+    }
+
+    /**
+     * The <parts> element, looked for among the top-level elements of the map and of its first <barrier>
+     * so the symbol definitions are not searched; null if the map has none.
+     */
+    public static Element partsElement(Document document) {
+        return topLevelElement(document, "parts");
+    }
+
+    /**
+     * The <part> elements of the map in document order, empty if it has no <parts>.
+     */
+    public static List<Element> parts(Document document) {
+        Element parts = partsElement(document);
+        return parts == null ? new ArrayList<>() : childElements(parts, "part");
+    }
+
+    /**
+     * The <objects> element of a map without <parts>, or null.
+     */
+    public static Element looseObjects(Document document) {
+        return partsElement(document) == null ? topLevelElement(document, "objects") : null;
+    }
+
+    /**
+     * The <object> children of an <objects> element.
+     */
+    public static List<Element> objects(Element objectsElement) {
+        return childElements(objectsElement, "object");
+    }
+
+    /**
+     * The objects drawing each point or combined symbol, by symbol id; symbols without any are left out.
+     */
+    public static Map<Integer, List<Element>> symbolObjects(Document document) {
+        Map<Integer, List<Element>> objectsBySymbol = new LinkedHashMap<>();
+        Element symbols = topLevelElement(document, "symbols");
+        if (symbols == null) return objectsBySymbol;
+
+        for (Element symbol : childElements(symbols, "symbol")) {
+            NodeList nested = symbol.getElementsByTagName("object");
+            int count = nested.getLength();
+            if (count == 0) continue;
+
+            try {
+                int id = Integer.parseInt(symbol.getAttribute("id"));
+                List<Element> objects = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) objects.add((Element) nested.item(i));
+                objectsBySymbol.put(id, objects);
+            } catch (NumberFormatException e) {
+                // Skip symbols with non-integer IDs
+            }
+        }
+
+        return objectsBySymbol;
+    }
+
+    private static Element topLevelElement(Document document, String name) {
+        Element root = document.getDocumentElement();
+        if (root == null) return null;
+
+        Element found = childElement(root, name);
+        if (found != null) return found;
+
+        Element barrier = childElement(root, "barrier");
+        return barrier == null ? null : childElement(barrier, name);
+    }
+
+    static List<Element> childElements(Element parent, String name) {
+        List<Element> children = new ArrayList<>();
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && child.getNodeName().equals(name)) {
+                children.add((Element) child);
+            }
+        }
+        return children;
+    }
+
+    static Element childElement(Element parent, String name) {
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && child.getNodeName().equals(name)) return (Element) child;
+        }
+        return null;
+    }
+}
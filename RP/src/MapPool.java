@@ -0,0 +1,184 @@
+import javax.xml.parsers.*;
+import org.w3c.dom.*;
+import org.xml.sax.SAXException;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Parsed maps kept in memory between requests, at most maxMaps of them, least recently used evicted
+ * first. A map is reparsed when its file changes on disk. Concurrent requests for a map that is not
+ * loaded yet wait for a single parse.
+ */
+public class MapPool {
+    /**
+     * One parsed map. The DOM is not safe for concurrent use, even for reading, so everything touching it
+     * runs under lock(); permits bounds how many requests for this map may be in flight at once.
+     */
+    public static class PooledMap {
+        public final String name;
+        public final File file;
+        public final Document document;
+        public final SymbolTable symbols;
+        public final Semaphore permits;
+        private final long length;
+        private final long lastModified;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final MapCache cache;
+        private final int parallelism;
+        private OverlayHandler overlays;
+
+        PooledMap(String name, File file, long length, long lastModified, Document document, int concurrency, MapCache cache, int parallelism) {
+            this.name = name;
+            this.file = file;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.document = document;
+            this.symbols = new SymbolTable(document);
+            this.permits = new Semaphore(concurrency, true);
+            this.cache = cache;
+            this.parallelism = parallelism;
+        }
+
+        public ReentrantLock lock() {
+            return lock;
+        }
+
+        /**
+         * The overlay handler with overlaps identified, built on first use. Call with lock() held.
+         */
+        public OverlayHandler overlays() throws IOException {
+            if (overlays == null) {
+                String cacheKey = cache == null ? null : MapCache.key(file);
+                OverlayHandler handler = new OverlayHandler(document, symbols, new PipelineMetrics(), cache, cacheKey);
+                handler.identifyOverlays(parallelism);
+                overlays = handler;
+            }
+            return overlays;
+        }
+
+        boolean isStale() {
+            return file.length() != length || file.lastModified() != lastModified;
+        }
+    }
+
+    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = FilterObjects.newDocumentBuilderFactory();
+
+    private final File mapsDir;
+    private final int maxMaps;
+    private final int concurrencyPerMap;
+    private final MapCache cache;
+    private final int parallelism;
+    private final LinkedHashMap<String, FutureTask<PooledMap>> maps = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param cache on-disk cache for overlaps of maps that are evicted and loaded again, or null
+     */
+    public MapPool(File mapsDir, int maxMaps, int concurrencyPerMap, MapCache cache) {
+        this(mapsDir, maxMaps, concurrencyPerMap, cache, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param cache       on-disk cache for overlaps of maps that are evicted and loaded again, or null
+     * @param parallelism number of threads finding the overlaps of a map when it is first needed
+     */
+    public MapPool(File mapsDir, int maxMaps, int concurrencyPerMap, MapCache cache, int parallelism) {
+        this.mapsDir = mapsDir;
+        this.maxMaps = Math.max(1, maxMaps);
+        this.concurrencyPerMap = Math.max(1, concurrencyPerMap);
+        this.cache = cache;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * The parsed map with the given file name in the maps directory.
+     *
+     * @throws FileNotFoundException    if there is no such map
+     * @throws IllegalArgumentException if the name is not a plain file name
+     */
+    public PooledMap get(String name) throws IOException {
+        if (name == null || name.isEmpty() || name.contains("/") || name.contains("\\") || name.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid map name: " + name);
+        }
+
+        File file = new File(mapsDir, name);
+        if (!file.isFile()) {
+            throw new FileNotFoundException("No map named " + name);
+        }
+
+        FutureTask<PooledMap> task;
+        boolean load = false;
+
+        synchronized (this) {
+            task = maps.get(name);
+            PooledMap current = task == null ? null : loaded(task);
+            if (task != null && task.isDone() && (current == null || current.isStale())) {
+                maps.remove(name);
+                task = null;
+            }
+
+            if (task == null) {
+                task = new FutureTask<>(() -> parse(name, file));
+                maps.put(name, task);
+                load = true;
+
+                Iterator<Map.Entry<String, FutureTask<PooledMap>>> eldest = maps.entrySet().iterator();
+                while (maps.size() > maxMaps) {
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+        }
+
+        if (load) task.run();
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading " + name);
+        } catch (ExecutionException e) {
+            synchronized (this) {
+                maps.remove(name, task);
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Could not load " + name + ": " + cause.getMessage(), cause);
+        }
+    }
+
+    // The map of a finished load, or null if it is still running or failed
+    private static PooledMap loaded(FutureTask<PooledMap> task) {
+        if (!task.isDone()) return null;
+
+        try {
+            return task.get();
+        } catch (InterruptedException | ExecutionException | CancellationException e) {
+            return null;
+        }
+    }
+
+    private PooledMap parse(String name, File file) throws IOException, SAXException, ParserConfigurationException {
+        // Length and modification time are read before parsing, so a change during the parse shows as stale
+        long length = file.length();
+        long lastModified = file.lastModified();
+
+        DocumentBuilder docBuilder;
+        synchronized (DOCUMENT_BUILDER_FACTORY) {
+            docBuilder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();
+        }
+
+        Document document = docBuilder.parse(file);
+        document.getDocumentElement().normalize();
+        return new PooledMap(name, file, length, lastModified, document, concurrencyPerMap, cache, parallelism);
+    }
+
+    public synchronized List<String> loadedMaps() {
+        List<String> loaded = new ArrayList<>();
+        for (Map.Entry<String, FutureTask<PooledMap>> entry : maps.entrySet()) {
+            if (loaded(entry.getValue()) != null) loaded.add(entry.getKey());
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,297 @@
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Local HTTP service that keeps recently used maps parsed in a MapPool and filters them on request.
+ * Every request runs on its own virtual thread.
+ *
+ * Endpoints, all GET, the map given as a file name in the maps directory:
+ *     /filter?map=NAME&symbols=A;B             the map without objects of symbols A and B
+ *     /remove-overlaps?map=NAME&symbols=A;B    the same, with lower priority overlapping objects removed
+ *     /overlaps?map=NAME                       overlapping object pairs as JSON
+ *     /stats                                   request counts and latency percentiles per endpoint as JSON
+ *
+ * Maps are returned as .omap with X-Objects-Deleted and X-Overlaps-Handled headers. Requests for one map
+ * beyond its concurrency limit wait up to PERMIT_TIMEOUT_MILLIS and are then rejected with 503.
+ */
+public class MapService {
+    private static final long PERMIT_TIMEOUT_MILLIS = 30_000;
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws Exception;
+    }
+
+    /**
+     * Latencies of the most recent requests to one endpoint.
+     */
+    static class LatencyStats {
+        private static final int SAMPLES = 10_000;
+
+        private final long[] nanos = new long[SAMPLES];
+        private long count;
+        private long errors;
+
+        synchronized void record(long elapsedNanos, boolean failed) {
+            nanos[(int) (count % SAMPLES)] = elapsedNanos;
+            count++;
+            if (failed) errors++;
+        }
+
+        synchronized String toJson() {
+            int size = (int) Math.min(count, SAMPLES);
+            long[] sorted = Arrays.copyOf(nanos, size);
+            Arrays.sort(sorted);
+
+            return "{\"count\": " + count + ", \"errors\": " + errors
+                    + ", \"p50Millis\": " + millis(percentile(sorted, 0.50))
+                    + ", \"p90Millis\": " + millis(percentile(sorted, 0.90))
+                    + ", \"p99Millis\": " + millis(percentile(sorted, 0.99))
+                    + ", \"maxMillis\": " + millis(size == 0 ? 0 : sorted[size - 1]) + "}";
+        }
+
+        // Nearest-rank percentile
+        private static long percentile(long[] sorted, double fraction) {
+            if (sorted.length == 0) return 0;
+            int rank = (int) Math.ceil(fraction * sorted.length);
+            return sorted[Math.max(0, rank - 1)];
+        }
+
+        private static String millis(long nanos) {
+            return String.format(Locale.ROOT, "%.3f", nanos / 1_000_000.0);
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final MapPool pool;
+    private final Map<String, LatencyStats> latencies = new LinkedHashMap<>();
+
+    public MapService(InetSocketAddress address, MapPool pool) throws IOException {
+        this.pool = pool;
+        this.server = HttpServer.create(address, 0);
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        this.server.setExecutor(executor);
+
+        route("/filter", exchange -> filter(exchange, false));
+        route("/remove-overlaps", exchange -> filter(exchange, true));
+        route("/overlaps", this::overlaps);
+        route("/stats", this::stats);
+    }
+
+    private void route(String path, Handler handler) {
+        LatencyStats stats = new LatencyStats();
+        latencies.put(path, stats);
+
+        server.createContext(path, exchange -> {
+            long start = System.nanoTime();
+
+            try {
+                if (!exchange.getRequestMethod().equals("GET")) {
+                    sendError(exchange, 405, "Only GET is supported");
+                } else {
+                    handler.handle(exchange);
+                }
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, 400, e.getMessage());
+            } catch (FileNotFoundException e) {
+                sendError(exchange, 404, e.getMessage());
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendError(exchange, 500, e.getClass().getSimpleName() + ": " + e.getMessage());
+            } finally {
+                exchange.close();
+                int status = exchange.getResponseCode();
+                stats.record(System.nanoTime() - start, status < 200 || status >= 400);
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void filter(HttpExchange exchange, boolean removeOverlays) throws Exception {
+        Map<String, String> params = query(exchange);
+        MapPool.PooledMap map = pool.get(params.get("map"));
+        ArrayList<String> symbols = symbols(params.get("symbols"));
+
+        if (!acquire(exchange, map)) return;
+
+        try {
+            FilterObjects filter;
+
+            map.lock().lock();
+            try {
+                OverlayHandler overlays = removeOverlays ? map.overlays() : null;
+                filter = new FilterObjects(map.document, map.symbols, overlays, symbols, removeOverlays);
+                filter.filterObjects();
+            } finally {
+                map.lock().unlock();
+            }
+
+            if (!filter.hasResult()) {
+                sendError(exchange, 500, "Map " + map.name + " has no objects");
+                return;
+            }
+
+            // Serialising only reads the result document, so other requests for the map can proceed
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Content-Type", "application/xml; charset=UTF-8");
+            headers.set("X-Objects-Deleted", String.valueOf(filter.objsDeleted));
+            headers.set("X-Overlaps-Handled", String.valueOf(filter.overlaysHandled));
+            exchange.sendResponseHeaders(200, 0);
+
+            try (OutputStream body = new BufferedOutputStream(exchange.getResponseBody(), 1 << 16)) {
+                filter.writeResult(body);
+            }
+        } finally {
+            map.permits.release();
+        }
+    }
+
+    private void overlaps(HttpExchange exchange) throws Exception {
+        Map<String, String> params = query(exchange);
+        MapPool.PooledMap map = pool.get(params.get("map"));
+
+        if (!acquire(exchange, map)) return;
+
+        try {
+            List<OverlayHandler.OverlapPair> pairs;
+            int objectCount;
+
+            map.lock().lock();
+            try {
+                OverlayHandler overlays = map.overlays();
+                pairs = new ArrayList<>(overlays.getOverlaps());
+                objectCount = overlays.getGeometry().size();
+            } finally {
+                map.lock().unlock();
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(200, 0);
+
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 1 << 16)) {
+                out.write("{\"map\": \"" + jsonEscape(map.name) + "\", \"objects\": " + objectCount
+                        + ", \"overlaps\": " + pairs.size() + ", \"pairs\": [");
+                for (int i = 0; i < pairs.size(); i++) {
+                    OverlayHandler.OverlapPair pair = pairs.get(i);
+                    out.write(i == 0 ? "\n" : ",\n");
+                    out.write("{\"object1\": " + pair.index1 + ", \"object2\": " + pair.index2
+                            + ", \"symbol1\": " + pair.symbolId1 + ", \"symbol2\": " + pair.symbolId2
+                            + ", \"area\": " + String.format(Locale.ROOT, "%.1f", pair.overlapSize) + "}");
+                }
+                out.write("\n]}\n");
+            }
+        } finally {
+            map.permits.release();
+        }
+    }
+
+    private void stats(HttpExchange exchange) throws IOException {
+        StringBuilder json = new StringBuilder("{\n  \"endpoints\": {\n");
+
+        int i = 0;
+        for (Map.Entry<String, LatencyStats> entry : latencies.entrySet()) {
+            json.append("    \"").append(entry.getKey()).append("\": ").append(entry.getValue().toJson())
+                    .append(++i < latencies.size() ? ",\n" : "\n");
+        }
+
+        json.append("  },\n  \"loadedMaps\": [");
+        List<String> loaded = pool.loadedMaps();
+        for (int m = 0; m < loaded.size(); m++) {
+            json.append(m == 0 ? "\"" : ", \"").append(jsonEscape(loaded.get(m))).append('"');
+        }
+        json.append("]\n}\n");
+
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static boolean acquire(HttpExchange exchange, MapPool.PooledMap map) throws IOException, InterruptedException {
+        if (map.permits.tryAcquire(PERMIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) return true;
+
+        sendError(exchange, 503, "Too many requests for " + map.name);
+        return false;
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) return params;
+
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals <= 0) continue;
+            params.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static ArrayList<String> symbols(String value) {
+        ArrayList<String> symbols = new ArrayList<>();
+        if (value == null) return symbols;
+
+        for (String name : value.split(";")) {
+            if (!name.trim().isEmpty()) symbols.add(name.trim());
+        }
+        return symbols;
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        // Once a response has started the only option left is to cut it short
+        if (exchange.getResponseCode() != -1) return;
+
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static String jsonEscape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 8080;
+        File mapsDir = new File("RP\\src\\maps");
+        int maxMaps = 8;
+        int concurrencyPerMap = 4;
+        int parallelism = Runtime.getRuntime().availableProcessors();
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--port": port = Integer.parseInt(args[i + 1]); break;
+                case "--maps": mapsDir = new File(args[i + 1]); break;
+                case "--pool": maxMaps = Integer.parseInt(args[i + 1]); break;
+                case "--per-map": concurrencyPerMap = Integer.parseInt(args[i + 1]); break;
+                case "--parallelism": parallelism = Integer.parseInt(args[i + 1]); break;
+                default:
+                    System.out.println("Usage: --serve [--port n] [--maps dir] [--pool maps] [--per-map requests] [--parallelism threads]");
+                    return;
+            }
+        }
+
+        MapPool pool = new MapPool(mapsDir, maxMaps, concurrencyPerMap, MapCache.defaultCache(), parallelism);
+        MapService service = new MapService(new InetSocketAddress("localhost", port), pool);
+        service.start();
+        System.out.println("Serving maps from " + mapsDir.getPath() + " on http://localhost:" + service.getPort() + "/");
+    }
+}
@@ -0,0 +1,144 @@
+import java.io.*;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Minimal client for MapService. Maps are streamed into the given output; failed requests throw an
+ * IOException carrying the status code and the server's message.
+ */
+public class MapServiceClient {
+    public static class Result {
+        public final int objsDeleted;
+        public final int overlaysHandled;
+        public final long bytes;
+
+        Result(int objsDeleted, int overlaysHandled, long bytes) {
+            this.objsDeleted = objsDeleted;
+            this.overlaysHandled = overlaysHandled;
+            this.bytes = bytes;
+        }
+    }
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private final URI base;
+
+    public MapServiceClient(String host, int port) {
+        this.base = URI.create("http://" + host + ":" + port + "/");
+    }
+
+    public Result filter(String map, List<String> symbols, OutputStream out) throws IOException, InterruptedException {
+        return fetchMap("filter", map, symbols, out);
+    }
+
+    public Result removeOverlaps(String map, List<String> symbols, OutputStream out) throws IOException, InterruptedException {
+        return fetchMap("remove-overlaps", map, symbols, out);
+    }
+
+    public String overlaps(String map) throws IOException, InterruptedException {
+        return fetchText("overlaps?map=" + encode(map));
+    }
+
+    public String stats() throws IOException, InterruptedException {
+        return fetchText("stats");
+    }
+
+    private Result fetchMap(String endpoint, String map, List<String> symbols, OutputStream out) throws IOException, InterruptedException {
+        String query = endpoint + "?map=" + encode(map) + "&symbols=" + encode(String.join(";", symbols));
+        HttpResponse<InputStream> response = client.send(request(query), HttpResponse.BodyHandlers.ofInputStream());
+
+        try (InputStream body = response.body()) {
+            if (response.statusCode() != 200) {
+                throw new IOException("HTTP " + response.statusCode() + ": " + new String(body.readAllBytes(), StandardCharsets.UTF_8).trim());
+            }
+
+            long bytes = body.transferTo(out);
+            return new Result(header(response, "X-Objects-Deleted"), header(response, "X-Overlaps-Handled"), bytes);
+        }
+    }
+
+    private String fetchText(String query) throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(request(query), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException("HTTP " + response.statusCode() + ": " + response.body().trim());
+        }
+        return response.body();
+    }
+
+    private HttpRequest request(String query) {
+        return HttpRequest.newBuilder(base.resolve(query)).GET().build();
+    }
+
+    private static int header(HttpResponse<?> response, String name) {
+        try {
+            return Integer.parseInt(response.headers().firstValue(name).orElse("0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: MapServiceClient <filter|remove-overlaps|overlaps|stats> <map> [symbols separated by ';'] "
+                    + "[output] [--port n]");
+            return;
+        }
+
+        int port = 8080;
+        List<String> rest = new ArrayList<>(Arrays.asList(args));
+        int portOption = rest.indexOf("--port");
+        if (portOption >= 0 && portOption + 1 < rest.size()) {
+            port = Integer.parseInt(rest.get(portOption + 1));
+            rest.subList(portOption, portOption + 2).clear();
+        }
+
+        MapServiceClient client = new MapServiceClient("localhost", port);
+        String command = rest.get(0);
+
+        if (command.equals("stats")) {
+            System.out.print(client.stats());
+            return;
+        }
+
+        if (rest.size() < 2) {
+            System.out.println("Missing map name");
+            return;
+        }
+
+        String map = rest.get(1);
+        if (command.equals("overlaps")) {
+            System.out.print(client.overlaps(map));
+            return;
+        }
+
+        List<String> symbols = rest.size() > 2 ? Arrays.asList(rest.get(2).split(";")) : List.of();
+        File output = new File(rest.size() > 3 ? rest.get(3) : "custom_map.omap");
+        File temp = File.createTempFile("custom_map", ".tmp", output.getAbsoluteFile().getParentFile());
+
+        try {
+            Result result;
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp))) {
+                result = command.equals("remove-overlaps")
+                        ? client.removeOverlaps(map, symbols, out)
+                        : client.filter(map, symbols, out);
+            }
+            Files.move(temp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            System.out.println("Objects deleted from the map: " + result.objsDeleted);
+            System.out.println("Overlapping objects handled: " + result.overlaysHandled);
+            System.out.println("Result saved to: " + output.getPath());
+        } finally {
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,718 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Read-only view of an .omap file through memory-mapped buffers.
+ *
+ * Opening the map scans the bytes once and builds an index of every object under parts/part/objects:
+ * its byte range, symbol id, object type and envelope. Nothing else is parsed; an object's XML or
+ * coordinates are only decoded when asked for. Filtering by symbol copies byte ranges from the mapping
+ * to the output without parsing the kept objects at all.
+ *
+ * Opened with a MapCache, the index and an R-tree over the envelopes are stored after the first scan and
+ * read back on later opens of the unchanged file, which then never reads the map past what is asked for.
+ */
+public class MappedMap implements Closeable {
+    // Files larger than this are mapped as several consecutive segments
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+    private final long size;
+    private final MappedByteBuffer[] segments;
+
+    private final Map<String, Integer> symbolIdsByName = new HashMap<>();
+    private final Map<Integer, Integer> symbolTypes = new HashMap<>();
+
+    private int objectCount;
+    private long[] objectStart = new long[1024];
+    private long[] objectEnd = new long[1024];
+    private int[] symbolIds = new int[1024];
+    private byte[] types = new byte[1024];
+    private int[] envelopes = new int[1024 * 4];
+
+    private static final int INDEX_VERSION = 2;
+
+    // Per objects list under parts/part, in file order: start and end of the <objects ...> start tag,
+    // start of the </objects> end tag (the end of the start tag for <objects/>) and the first object in it
+    private int listCount;
+    private long[] listTagStart = new long[4];
+    private long[] listTagEnd = new long[4];
+    private long[] listCloseStart = new long[4];
+    private int[] listFirstObject = new int[4];
+    // Whether the last list found is still open during the scan
+    private boolean inList;
+    // Byte ranges of undo/redo history, which refers to objects by position and is dropped on output
+    private final List<long[]> historyRanges = new ArrayList<>();
+    private int partCount;
+    private SpatialIndex spatialIndex;
+
+    public MappedMap(File file) throws IOException {
+        this(file, null);
+    }
+
+    /**
+     * @param cache cache to read the index from and store it in, or null to always scan the map
+     */
+    public MappedMap(File file, MapCache cache) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.size = channel.size();
+
+        int segmentCount = (int) Math.max(1, (size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        this.segments = new MappedByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long start = i * SEGMENT_SIZE;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+        }
+
+        String cacheKey = cache == null ? null : MapCache.fileKey(file, "index");
+        if (cacheKey != null && cache.load(cacheKey, this::readIndex) != null) return;
+
+        scan();
+        if (cacheKey != null) {
+            spatialIndex();
+            cache.store(cacheKey, this::writeIndex);
+        }
+    }
+
+    private int byteAt(long position) {
+        return segments[(int) (position / SEGMENT_SIZE)].get((int) (position % SEGMENT_SIZE)) & 0xFF;
+    }
+
+    private void scan() {
+        Deque<String> path = new ArrayDeque<>();
+        long position = 0;
+
+        while (position < size) {
+            if (byteAt(position) != '<') {
+                position++;
+                continue;
+            }
+
+            long tagStart = position;
+            int next = position + 1 < size ? byteAt(position + 1) : -1;
+
+            if (next == '?' || next == '!') {
+                position = skipSpecial(position);
+                continue;
+            }
+
+            if (next == '/') {
+                long nameEnd = nameEnd(position + 2);
+                String name = ascii(position + 2, nameEnd);
+                position = indexOf('>', nameEnd) + 1;
+
+                if (name.equals("objects") && inList) {
+                    listCloseStart[listCount - 1] = tagStart;
+                    inList = false;
+                }
+                if (!path.isEmpty()) path.pop();
+                continue;
+            }
+
+            long nameEnd = nameEnd(position + 1);
+            String name = ascii(position + 1, nameEnd);
+            long tagEnd = indexOf('>', nameEnd);
+            boolean empty = byteAt(tagEnd - 1) == '/';
+            String parent = path.peek();
+
+            if (name.equals("object") && "objects".equals(parent) && inList) {
+                position = indexObject(tagStart, nameEnd, tagEnd, empty);
+                continue;
+            }
+
+            if (name.equals("objects") && "part".equals(parent)) {
+                addList(tagStart, tagEnd + 1, empty);
+            } else if (name.equals("part") && "parts".equals(parent)) {
+                partCount++;
+            } else if (name.equals("symbol") && "symbols".equals(parent)) {
+                recordSymbol(nameEnd, tagEnd);
+            } else if (name.equals("undo") || name.equals("redo")) {
+                long end = empty ? tagEnd + 1 : skipElement(tagEnd + 1, name);
+                historyRanges.add(new long[]{tagStart, end});
+                position = end;
+                continue;
+            }
+
+            if (!empty) path.push(name);
+            position = tagEnd + 1;
+        }
+    }
+
+    private void addList(long tagStart, long tagEnd, boolean empty) {
+        if (listCount == listTagStart.length) {
+            int capacity = listCount * 2;
+            listTagStart = Arrays.copyOf(listTagStart, capacity);
+            listTagEnd = Arrays.copyOf(listTagEnd, capacity);
+            listCloseStart = Arrays.copyOf(listCloseStart, capacity);
+            listFirstObject = Arrays.copyOf(listFirstObject, capacity);
+        }
+
+        listTagStart[listCount] = tagStart;
+        listTagEnd[listCount] = tagEnd;
+        listCloseStart[listCount] = tagEnd;
+        listFirstObject[listCount] = objectCount;
+        listCount++;
+        inList = !empty;
+    }
+
+    /**
+     * Index of the objects list holding the object: the last list starting at or before it.
+     */
+    private int listOf(int object) {
+        int low = 0, high = listCount - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (listFirstObject[middle] <= object) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private long indexObject(long tagStart, long nameEnd, long tagEnd, boolean empty) {
+        long end = empty ? tagEnd + 1 : skipElement(tagEnd + 1, "object");
+
+        if (objectCount == objectStart.length) {
+            int capacity = objectCount * 2;
+            objectStart = Arrays.copyOf(objectStart, capacity);
+            objectEnd = Arrays.copyOf(objectEnd, capacity);
+            symbolIds = Arrays.copyOf(symbolIds, capacity);
+            types = Arrays.copyOf(types, capacity);
+            envelopes = Arrays.copyOf(envelopes, capacity * 4);
+        }
+
+        int object = objectCount++;
+        objectStart[object] = tagStart;
+        objectEnd[object] = end;
+        symbolIds[object] = parseInt(attribute(nameEnd, tagEnd, "symbol"), GeometryCache.NO_SYMBOL);
+        types[object] = (byte) parseInt(attribute(nameEnd, tagEnd, "type"), 0);
+        computeEnvelope(object, tagEnd + 1, end);
+
+        return end;
+    }
+
+    /**
+     * Returns the position just after the end tag that closes the element whose content starts at from.
+     */
+    private long skipElement(long from, String name) {
+        int depth = 1;
+        long position = from;
+
+        while (position < size) {
+            position = indexOf('<', position);
+            if (position >= size) break;
+
+            int next = byteAt(position + 1);
+            if (next == '?' || next == '!') {
+                position = skipSpecial(position);
+                continue;
+            }
+
+            long tagEnd = indexOf('>', position);
+            if (next == '/') {
+                depth--;
+            } else if (byteAt(tagEnd - 1) != '/') {
+                depth++;
+            }
+            position = tagEnd + 1;
+
+            if (depth == 0) return position;
+        }
+
+        throw new IllegalStateException("Unterminated <" + name + "> element");
+    }
+
+    private long skipSpecial(long position) {
+        if (startsWith(position, "<!--")) return indexOf("-->", position + 4) + 3;
+        if (startsWith(position, "<![CDATA[")) return indexOf("]]>", position + 9) + 3;
+        return indexOf('>', position) + 1;
+    }
+
+    private void computeEnvelope(int object, long contentStart, long end) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+
+        long coordsStart = indexOf("<coords", contentStart);
+        if (coordsStart < end) {
+            long textStart = indexOf('>', coordsStart) + 1;
+            long textEnd = Math.min(indexOf('<', textStart), end);
+            long[] values = new long[3];
+
+            long position = textStart;
+            while (position < textEnd) {
+                long entryEnd = Math.min(indexOf(';', position), textEnd);
+                if (parseNumbers(position, entryEnd, values) >= 2) {
+                    minX = Math.min(minX, (int) values[0]);
+                    minY = Math.min(minY, (int) values[1]);
+                    maxX = Math.max(maxX, (int) values[0]);
+                    maxY = Math.max(maxY, (int) values[1]);
+                }
+                position = entryEnd + 1;
+            }
+        }
+
+        envelopes[object * 4] = minX;
+        envelopes[object * 4 + 1] = minY;
+        envelopes[object * 4 + 2] = maxX;
+        envelopes[object * 4 + 3] = maxY;
+    }
+
+    private int parseNumbers(long start, long end, long[] values) {
+        int count = 0;
+        long position = start;
+
+        while (position < end && count < values.length) {
+            int c = byteAt(position);
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                position++;
+                continue;
+            }
+
+            boolean negative = c == '-';
+            if (negative) position++;
+
+            long value = 0;
+            long digitsStart = position;
+            while (position < end && byteAt(position) >= '0' && byteAt(position) <= '9') {
+                value = value * 10 + (byteAt(position) - '0');
+                position++;
+            }
+            if (position == digitsStart) return -1;
+
+            values[count++] = negative ? -value : value;
+        }
+
+        return count;
+    }
+
+    private void recordSymbol(long nameEnd, long tagEnd) {
+        int symbolId = parseInt(attribute(nameEnd, tagEnd, "id"), GeometryCache.NO_SYMBOL);
+        if (symbolId == GeometryCache.NO_SYMBOL) return;
+
+        symbolTypes.put(symbolId, parseInt(attribute(nameEnd, tagEnd, "type"), 0));
+
+        String name = attribute(nameEnd, tagEnd, "name");
+        if (name != null && !name.isEmpty()) symbolIdsByName.put(name.toLowerCase(), symbolId);
+    }
+
+    private String attribute(long from, long tagEnd, String name) {
+        long position = from;
+
+        while (position < tagEnd) {
+            int c = byteAt(position);
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                position++;
+                continue;
+            }
+
+            long attributeNameEnd = position;
+            while (attributeNameEnd < tagEnd && byteAt(attributeNameEnd) != '=') attributeNameEnd++;
+            if (attributeNameEnd >= tagEnd) return null;
+
+            long quote = attributeNameEnd + 1;
+            int quoteChar = byteAt(quote);
+            long valueEnd = indexOf(quoteChar, quote + 1);
+
+            if (ascii(position, attributeNameEnd).trim().equals(name)) {
+                return unescape(utf8(quote + 1, valueEnd));
+            }
+            position = valueEnd + 1;
+        }
+
+        return null;
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('&') < 0) return value;
+
+        return value.replace("&quot;", "\"").replace("&apos;", "'").replace("&lt;", "<")
+                .replace("&gt;", ">").replace("&amp;", "&");
+    }
+
+    private static int parseInt(String value, int fallback) {
+        if (value == null || value.isEmpty()) return fallback;
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private long nameEnd(long position) {
+        while (position < size) {
+            int c = byteAt(position);
+            if (c == ' ' || c == '>' || c == '/' || c == '\n' || c == '\r' || c == '\t') break;
+            position++;
+        }
+        return position;
+    }
+
+    private long indexOf(int value, long from) {
+        for (long position = from; position < size; position++) {
+            if (byteAt(position) == value) return position;
+        }
+        return size;
+    }
+
+    private long indexOf(String value, long from) {
+        for (long position = from; position < size; position = indexOf(value.charAt(0), position + 1)) {
+            if (startsWith(position, value)) return position;
+        }
+        return size;
+    }
+
+    private boolean startsWith(long position, String value) {
+        if (position + value.length() > size) return false;
+
+        for (int i = 0; i < value.length(); i++) {
+            if (byteAt(position + i) != value.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private String ascii(long start, long end) {
+        StringBuilder text = new StringBuilder((int) (end - start));
+        for (long position = start; position < end; position++) text.append((char) byteAt(position));
+        return text.toString();
+    }
+
+    private String utf8(long start, long end) {
+        byte[] bytes = new byte[(int) (end - start)];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) byteAt(start + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public int objectCount() {
+        return objectCount;
+    }
+
+    public int symbolId(int object) {
+        return symbolIds[object];
+    }
+
+    public int type(int object) {
+        return types[object];
+    }
+
+    public int minX(int object) {
+        return envelopes[object * 4];
+    }
+
+    public int minY(int object) {
+        return envelopes[object * 4 + 1];
+    }
+
+    public int maxX(int object) {
+        return envelopes[object * 4 + 2];
+    }
+
+    public int maxY(int object) {
+        return envelopes[object * 4 + 3];
+    }
+
+    public long byteStart(int object) {
+        return objectStart[object];
+    }
+
+    public long byteEnd(int object) {
+        return objectEnd[object];
+    }
+
+    /**
+     * Number of <part> elements. The objects of every part are indexed, in file order.
+     */
+    public int partCount() {
+        return partCount;
+    }
+
+    /**
+     * R-tree over the envelopes of the indexed objects, built on first use unless read from the cache.
+     */
+    public synchronized SpatialIndex spatialIndex() {
+        if (spatialIndex == null) {
+            double[] minX = new double[objectCount], minY = new double[objectCount];
+            double[] maxX = new double[objectCount], maxY = new double[objectCount];
+            for (int i = 0; i < objectCount; i++) {
+                minX[i] = envelopes[i * 4];
+                minY[i] = envelopes[i * 4 + 1];
+                maxX[i] = envelopes[i * 4 + 2];
+                maxY[i] = envelopes[i * 4 + 3];
+            }
+            spatialIndex = new SpatialIndex(minX, minY, maxX, maxY);
+        }
+        return spatialIndex;
+    }
+
+    /**
+     * Type attribute of the symbol with the given id, 0 if unknown.
+     */
+    public int symbolType(int symbolId) {
+        return symbolTypes.getOrDefault(symbolId, 0);
+    }
+
+    /**
+     * Symbol id for a symbol name (case-insensitive), or null if the map has no such symbol.
+     */
+    public Integer symbolId(String name) {
+        return symbolIdsByName.get(name.toLowerCase());
+    }
+
+    /**
+     * The object's XML exactly as it appears in the file.
+     */
+    public String objectXml(int object) {
+        return utf8(objectStart[object], objectEnd[object]);
+    }
+
+    /**
+     * The object's coordinates as consecutive (x, y, flags) triples.
+     */
+    public int[] coordinates(int object) {
+        long coordsStart = indexOf("<coords", objectStart[object]);
+        if (coordsStart >= objectEnd[object]) return new int[0];
+
+        long textStart = indexOf('>', coordsStart) + 1;
+        long textEnd = Math.min(indexOf('<', textStart), objectEnd[object]);
+        int[] result = new int[16 * 3];
+        int count = 0;
+        long[] values = new long[3];
+
+        long position = textStart;
+        while (position < textEnd) {
+            long entryEnd = Math.min(indexOf(';', position), textEnd);
+            values[2] = 0;
+            if (parseNumbers(position, entryEnd, values) >= 2) {
+                if ((count + 1) * 3 > result.length) result = Arrays.copyOf(result, result.length * 2);
+                result[count * 3] = (int) values[0];
+                result[count * 3 + 1] = (int) values[1];
+                result[count * 3 + 2] = (int) values[2];
+                count++;
+            }
+            position = entryEnd + 1;
+        }
+
+        return Arrays.copyOf(result, count * 3);
+    }
+
+    /**
+     * Writes a copy of the map without the objects whose symbol is in idsToFilter and without the undo
+     * history. Kept objects, symbols and everything else are copied byte for byte; only the objects count
+     * of each part is rewritten. Returns the number of objects removed from all parts.
+     */
+    public int filterBySymbol(BitSet idsToFilter, File output) throws IOException {
+        int[] kept = new int[objectCount];
+        int keptCount = 0;
+        for (int i = 0; i < objectCount; i++) {
+            if (symbolIds[i] >= 0 && !idsToFilter.get(symbolIds[i])) kept[keptCount++] = i;
+        }
+
+        writeObjects(output, Arrays.copyOf(kept, keptCount), null);
+        return objectCount - keptCount;
+    }
+
+    /**
+     * Writes a copy of the map with only the given objects and without the undo history. Each object goes
+     * to the part it is in, in the given order within the part. Everything else is copied byte for byte.
+     * An object with a non-null entry in replacements is written as that XML instead of its own bytes.
+     */
+    void writeObjects(File output, int[] objects, String[] replacements) throws IOException {
+        if (listCount == 0) {
+            throw new IOException("Map has no objects list");
+        }
+
+        // Positions in objects, grouped by list with a counting sort that keeps their order
+        int[] listOfObject = new int[objects.length];
+        int[] listStart = new int[listCount + 1];
+        for (int k = 0; k < objects.length; k++) {
+            listOfObject[k] = listOf(objects[k]);
+            listStart[listOfObject[k] + 1]++;
+        }
+        for (int l = 0; l < listCount; l++) listStart[l + 1] += listStart[l];
+        int[] order = new int[objects.length];
+        int[] next = Arrays.copyOf(listStart, listCount);
+        for (int k = 0; k < objects.length; k++) order[next[listOfObject[k]]++] = k;
+
+        try (FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            copy(out, 0, listTagStart[0]);
+
+            ByteBuffer newLine = ByteBuffer.wrap(new byte[]{'\n'});
+            for (int l = 0; l < listCount; l++) {
+                if (l > 0) copyWithoutHistory(out, listEnd(l - 1), listTagStart[l]);
+
+                int count = listStart[l + 1] - listStart[l];
+                out.write(ByteBuffer.wrap(("<objects count=\"" + count + "\">").getBytes(StandardCharsets.UTF_8)));
+                for (int i = listStart[l]; i < listStart[l + 1]; i++) {
+                    int k = order[i];
+                    out.write(newLine.rewind());
+                    if (replacements != null && replacements[k] != null) {
+                        out.write(ByteBuffer.wrap(replacements[k].getBytes(StandardCharsets.UTF_8)));
+                    } else {
+                        copy(out, objectStart[objects[k]], objectEnd[objects[k]]);
+                    }
+                }
+                out.write(newLine.rewind());
+
+                // An <objects/> list has no end tag to copy
+                if (isEmptyList(l)) out.write(ByteBuffer.wrap("</objects>".getBytes(StandardCharsets.UTF_8)));
+            }
+
+            copyWithoutHistory(out, listEnd(listCount - 1), size);
+        }
+    }
+
+    private boolean isEmptyList(int list) {
+        return byteAt(listTagEnd[list] - 2) == '/';
+    }
+
+    /**
+     * Position after the list's objects: its </objects> end tag, or the end of an <objects/> tag.
+     */
+    private long listEnd(int list) {
+        return isEmptyList(list) ? listTagEnd[list] : listCloseStart[list];
+    }
+
+    private void copyWithoutHistory(FileChannel out, long start, long end) throws IOException {
+        long position = start;
+        for (long[] history : historyRanges) {
+            if (history[0] < position || history[1] > end) continue;
+            copy(out, position, history[0]);
+            position = history[1];
+        }
+        copy(out, position, end);
+    }
+
+    private Object readIndex(DataInputStream in) throws IOException {
+        if (in.readInt() != INDEX_VERSION) throw new IOException("index has an older layout");
+        if (in.readLong() != size) throw new IOException("index is for another version of the map");
+
+        // Read into locals first, so a truncated entry leaves the map ready to be scanned instead
+        int count = in.readInt();
+        long[] starts = readLongs(in, count);
+        long[] ends = readLongs(in, count);
+        int[] ids = GeometryCache.readInts(in, count);
+        byte[] objectTypes = new byte[count];
+        in.readFully(objectTypes);
+        int[] bounds = GeometryCache.readInts(in, count * 4);
+
+        int lists = in.readInt();
+        long[] tagStarts = readLongs(in, lists);
+        long[] tagEnds = readLongs(in, lists);
+        long[] closeStarts = readLongs(in, lists);
+        int[] firstObjects = GeometryCache.readInts(in, lists);
+        int parts = in.readInt();
+
+        List<long[]> history = new ArrayList<>();
+        int historyCount = in.readInt();
+        for (int i = 0; i < historyCount; i++) history.add(new long[]{in.readLong(), in.readLong()});
+
+        Map<String, Integer> idsByName = new HashMap<>();
+        int symbolCount = in.readInt();
+        for (int i = 0; i < symbolCount; i++) idsByName.put(in.readUTF(), in.readInt());
+        Map<Integer, Integer> typesById = new HashMap<>();
+        int typeCount = in.readInt();
+        for (int i = 0; i < typeCount; i++) typesById.put(in.readInt(), in.readInt());
+
+        SpatialIndex index = SpatialIndex.readFrom(in);
+
+        objectCount = count;
+        objectStart = starts;
+        objectEnd = ends;
+        symbolIds = ids;
+        types = objectTypes;
+        envelopes = bounds;
+        listCount = lists;
+        listTagStart = tagStarts;
+        listTagEnd = tagEnds;
+        listCloseStart = closeStarts;
+        listFirstObject = firstObjects;
+        partCount = parts;
+        historyRanges.addAll(history);
+        symbolIdsByName.putAll(idsByName);
+        symbolTypes.putAll(typesById);
+        spatialIndex = index;
+        return this;
+    }
+
+    private void writeIndex(DataOutputStream out) throws IOException {
+        out.writeInt(INDEX_VERSION);
+        out.writeLong(size);
+
+        out.writeInt(objectCount);
+        writeLongs(out, objectStart, objectCount);
+        writeLongs(out, objectEnd, objectCount);
+        GeometryCache.writeInts(out, symbolIds, objectCount);
+        out.write(types, 0, objectCount);
+        GeometryCache.writeInts(out, envelopes, objectCount * 4);
+
+        out.writeInt(listCount);
+        writeLongs(out, listTagStart, listCount);
+        writeLongs(out, listTagEnd, listCount);
+        writeLongs(out, listCloseStart, listCount);
+        GeometryCache.writeInts(out, listFirstObject, listCount);
+        out.writeInt(partCount);
+
+        out.writeInt(historyRanges.size());
+        for (long[] history : historyRanges) {
+            out.writeLong(history[0]);
+            out.writeLong(history[1]);
+        }
+
+        out.writeInt(symbolIdsByName.size());
+        for (Map.Entry<String, Integer> symbol : symbolIdsByName.entrySet()) {
+            out.writeUTF(symbol.getKey());
+            out.writeInt(symbol.getValue());
+        }
+        out.writeInt(symbolTypes.size());
+        for (Map.Entry<Integer, Integer> symbol : symbolTypes.entrySet()) {
+            out.writeInt(symbol.getKey());
+            out.writeInt(symbol.getValue());
+        }
+
+        spatialIndex().writeTo(out);
+    }
+
+    private static long[] readLongs(DataInput in, int length) throws IOException {
+        byte[] bytes = new byte[length * 8];
+        in.readFully(bytes);
+
+        long[] values = new long[length];
+        ByteBuffer.wrap(bytes).asLongBuffer().get(values);
+        return values;
+    }
+
+    private static void writeLongs(DataOutput out, long[] values, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(length * 8);
+        bytes.asLongBuffer().put(values, 0, length);
+        out.write(bytes.array());
+    }
+
+    private void copy(FileChannel out, long start, long end) throws IOException {
+        long position = start;
+
+        while (position < end) {
+            int segment = (int) (position / SEGMENT_SIZE);
+            int offset = (int) (position % SEGMENT_SIZE);
+            int length = (int) Math.min(end - position, SEGMENT_SIZE - offset);
+
+            ByteBuffer slice = segments[segment].duplicate();
+            slice.position(offset).limit(offset + length);
+            while (slice.hasRemaining()) out.write(slice);
+
+            position += length;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
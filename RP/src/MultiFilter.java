@@ -0,0 +1,320 @@
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.*;
+import org.xml.sax.SAXException;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Filters one map with several profiles in a single run. The map is parsed once and its symbol table,
+ * geometry and overlaps are built once for all profiles. Every object then gets a bitmask with one bit
+ * per profile that removes it, and the results are written in one walk over the objects, each to its
+ * own OmapWriter, laid out exactly as FilterObjects saves them.
+ *
+ * Outputs are .omap files, gzip-compressed if the name ends in ".gz"; convert them with --convert for a
+ * binary map. The input may be binary.
+ */
+public class MultiFilter {
+    public static final int MAX_PROFILES = Long.SIZE;
+
+    /**
+     * One result of the run: what to remove and where to write the rest. objsDeleted and overlaysHandled
+     * are set by filterObjects(), as on FilterObjects.
+     */
+    public static class Profile {
+        public final ArrayList<String> symbols;
+        public final FilterRules rules;
+        public final boolean removeOverlays;
+        public final File output;
+        public int objsDeleted;
+        public int overlaysHandled;
+
+        /**
+         * @param rules rules applied after the symbol names, or null
+         */
+        public Profile(ArrayList<String> symbols, FilterRules rules, boolean removeOverlays, File output) {
+            this.symbols = symbols;
+            this.rules = rules;
+            this.removeOverlays = removeOverlays;
+            this.output = output;
+        }
+    }
+
+    private final File input;
+    private final List<Profile> profiles;
+    private final MapCache cache;
+    private final PipelineMetrics metrics = new PipelineMetrics();
+    private boolean prettyPrint;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    public MultiFilter(File input, List<Profile> profiles) {
+        this(input, profiles, null);
+    }
+
+    /**
+     * @param cache cache for the geometry and overlaps of the map, or null to always compute them
+     */
+    public MultiFilter(File input, List<Profile> profiles, MapCache cache) {
+        if (profiles.isEmpty() || profiles.size() > MAX_PROFILES) {
+            throw new IllegalArgumentException("expected 1 to " + MAX_PROFILES + " profiles, got " + profiles.size());
+        }
+        for (Profile profile : profiles) {
+            if (BinaryMap.isBinaryMap(profile.output)) {
+                throw new IllegalArgumentException("cannot write binary map " + profile.output.getName() + "; write an .omap and convert it");
+            }
+        }
+
+        this.input = input;
+        this.profiles = profiles;
+        this.cache = cache;
+    }
+
+    /**
+     * Indents the outputs with four spaces per level, like FilterObjects.setPrettyPrint.
+     */
+    public void setPrettyPrint(boolean prettyPrint) {
+        this.prettyPrint = prettyPrint;
+    }
+
+    /**
+     * Number of threads the overlap detection uses, like FilterObjects.setParallelism.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void filterObjects() throws ParserConfigurationException, IOException, SAXException {
+        boolean handleOverlays = false;
+        for (Profile profile : profiles) handleOverlays |= profile.removeOverlays;
+
+        Document document;
+        String cacheKey = null;
+        PipelineMetrics.Timer parseTimer = metrics.start(PipelineMetrics.Stage.PARSE);
+        try (parseTimer) {
+            if (handleOverlays && cache != null) cacheKey = MapCache.key(input);
+            document = FilterObjects.parseMap(input);
+        }
+
+        SymbolTable symbols;
+        CompiledRules[] compiled = new CompiledRules[profiles.size()];
+        boolean perSymbol = true;
+        PipelineMetrics.Timer symbolTimer = metrics.start(PipelineMetrics.Stage.SYMBOL_MAP);
+        try (symbolTimer) {
+            symbols = new SymbolTable(document);
+
+            for (int p = 0; p < compiled.length; p++) {
+                Profile profile = profiles.get(p);
+                FilterRules rules = FilterRules.forSymbols(profile.symbols);
+                if (profile.rules != null) rules = rules.followedBy(profile.rules);
+
+                compiled[p] = rules.compile(symbols);
+                perSymbol &= compiled[p].isPerSymbol();
+            }
+        }
+
+        MapObjects objects = MapObjects.of(document);
+        OverlayHandler overlays = null;
+        GeometryCache geometry = null;
+
+        if (handleOverlays) {
+            PipelineMetrics.Timer overlapTimer = metrics.start(PipelineMetrics.Stage.OVERLAP_DETECTION);
+            try (overlapTimer) {
+                overlays = new OverlayHandler(document, symbols, metrics, cache, cacheKey);
+                overlays.identifyOverlays(parallelism);
+            }
+            geometry = overlays.getGeometry();
+        }
+
+        long[] removed;
+        PipelineMetrics.Timer filterTimer = metrics.start(PipelineMetrics.Stage.FILTER);
+        try (filterTimer) {
+            if (geometry == null && !perSymbol) geometry = new GeometryCache(objects, symbols);
+            removed = removedMasks(objects, compiled, geometry);
+        }
+
+        if (handleOverlays) {
+            PipelineMetrics.Timer hideTimer = metrics.start(PipelineMetrics.Stage.HIDE_RESOLUTION);
+            try (hideTimer) {
+                hideOverlaps(overlays, compiled, removed);
+            }
+        }
+
+        PipelineMetrics.Timer saveTimer = metrics.start(PipelineMetrics.Stage.SAVE);
+        try (saveTimer) {
+            write(document, removed);
+        }
+    }
+
+    /**
+     * Bit p of removed[i] is set if profile p removes object i. Objects FilterObjects never copies, those
+     * with an empty or non-integer symbol attribute, have every bit set without counting as deleted.
+     */
+    private long[] removedMasks(MapObjects objects, CompiledRules[] compiled, GeometryCache geometry) {
+        int count = objects.getLength();
+        long[] removed = new long[count];
+        int[] symbolIds = new int[count];
+
+        for (int i = 0; i < count; i++) {
+            String symbolAttr = objects.item(i).getAttribute("symbol");
+            metrics.increment(PipelineMetrics.Counter.OBJECTS_SCANNED);
+
+            try {
+                symbolIds[i] = Integer.parseInt(symbolAttr);
+            } catch (NumberFormatException e) {
+                removed[i] = -1L;
+            }
+        }
+
+        for (int p = 0; p < compiled.length; p++) {
+            long bit = 1L << p;
+            BitSet idsToFilter = compiled[p].filteredSymbols();
+            BitSet removedObjects = compiled[p].isPerSymbol() ? null : compiled[p].evaluate(geometry);
+            Profile profile = profiles.get(p);
+
+            for (int i = 0; i < count; i++) {
+                if (removed[i] == -1L) continue;
+
+                int symbolId = symbolIds[i];
+                if ((symbolId >= 0 && idsToFilter.get(symbolId)) || (removedObjects != null && removedObjects.get(i))) {
+                    removed[i] |= bit;
+                    profile.objsDeleted++;
+                }
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Resolves the shared overlaps once per profile that removes overlays, with that profile's priorities
+     * and without the objects it already removed, and adds the hidden objects to its bit.
+     */
+    private void hideOverlaps(OverlayHandler overlays, CompiledRules[] compiled, long[] removed) {
+        GeometryCache geometry = overlays.getGeometry();
+
+        for (int p = 0; p < compiled.length; p++) {
+            Profile profile = profiles.get(p);
+            if (!profile.removeOverlays) continue;
+
+            long bit = 1L << p;
+            BitSet excludedObjects = new BitSet(removed.length);
+            for (int i = 0; i < removed.length; i++) {
+                if ((removed[i] & bit) != 0) excludedObjects.set(i);
+            }
+
+            int[] hidden = new ConflictResolver(geometry.size(), overlays.getOverlaps(), compiled[p].symbols(),
+                    compiled[p].filteredSymbols(), excludedObjects).resolve();
+
+            for (int index : hidden) {
+                if ((removed[index] & bit) == 0) {
+                    removed[index] |= bit;
+                    profile.overlaysHandled++;
+                }
+            }
+        }
+    }
+
+    private void write(Document document, long[] removed) throws ParserConfigurationException, IOException {
+        List<Element> sourceParts = MapObjects.parts(document);
+        Element looseObjects = sourceParts.isEmpty() ? MapObjects.looseObjects(document) : null;
+        if (sourceParts.isEmpty() && looseObjects == null) {
+            System.out.println("Warning: No 'objects' element found in the document");
+            return;
+        }
+
+        // Everything but the objects is the same in every output: the root and parts are built once, the
+        // sections around them are written from StaticSections
+        Document skeleton = FilterObjects.documentBuilder().newDocument();
+        Element root = FilterObjects.appendResultRoot(document, skeleton);
+        StaticSections sections = StaticSections.forFile(input.getAbsolutePath() + ":" + input.length() + ":" + input.lastModified(), document);
+        Element parts = MapObjects.childElement(root, "parts");
+
+        List<Element> partShells = new ArrayList<>();
+        List<List<Element>> partObjects = new ArrayList<>();
+        if (looseObjects != null) {
+            Element part = skeleton.createElement("part");
+            part.setAttribute("name", "default part");
+            partShells.add(part);
+            partObjects.add(MapObjects.objects(looseObjects));
+        } else {
+            for (Element sourcePart : sourceParts) {
+                Element part = skeleton.createElement("part");
+                FilterObjects.copyAttributes(sourcePart, part);
+                partShells.add(part);
+
+                Element sourceObjects = MapObjects.childElement(sourcePart, "objects");
+                partObjects.add(sourceObjects == null ? new ArrayList<>() : MapObjects.objects(sourceObjects));
+            }
+        }
+        parts.setAttribute("count", String.valueOf(partShells.size()));
+
+        // Object counts per profile and part, needed before the objects are written
+        int[][] counts = new int[profiles.size()][partShells.size()];
+        int index = 0;
+        for (int k = 0; k < partObjects.size(); k++) {
+            for (int i = 0; i < partObjects.get(k).size(); i++, index++) {
+                for (int p = 0; p < profiles.size(); p++) {
+                    if ((removed[index] & (1L << p)) == 0) counts[p][k]++;
+                }
+            }
+        }
+
+        OmapWriter[] writers = new OmapWriter[profiles.size()];
+        try {
+            for (int p = 0; p < writers.length; p++) {
+                writers[p] = OmapWriter.open(profiles.get(p).output, prettyPrint);
+                writers[p].writeDeclaration();
+                writers[p].start(root);
+            }
+
+            byte[] head = sections.head(prettyPrint);
+            for (OmapWriter writer : writers) {
+                writer.bytes(head);
+                writer.start(parts);
+            }
+
+            index = 0;
+            for (int k = 0; k < partShells.size(); k++) {
+                for (int p = 0; p < writers.length; p++) {
+                    writers[p].start(partShells.get(k));
+                    writers[p].start("objects");
+                    writers[p].attribute("count", counts[p][k]);
+                }
+
+                for (Element object : partObjects.get(k)) {
+                    long mask = removed[index++];
+                    for (int p = 0; p < writers.length; p++) {
+                        if ((mask & (1L << p)) == 0) writers[p].node(object);
+                    }
+                }
+
+                for (OmapWriter writer : writers) {
+                    writer.end();
+                    writer.end();
+                }
+            }
+
+            byte[] tail = sections.tail(prettyPrint);
+            for (OmapWriter writer : writers) {
+                writer.end();
+                writer.bytes(tail);
+            }
+
+            for (OmapWriter writer : writers) {
+                writer.end();
+                writer.text("\n");
+            }
+        } finally {
+            for (OmapWriter writer : writers) {
+                if (writer != null) writer.close();
+            }
+        }
+
+        for (Profile profile : profiles) {
+            metrics.add(PipelineMetrics.Counter.BYTES_WRITTEN, profile.output.length());
+        }
+    }
+}
@@ -0,0 +1,477 @@
+import org.w3c.dom.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streaming .omap writer. Characters are encoded to UTF-8 straight into a byte buffer that is handed to
+ * an NIO channel when full; numbers are written digit by digit without creating strings.
+ *
+ * Output is compact by default: no whitespace is added and whitespace-only text between elements is
+ * dropped. With pretty printing, elements are indented by four spaces per level exactly as the indenting
+ * DOM Transformer did. Either form reads back the same in the DOM parser and in OpenOrienteering Mapper.
+ *
+ * Elements can be written one by one (start, attribute, text, end), copied from a DOM (node), spliced in
+ * as bytes serialised earlier (fragment, bytes), or a whole DOM document at once.
+ */
+public class OmapWriter implements Closeable {
+    private static final String DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n";
+    private static final byte[] INDENT = "    ".getBytes();
+    // Longest encoding of one char: an entity such as &quot; (a surrogate pair needs 4 bytes for 2 chars)
+    private static final int MAX_BYTES_PER_CHAR = 6;
+    private static final String[] TEXT_ESCAPES = new String[128];
+    private static final String[] ATTRIBUTE_ESCAPES = new String[128];
+    private static final Comparator<Attr> ATTRIBUTE_ORDER = (a, b) -> {
+        boolean namespaceA = a.getName().startsWith("xmlns");
+        boolean namespaceB = b.getName().startsWith("xmlns");
+        if (namespaceA != namespaceB) return namespaceA ? -1 : 1;
+        return a.getName().compareTo(b.getName());
+    };
+
+    static {
+        TEXT_ESCAPES['&'] = "&amp;";
+        TEXT_ESCAPES['<'] = "&lt;";
+        TEXT_ESCAPES['>'] = "&gt;";
+        TEXT_ESCAPES['\r'] = "&#13;";
+
+        ATTRIBUTE_ESCAPES['&'] = "&amp;";
+        ATTRIBUTE_ESCAPES['<'] = "&lt;";
+        ATTRIBUTE_ESCAPES['>'] = "&gt;";
+        ATTRIBUTE_ESCAPES['"'] = "&quot;";
+        ATTRIBUTE_ESCAPES['\n'] = "&#10;";
+        ATTRIBUTE_ESCAPES['\r'] = "&#13;";
+        ATTRIBUTE_ESCAPES['\t'] = "&#9;";
+    }
+
+    private final WritableByteChannel channel;
+    private final boolean pretty;
+    private final byte[] buffer = new byte[1 << 16];
+    private final ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+    private final char[] digits = new char[20];
+    private int position;
+    private long written;
+
+    // Element writing state: names of open elements, and whether the last start tag is still open
+    private final Deque<String> open = new ArrayDeque<>();
+    private boolean startTagOpen;
+    private boolean hasChildElements;
+
+    public OmapWriter(WritableByteChannel channel, boolean pretty) {
+        this.channel = channel;
+        this.pretty = pretty;
+    }
+
+    /**
+     * Writes to out; close() closes it, flush() leaves it open.
+     */
+    public OmapWriter(OutputStream out, boolean pretty) {
+        this(Channels.newChannel(out), pretty);
+    }
+
+    /**
+     * Opens a writer on a file, gzip-compressed if the file name ends in ".gz".
+     */
+    public static OmapWriter open(File file, boolean pretty) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        if (!file.getName().endsWith(".gz")) {
+            return new OmapWriter(channel, pretty);
+        }
+
+        OutputStream gzip = new GZIPOutputStream(Channels.newOutputStream(channel), 1 << 16);
+        return new OmapWriter(gzip, pretty);
+    }
+
+    /**
+     * Uncompressed bytes written so far.
+     */
+    public long bytesWritten() {
+        return written + position;
+    }
+
+    public void writeDeclaration() throws IOException {
+        ascii(DECLARATION);
+    }
+
+    /**
+     * Writes the declaration, the document element and a final line break.
+     */
+    public void writeDocument(Document document) throws IOException {
+        writeDeclaration();
+        writeNode(document.getDocumentElement(), 0);
+        ascii("\n");
+    }
+
+    /**
+     * Writes an element and everything below it. Child elements are placed on their own lines (when
+     * pretty printing) unless the element also has text; whitespace-only text between child elements is
+     * dropped; attributes are written namespace declarations first, then in name order.
+     */
+    public void writeNode(Node node, int depth) throws IOException {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                writeElement((Element) node, depth);
+                break;
+            case Node.TEXT_NODE:
+                escapeText(node.getNodeValue());
+                break;
+            case Node.CDATA_SECTION_NODE:
+                ascii("<![CDATA[");
+                utf8(node.getNodeValue());
+                ascii("]]>");
+                break;
+            case Node.COMMENT_NODE:
+                ascii("<!--");
+                utf8(node.getNodeValue());
+                ascii("-->");
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void writeElement(Element element, int depth) throws IOException {
+        put('<');
+        utf8(element.getTagName());
+        writeAttributes(element.getAttributes());
+
+        boolean started = false;
+        boolean elementChildren = false;
+        boolean textChildren = false;
+        String pendingWhitespace = null;
+
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            short type = child.getNodeType();
+
+            if (type == Node.ELEMENT_NODE || type == Node.COMMENT_NODE) {
+                if (!started) {
+                    put('>');
+                    started = true;
+                }
+                pendingWhitespace = null;
+                if (!textChildren) newLine(depth + 1);
+                elementChildren = true;
+                writeNode(child, depth + 1);
+            } else if (type == Node.TEXT_NODE || type == Node.CDATA_SECTION_NODE) {
+                String text = child.getNodeValue();
+                if (type == Node.TEXT_NODE && !textChildren && isWhitespace(text)) {
+                    pendingWhitespace = pendingWhitespace == null ? text : pendingWhitespace + text;
+                    continue;
+                }
+                if (!started) {
+                    put('>');
+                    started = true;
+                }
+                if (pendingWhitespace != null && !elementChildren) escapeText(pendingWhitespace);
+                pendingWhitespace = null;
+                writeNode(child, depth + 1);
+                textChildren = true;
+            }
+        }
+
+        if (!started) {
+            if (pendingWhitespace == null) {
+                ascii("/>");
+                return;
+            }
+            put('>');
+            escapeText(pendingWhitespace);
+        } else if (elementChildren && !textChildren) {
+            newLine(depth);
+        }
+
+        ascii("</");
+        utf8(element.getTagName());
+        put('>');
+    }
+
+    private void writeAttributes(NamedNodeMap attributes) throws IOException {
+        int count = attributes.getLength();
+        if (count == 0) return;
+
+        // The parser keeps attributes sorted by name, so they usually only need checking, not sorting
+        boolean ordered = true;
+        for (int i = 1; i < count && ordered; i++) {
+            ordered = ATTRIBUTE_ORDER.compare((Attr) attributes.item(i - 1), (Attr) attributes.item(i)) <= 0;
+        }
+
+        if (ordered) {
+            for (int i = 0; i < count; i++) {
+                Attr attribute = (Attr) attributes.item(i);
+                attribute(attribute.getName(), attribute.getValue());
+            }
+            return;
+        }
+
+        Attr[] sorted = new Attr[count];
+        for (int i = 0; i < count; i++) sorted[i] = (Attr) attributes.item(i);
+        Arrays.sort(sorted, ATTRIBUTE_ORDER);
+        for (Attr attribute : sorted) {
+            attribute(attribute.getName(), attribute.getValue());
+        }
+    }
+
+    private static boolean isWhitespace(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Starts an element below the current one. Attributes may be added until content is written.
+     */
+    public void start(String name) throws IOException {
+        if (startTagOpen) put('>');
+        if (!open.isEmpty()) newLine(open.size());
+
+        put('<');
+        utf8(name);
+        open.push(name);
+        startTagOpen = true;
+        hasChildElements = false;
+    }
+
+    /**
+     * Starts an element with the name and attributes of element, in the order writeNode() uses; its
+     * children are not written.
+     */
+    public void start(Element element) throws IOException {
+        start(element.getTagName());
+        writeAttributes(element.getAttributes());
+    }
+
+    /**
+     * Writes a DOM node and everything below it as the next child of the current element.
+     */
+    public void node(Node node) throws IOException {
+        if (startTagOpen) {
+            put('>');
+            startTagOpen = false;
+        }
+        newLine(open.size());
+        writeNode(node, open.size());
+        hasChildElements = true;
+    }
+
+    /**
+     * Serialises nodes as the children of an element at depth - 1 would be written, each on a new line
+     * when pretty printing, for splicing into later output with bytes().
+     */
+    public static byte[] fragment(List<Node> nodes, int depth, boolean pretty) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OmapWriter writer = new OmapWriter(out, pretty);
+        try {
+            for (Node node : nodes) {
+                writer.newLine(depth);
+                writer.writeNode(node, depth);
+            }
+            writer.flush();
+        } catch (IOException e) {
+            // Writing to a byte array does not fail
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a fragment() of child elements of the current element, serialised at its depth + 1.
+     */
+    public void bytes(byte[] fragment) throws IOException {
+        if (startTagOpen) {
+            put('>');
+            startTagOpen = false;
+        }
+        if (fragment.length == 0) return;
+
+        if (position + fragment.length > buffer.length) drain();
+        if (fragment.length > buffer.length) {
+            ByteBuffer direct = ByteBuffer.wrap(fragment);
+            while (direct.hasRemaining()) channel.write(direct);
+            written += fragment.length;
+        } else {
+            System.arraycopy(fragment, 0, buffer, position, fragment.length);
+            position += fragment.length;
+        }
+        hasChildElements = true;
+    }
+
+    public void attribute(String name, String value) throws IOException {
+        put(' ');
+        utf8(name);
+        ascii("=\"");
+        escapeAttribute(value);
+        put('"');
+    }
+
+    public void attribute(String name, long value) throws IOException {
+        put(' ');
+        utf8(name);
+        ascii("=\"");
+        number(value);
+        put('"');
+    }
+
+    /**
+     * Text content of the current element; the element's end tag follows it on the same line.
+     */
+    public void text(String text) throws IOException {
+        if (startTagOpen) {
+            put('>');
+            startTagOpen = false;
+        }
+        escapeText(text);
+    }
+
+    public void end() throws IOException {
+        String name = open.pop();
+
+        if (startTagOpen) {
+            ascii("/>");
+            startTagOpen = false;
+        } else {
+            if (hasChildElements) newLine(open.size());
+            ascii("</");
+            utf8(name);
+            put('>');
+        }
+
+        // The parent now has a child element, so its end tag goes on a line of its own
+        hasChildElements = true;
+    }
+
+    private void newLine(int depth) throws IOException {
+        if (!pretty) return;
+
+        put('\n');
+        for (int i = 0; i < depth; i++) {
+            if (position + INDENT.length > buffer.length) drain();
+            System.arraycopy(INDENT, 0, buffer, position, INDENT.length);
+            position += INDENT.length;
+        }
+    }
+
+    public void number(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            ascii(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            put('-');
+            value = -value;
+        }
+
+        int length = 0;
+        do {
+            digits[length++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+
+        if (position + length > buffer.length) drain();
+        while (length > 0) buffer[position++] = (byte) digits[--length];
+    }
+
+    private void escapeText(String text) throws IOException {
+        encode(text, TEXT_ESCAPES);
+    }
+
+    private void escapeAttribute(String value) throws IOException {
+        encode(value, ATTRIBUTE_ESCAPES);
+    }
+
+    private void utf8(String text) throws IOException {
+        encode(text, null);
+    }
+
+    /**
+     * Encodes text as UTF-8, replacing the ASCII characters marked in escapes by their entities. The
+     * text is handled in chunks that are sure to fit the buffer, so plain ASCII is copied in a tight loop.
+     */
+    private void encode(String text, String[] escapes) throws IOException {
+        int length = text.length();
+        int i = 0;
+
+        while (i < length) {
+            int room = (buffer.length - position) / MAX_BYTES_PER_CHAR;
+            if (room == 0) {
+                drain();
+                continue;
+            }
+
+            byte[] buf = buffer;
+            int pos = position;
+            int end = Math.min(length, i + room);
+
+            while (i < end) {
+                char c = text.charAt(i++);
+
+                if (c < 0x80) {
+                    String escape = escapes == null ? null : escapes[c];
+                    if (escape == null) {
+                        buf[pos++] = (byte) c;
+                    } else {
+                        for (int e = 0; e < escape.length(); e++) buf[pos++] = (byte) escape.charAt(e);
+                    }
+                } else if (c < 0x800) {
+                    buf[pos++] = (byte) (0xC0 | (c >> 6));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i < length && Character.isLowSurrogate(text.charAt(i))) {
+                    // The pair takes 4 bytes for 2 chars, within what was reserved even at the chunk end
+                    int codePoint = Character.toCodePoint(c, text.charAt(i++));
+                    buf[pos++] = (byte) (0xF0 | (codePoint >> 18));
+                    buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    buf[pos++] = (byte) (0xE0 | (c >> 12));
+                    buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+
+            position = pos;
+        }
+    }
+
+    private void ascii(String text) throws IOException {
+        if (position + text.length() > buffer.length) drain();
+        for (int i = 0; i < text.length(); i++) {
+            buffer[position++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void put(int b) throws IOException {
+        if (position == buffer.length) drain();
+        buffer[position++] = (byte) b;
+    }
+
+    private void drain() throws IOException {
+        wrapped.clear().limit(position);
+        while (wrapped.hasRemaining()) channel.write(wrapped);
+        written += position;
+        position = 0;
+    }
+
+    /**
+     * Writes out everything buffered so far.
+     */
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -1,25 +1,44 @@
 import org.w3c.dom.*;
 import java.awt.geom.Area;
-import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.io.*;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
 
 public class OverlayHandler {
+    // Maximum distance between a curve and its flattened segments when measuring areas, in map units
+    static final double AREA_FLATNESS = 0.5;
+
     private final Document document;
-    private final Map<String, Integer> symbolPriorities;
+    private final SymbolTable symbols;
     private final Map<Integer, Element> objectsById;
     private final List<OverlapPair> overlaps;
+    private final GeometryCache geometry;
+    private final PipelineMetrics metrics;
+    private final MapCache cache;
+    private final String cacheKey;
+    // True when the overlaps were read from the cache and identifyOverlays() has nothing left to do
+    private boolean overlapsCached;
+    private boolean overlapsIdentified;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
 
     public static class OverlapPair {
         public final Element object1;
         public final Element object2;
+        public final int index1;
+        public final int index2;
         public final int symbolId1;
         public final int symbolId2;
         public final double overlapSize;
 
-        public OverlapPair(Element object1, Element object2, int symbolId1, int symbolId2, double overlapSize) {
+        public OverlapPair(Element object1, Element object2, int index1, int index2, int symbolId1, int symbolId2, double overlapSize) {
             this.object1 = object1;
             this.object2 = object2;
+            this.index1 = index1;
+            this.index2 = index2;
             this.symbolId1 = symbolId1;
             this.symbolId2 = symbolId2;
             this.overlapSize = overlapSize;
@@ -35,82 +54,85 @@ public class OverlayHandler {
     }
 
     public OverlayHandler(Document document) {
-        this.document = document;
-        this.symbolPriorities = new HashMap<>();
-        this.objectsById = new HashMap<>();
-        this.overlaps = new ArrayList<>();
-
-        loadSymbolPriorities();
-
-        loadObjects();
+        this(document, new PipelineMetrics());
     }
 
-    private void loadSymbolPriorities() {
-        NodeList symbols = document.getElementsByTagName("symbol");
-        for (int i = 0; i < symbols.getLength(); i++) {
-            Node node = symbols.item(i);
-            if (node.getNodeType() == Node.ELEMENT_NODE) {
-                Element symbol = (Element) node;
-                String idAttr = symbol.getAttribute("id");
+    public OverlayHandler(Document document, PipelineMetrics metrics) {
+        this(document, new SymbolTable(document), metrics);
+    }
 
-                if (idAttr == null || idAttr.trim().isEmpty()) {
-                    continue;
-                }
+    /**
+     * @param symbols symbol table of the document, may be shared with other handlers on the same map
+     */
+    public OverlayHandler(Document document, SymbolTable symbols, PipelineMetrics metrics) {
+        this(document, symbols, metrics, null, null);
+    }
 
-                int id;
+    /**
+     * Geometry and overlaps are read from the cache entry for cacheKey if there is one, and stored there
+     * by identifyOverlays() otherwise.
+     *
+     * @param cache    cache to use, or null to always compute
+     * @param cacheKey content hash of the map the document was parsed from, see MapCache.key()
+     */
+    public OverlayHandler(Document document, SymbolTable symbols, PipelineMetrics metrics, MapCache cache, String cacheKey) {
+        this.document = document;
+        this.metrics = metrics;
+        this.symbols = symbols;
+        this.cache = cacheKey == null ? null : cache;
+        this.cacheKey = cacheKey;
+        this.objectsById = new HashMap<>();
+        this.overlaps = new ArrayList<>();
 
-                try {
-                    id = Integer.parseInt(idAttr);
-                } catch (NumberFormatException e) {continue;}
+        // Only real map objects; the objects drawing point symbols would pair up with everything nearby
+        MapObjects objects = MapObjects.of(document);
+        loadObjects(objects);
 
-                String name = symbol.getAttribute("name").toLowerCase();
+        GeometryCache cached = this.cache == null ? null : this.cache.load(cacheKey, in -> readCache(in, objects));
 
-                int priority = calculatePriority(symbol, name);
-                symbolPriorities.put(String.valueOf(id), priority);
-            }
+        if (cached != null) {
+            this.geometry = cached;
+            this.overlapsCached = true;
+        } else {
+            this.geometry = new GeometryCache(objects, symbols);
         }
     }
 
-    private int calculatePriority(Element symbol, String name) {
-        int priority = 50;
-        name = name.toLowerCase();
-
-        if (name.contains("building") || name.contains("tower")) {
-            priority = 90;
-        } else if (name.contains("water") || name.contains("lake") || name.contains("pond")) {
-            priority = 80;
-        } else if (name.contains("path") || name.contains("road") || name.contains("track") || name.contains("area")) {
-            priority = 85;
-        } else if (name.contains("forest") || name.contains("vegetation") || name.equals("vineyard")) {
-            priority = 30;
-        } else if (name.contains("open") || name.contains("field")) {
-            priority = 20;
-        } else if (name.contains("contour") || name.contains("slope")) {
-            priority = 70;
-        } else if (name.contains("index")) {
-            priority = 75;
-        }
+    private GeometryCache readCache(DataInputStream in, NodeList objects) throws IOException {
+        GeometryCache cached = GeometryCache.readFrom(in, objects);
+
+        int pairCount = in.readInt();
+        List<OverlapPair> pairs = new ArrayList<>(pairCount);
+        for (int p = 0; p < pairCount; p++) {
+            int index1 = in.readInt();
+            int index2 = in.readInt();
+            double overlapSize = in.readDouble();
+            if (index1 < 0 || index2 < 0 || index1 >= cached.size() || index2 >= cached.size()) {
+                throw new IOException("overlap refers to object outside the map");
+            }
 
-        if (symbol.getElementsByTagName("point_symbol").getLength() > 0 ||
-                symbol.getElementsByTagName("point").getLength() > 0) {
-            priority += 5;
+            pairs.add(new OverlapPair(cached.element(index1), cached.element(index2), index1, index2,
+                    cached.symbolId(index1), cached.symbolId(index2), overlapSize));
         }
 
-        if (symbol.getElementsByTagName("line_symbol").getLength() > 0 ||
-                symbol.getElementsByTagName("line").getLength() > 0) {
-            priority += 3;
-        }
+        overlaps.addAll(pairs);
+        return cached;
+    }
 
-        priority = Math.max(0, Math.min(priority, 100));
+    private void writeCache(DataOutputStream out) throws IOException {
+        geometry.writeTo(out);
 
-        return priority;
+        out.writeInt(overlaps.size());
+        for (OverlapPair overlap : overlaps) {
+            out.writeInt(overlap.index1);
+            out.writeInt(overlap.index2);
+            out.writeDouble(overlap.overlapSize);
+        }
     }
 
-
-    private void loadObjects() {
-        NodeList objects = document.getElementsByTagName("object");
+    private void loadObjects(MapObjects objects) {
         for (int i = 0; i < objects.getLength(); i++) {
-            Element object = (Element) objects.item(i);
+            Element object = objects.item(i);
             String id = object.getAttribute("id");
             if (id != null && !id.trim().isEmpty()) {
                 try {
@@ -123,89 +145,204 @@ public class OverlayHandler {
         }
     }
 
-    public void identifyOverlays() {
-        NodeList objects = document.getElementsByTagName("object");
-        int objectCount = objects.getLength();
+    /**
+     * Number of threads identifyOverlays() uses, by default one per available processor. 1 runs the
+     * detection on the calling thread.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
 
-        for (int i = 0; i < objectCount; i++) {
-            Element object1 = (Element) objects.item(i);
-            String symbolId1 = object1.getAttribute("symbol");
+    public void identifyOverlays() {
+        identifyOverlays(parallelism);
+    }
 
-            Path2D path1 = extractGeometry(object1);
-            if (path1 == null) continue;
+    /**
+     * Finds all overlapping object pairs using up to the given number of threads. Work is split into
+     * ranges of objects, each object only being paired with later ones, so every pair is tested exactly
+     * once. Ranges are merged back in object order, so the result is the same for any parallelism.
+     * Later calls do nothing, so one handler can serve several filter runs.
+     */
+    public void identifyOverlays(int parallelism) {
+        if (overlapsIdentified) return;
+        overlapsIdentified = true;
+
+        if (overlapsCached) {
+            System.out.println("Found " + overlaps.size() + " overlapping objects (cached)");
+            return;
+        }
 
-            Area area1 = new Area(path1);
+        int objectCount = geometry.size();
 
-            for (int j = i + 1; j < objectCount; j++) {
-                Element object2 = (Element) objects.item(j);
-                String symbolId2 = object2.getAttribute("symbol");
+        double[] minX = new double[objectCount];
+        double[] minY = new double[objectCount];
+        double[] maxX = new double[objectCount];
+        double[] maxY = new double[objectCount];
 
-                Path2D path2 = extractGeometry(object2);
-                if (path2 == null) continue;
+        for (int i = 0; i < objectCount; i++) {
+            if (!geometry.hasGeometry(i)) {
+                // Objects without geometry get an empty envelope so they never match a query
+                minX[i] = minY[i] = Double.POSITIVE_INFINITY;
+                maxX[i] = maxY[i] = Double.NEGATIVE_INFINITY;
+                continue;
+            }
 
-                Area area2 = new Area(path2);
-                Area overlapArea = new Area(area1);
-                overlapArea.intersect(area2);
+            minX[i] = geometry.minX(i);
+            minY[i] = geometry.minY(i);
+            maxX[i] = geometry.maxX(i);
+            maxY[i] = geometry.maxY(i);
+        }
 
-                if (!overlapArea.isEmpty()) {
-                    double overlapSize = (getAreaSize(overlapArea));
+        SpatialIndex index = new SpatialIndex(minX, minY, maxX, maxY);
 
-                    if(overlapSize > 100 && !object1.getAttribute("symbol").equals(object2.getAttribute("symbol"))) {
-                        try {
-                            overlaps.add(new OverlapPair(
-                                    object1,
-                                    object2,
-                                    Integer.parseInt(symbolId1),
-                                    Integer.parseInt(symbolId2),
-                                    overlapSize
-                            ));
-                        } catch (NumberFormatException e) {
-                            // Skip this overlap if there's an issue parsing the symbol IDs
-                            continue;
-                        }
-                    }
-                }
+        if (parallelism <= 1) {
+            overlaps.addAll(findOverlaps(index, 0, objectCount));
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                // Build every Area up front so the worker threads only ever read the cache
+                pool.submit(() -> IntStream.range(0, objectCount).parallel().forEach(geometry::area)).join();
+                overlaps.addAll(pool.invoke(new OverlapTask(index, 0, objectCount)));
+            } finally {
+                pool.shutdown();
             }
         }
 
         System.out.println("Found " + overlaps.size() + " overlapping objects");
+
+        if (cache != null) {
+            cache.store(cacheKey, this::writeCache);
+        }
     }
 
-    private Path2D extractGeometry(Element object) {
-        NodeList coordsList = object.getElementsByTagName("coords");
-        if (coordsList.getLength() == 0) return null;
+    private class OverlapTask extends RecursiveTask<List<OverlapPair>> {
+        private static final long serialVersionUID = 1L;
+        private static final int SEQUENTIAL_OBJECTS = 64;
 
-        Element coordsElement = (Element) coordsList.item(0);
-        String coordsText = coordsElement.getTextContent().trim();
-        String[] pointStrings = coordsText.split(";");
+        // Tasks only live within one identifyOverlays() call and are never serialised
+        private final transient SpatialIndex index;
+        private final int from;
+        private final int to;
+
+        OverlapTask(SpatialIndex index, int from, int to) {
+            this.index = index;
+            this.from = from;
+            this.to = to;
+        }
 
-        Path2D path = new Path2D.Double();
-        boolean started = false;
+        @Override
+        protected List<OverlapPair> compute() {
+            if (to - from <= SEQUENTIAL_OBJECTS) {
+                return findOverlaps(index, from, to);
+            }
 
-        for (String pointStr : pointStrings) {
-            String[] parts = pointStr.trim().split("\\s+");
+            int middle = (from + to) >>> 1;
+            OverlapTask first = new OverlapTask(index, from, middle);
+            first.fork();
+            List<OverlapPair> second = new OverlapTask(index, middle, to).compute();
 
-            try {
-                double x = Double.parseDouble(parts[0]);
-                double y = Double.parseDouble(parts[1]);
-
-                if (!started) {
-                    path.moveTo(x, y);
-                    started = true;
-                } else {
-                    path.lineTo(x, y);
+            List<OverlapPair> result = first.join();
+            result.addAll(second);
+            return result;
+        }
+    }
+
+    /**
+     * Overlaps between each object in [from, to) and every later object whose envelope touches it.
+     */
+    private List<OverlapPair> findOverlaps(SpatialIndex index, int from, int to) {
+        List<OverlapPair> found = new ArrayList<>();
+        SpatialIndex.Hits candidates = new SpatialIndex.Hits();
+        long candidatePairs = 0, intersections = 0, rejected = 0;
+
+        for (int i = from; i < to; i++) {
+            if (!geometry.hasGeometry(i)) continue;
+
+            int symbolId1 = geometry.symbolId(i);
+
+            // Collect later objects whose envelopes touch this one, in document order
+            int current = i;
+            candidates.clear();
+            index.query(geometry.minX(i), geometry.minY(i), geometry.maxX(i), geometry.maxY(i), j -> {
+                if (j > current) candidates.accept(j);
+            });
+            candidates.sort();
+            candidatePairs += candidates.size();
+
+            for (int c = 0; c < candidates.size(); c++) {
+                int j = candidates.get(c);
+                int symbolId2 = geometry.symbolId(j);
+
+                // Objects without a valid symbol id can never form a pair
+                if (symbolId1 == GeometryCache.NO_SYMBOL || symbolId2 == GeometryCache.NO_SYMBOL) continue;
+                if (symbolId1 == symbolId2) continue;
+
+                Area overlapArea = new Area(geometry.area(i));
+                overlapArea.intersect(geometry.area(j));
+                intersections++;
+
+                if (!overlapArea.isEmpty()) {
+                    double overlapSize = (getAreaSize(overlapArea));
+
+                    if(overlapSize <= 100) {
+                        rejected++;
+                    } else {
+                        found.add(new OverlapPair(
+                                geometry.element(i),
+                                geometry.element(j),
+                                i,
+                                j,
+                                symbolId1,
+                                symbolId2,
+                                overlapSize
+                        ));
+                    }
                 }
-            } catch (NumberFormatException e) {
-                System.err.println("Skipping invalid coordinate: " + pointStr);
             }
         }
 
-        if (started) path.closePath();
-        return started ? path : null;
+        metrics.add(PipelineMetrics.Counter.CANDIDATE_PAIRS, candidatePairs);
+        metrics.add(PipelineMetrics.Counter.EXACT_INTERSECTIONS, intersections);
+        metrics.add(PipelineMetrics.Counter.PAIRS_REJECTED_BY_THRESHOLD, rejected);
+        return found;
     }
 
-    private double getAreaSize(Area area) {
-        return area.getBounds2D().getWidth() * area.getBounds2D().getHeight();
+    /**
+     * Exact area of the shape: curves are flattened to within AREA_FLATNESS map units and the shoelace
+     * formula is applied to every sub-path. Holes are wound opposite to their outline, so they subtract.
+     */
+    static double getAreaSize(Area area) {
+        PathIterator iterator = area.getPathIterator(null, AREA_FLATNESS);
+        double[] point = new double[6];
+
+        double total = 0;
+        double startX = 0, startY = 0, lastX = 0, lastY = 0;
+
+        while (!iterator.isDone()) {
+            switch (iterator.currentSegment(point)) {
+                case PathIterator.SEG_MOVETO:
+                    total += lastX * startY - startX * lastY;
+                    startX = lastX = point[0];
+                    startY = lastY = point[1];
+                    break;
+                case PathIterator.SEG_LINETO:
+                    total += lastX * point[1] - point[0] * lastY;
+                    lastX = point[0];
+                    lastY = point[1];
+                    break;
+                case PathIterator.SEG_CLOSE:
+                    total += lastX * startY - startX * lastY;
+                    lastX = startX;
+                    lastY = startY;
+                    break;
+                default:
+                    break;
+            }
+            iterator.next();
+        }
+
+        total += lastX * startY - startX * lastY;
+        return Math.abs(total) / 2;
     }
 
     public List<OverlapPair> getOverlaps() {
@@ -213,8 +350,8 @@ public class OverlayHandler {
     }
 
     public Element decideVisibility(OverlapPair overlap) {
-        int priority1 = symbolPriorities.getOrDefault(String.valueOf(overlap.symbolId1), 0);
-        int priority2 = symbolPriorities.getOrDefault(String.valueOf(overlap.symbolId2), 0);
+        int priority1 = symbols.priority(overlap.symbolId1);
+        int priority2 = symbols.priority(overlap.symbolId2);
 
         if (priority1 >= priority2) {
             return overlap.object2;
@@ -223,38 +360,41 @@ public class OverlayHandler {
         }
     }
 
-    private boolean checkSmallObject(Element object) {
-        if((Integer.parseInt(object.getAttribute("symbol")) > 43 &&
-                Integer.parseInt(object.getAttribute("symbol")) < 65) ||
-                (Integer.parseInt(object.getAttribute("symbol")) > 0 &&
-                        Integer.parseInt(object.getAttribute("symbol")) < 19)) {
-            return true;
-        }
-
-        return false;
-    }
-
     public List<Element> getObjectsToHide() {
-        Set<Element> objectsToHide = new HashSet<>();
-
-        for (OverlapPair overlap : overlaps) {
-            if(overlap.object1.equals(overlap.object2) || overlap.symbolId2 == overlap.symbolId1) {
-                continue;
-            }
+        return getObjectsToHide(null);
+    }
 
-            Element lowerPriorityObject = decideVisibility(overlap);
+    /**
+     * The objects to hide so that every overlap is resolved, in document order. Only the individual
+     * overlapping objects are returned, see ConflictResolver.
+     *
+     * @param excludedSymbols symbols that are removed from the map anyway; their objects neither hide
+     *                        nor get hidden. May be null.
+     */
+    public List<Element> getObjectsToHide(BitSet excludedSymbols) {
+        return getObjectsToHide(excludedSymbols, null, symbols);
+    }
 
-            if(checkSmallObject(lowerPriorityObject)) {
-                continue;
-            } else {
-                objectsToHide.add(lowerPriorityObject);
-            }
+    /**
+     * @param excludedObjects indices into getGeometry() of further objects that are removed anyway; may be null
+     * @param priorities      table giving the overlap priorities and small-object flags, such as the one of
+     *                        CompiledRules.symbols()
+     */
+    public List<Element> getObjectsToHide(BitSet excludedSymbols, BitSet excludedObjects, SymbolTable priorities) {
+        int[] hidden = new ConflictResolver(geometry.size(), overlaps, priorities, excludedSymbols, excludedObjects).resolve();
+
+        List<Element> objectsToHide = new ArrayList<>(hidden.length);
+        for (int index : hidden) {
+            objectsToHide.add(geometry.element(index));
         }
+        return objectsToHide;
+    }
 
-        return new ArrayList<>(objectsToHide);
+    public GeometryCache getGeometry() {
+        return geometry;
     }
 
-    public Map<String, Integer> getSymbolPriorities() {
-        return symbolPriorities;
+    public SymbolTable getSymbols() {
+        return symbols;
     }
 }
\ No newline at end of file
@@ -0,0 +1,167 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wall time, CPU time and allocated bytes per pipeline stage plus a set of work counters for one run.
+ *
+ * CPU time and allocation are measured for the thread that runs the stage; work a stage hands to other
+ * threads (the parallel overlap detection) only shows up in its wall time. Counters may be updated from
+ * any thread.
+ */
+public class PipelineMetrics {
+    public enum Stage {
+        PARSE("parse"),
+        SYMBOL_MAP("symbolMap"),
+        FILTER("filter"),
+        OVERLAP_DETECTION("overlapDetection"),
+        HIDE_RESOLUTION("hideResolution"),
+        GENERALIZE("generalize"),
+        SAVE("save");
+
+        final String key;
+
+        Stage(String key) {
+            this.key = key;
+        }
+    }
+
+    public enum Counter {
+        OBJECTS_SCANNED("objectsScanned"),
+        CANDIDATE_PAIRS("candidatePairs"),
+        EXACT_INTERSECTIONS("exactIntersections"),
+        PAIRS_REJECTED_BY_THRESHOLD("pairsRejectedByThreshold"),
+        BYTES_WRITTEN("bytesWritten"),
+        VERTICES_REMOVED("verticesRemoved"),
+        BYTES_SAVED("bytesSaved");
+
+        final String key;
+
+        Counter(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final long[] wallNanos = new long[Stage.values().length];
+    private final long[] cpuNanos = new long[Stage.values().length];
+    private final long[] allocatedBytes = new long[Stage.values().length];
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+
+    public PipelineMetrics() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Starts timing a stage; closing the returned timer adds the elapsed time to the stage. Callers declare
+     * the timer before the block it times and close it with try (timer), as the block never refers to it.
+     */
+    public Timer start(Stage stage) {
+        return new Timer(stage);
+    }
+
+    public class Timer implements AutoCloseable {
+        private final Stage stage;
+        private final long wallStart;
+        private final long cpuStart;
+        private final long allocatedStart;
+
+        private Timer(Stage stage) {
+            this.stage = stage;
+            this.wallStart = System.nanoTime();
+            this.cpuStart = threadCpuTime();
+            this.allocatedStart = threadAllocatedBytes();
+        }
+
+        @Override
+        public void close() {
+            long wall = System.nanoTime() - wallStart;
+            long cpu = cpuStart < 0 ? 0 : threadCpuTime() - cpuStart;
+            long allocated = allocatedStart < 0 ? 0 : threadAllocatedBytes() - allocatedStart;
+
+            synchronized (PipelineMetrics.this) {
+                wallNanos[stage.ordinal()] += wall;
+                cpuNanos[stage.ordinal()] += cpu;
+                allocatedBytes[stage.ordinal()] += allocated;
+            }
+        }
+    }
+
+    private static long threadCpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+    }
+
+    private static long threadAllocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().threadId());
+            }
+        }
+        return -1;
+    }
+
+    public void add(Counter counter, long amount) {
+        counters[counter.ordinal()].add(amount);
+    }
+
+    public void increment(Counter counter) {
+        counters[counter.ordinal()].increment();
+    }
+
+    public long get(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    public synchronized long wallNanos(Stage stage) {
+        return wallNanos[stage.ordinal()];
+    }
+
+    public synchronized long cpuNanos(Stage stage) {
+        return cpuNanos[stage.ordinal()];
+    }
+
+    public synchronized long allocatedBytes(Stage stage) {
+        return allocatedBytes[stage.ordinal()];
+    }
+
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder("{\n  \"stages\": {\n");
+
+        Stage[] stages = Stage.values();
+        for (int i = 0; i < stages.length; i++) {
+            int s = stages[i].ordinal();
+            json.append("    \"").append(stages[i].key).append("\": {")
+                    .append("\"wallMillis\": ").append(millis(wallNanos[s]))
+                    .append(", \"cpuMillis\": ").append(millis(cpuNanos[s]))
+                    .append(", \"allocatedBytes\": ").append(allocatedBytes[s])
+                    .append(i + 1 < stages.length ? "},\n" : "}\n");
+        }
+
+        json.append("  },\n  \"counters\": {\n");
+
+        Counter[] all = Counter.values();
+        for (int i = 0; i < all.length; i++) {
+            json.append("    \"").append(all[i].key).append("\": ").append(get(all[i]))
+                    .append(i + 1 < all.length ? ",\n" : "\n");
+        }
+
+        json.append("  }\n}\n");
+        return json.toString();
+    }
+
+    public void writeJson(File file) throws IOException {
+        Files.write(file.toPath(), toJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1_000_000.0);
+    }
+}
@@ -0,0 +1,381 @@
+import java.awt.geom.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Cuts one region out of a map: a rectangle or polygon in map coordinates. Objects intersecting it are
+ * kept, everything else in the file (georeferencing, colours, symbols, templates) is copied unchanged.
+ *
+ * The map is opened as a MappedMap with its index cached, so after the first run only the objects whose
+ * envelope the R-tree reports are decoded and tested, and the output is copied from the mapping. Objects
+ * are tested on their centre line or outline, not on the drawn line width.
+ *
+ * With clipping, paths crossing the boundary are cut at it: areas to the part inside, lines to the pieces
+ * inside, with curves of clipped lines flattened to within FLATNESS. Point and text objects are kept whole
+ * when their anchor is inside the region.
+ */
+public class RegionExtractor {
+    // Map units, 0.005 mm on paper
+    static final double FLATNESS = 5;
+
+    private final MappedMap map;
+    public int objectsKept;
+    public int objectsClipped;
+
+    public RegionExtractor(MappedMap map) {
+        this.map = map;
+    }
+
+    public static Path2D rectangle(int minX, int minY, int maxX, int maxY) {
+        return polygon(new int[]{minX, minY, maxX, minY, maxX, maxY, minX, maxY});
+    }
+
+    /**
+     * @param coordinates x, y of each corner in turn, at least three corners
+     */
+    public static Path2D polygon(int[] coordinates) {
+        if (coordinates.length < 6 || coordinates.length % 2 != 0) {
+            throw new IllegalArgumentException("a polygon needs at least three x,y corners");
+        }
+
+        Path2D polygon = new Path2D.Double(Path2D.WIND_EVEN_ODD);
+        polygon.moveTo(coordinates[0], coordinates[1]);
+        for (int i = 2; i < coordinates.length; i += 2) polygon.lineTo(coordinates[i], coordinates[i + 1]);
+        polygon.closePath();
+        return polygon;
+    }
+
+    /**
+     * A region written as MINX,MINY,MAXX,MAXY or as X1,Y1,X2,Y2,X3,Y3,... for a polygon.
+     */
+    public static Path2D parseRegion(String text) {
+        String[] values = text.split(",");
+        int[] coordinates = new int[values.length];
+
+        try {
+            for (int i = 0; i < values.length; i++) coordinates[i] = Integer.parseInt(values[i].trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("expected whole numbers in map units, got '" + text + "'");
+        }
+
+        return coordinates.length == 4
+                ? rectangle(coordinates[0], coordinates[1], coordinates[2], coordinates[3])
+                : polygon(coordinates);
+    }
+
+    /**
+     * Writes the objects intersecting region to output, each in the map part it comes from.
+     */
+    public void extract(Path2D region, boolean clip, File output) throws IOException {
+        Rectangle2D bounds = region.getBounds2D();
+        SpatialIndex.Hits candidates = new SpatialIndex.Hits();
+        map.spatialIndex().query(bounds.getMinX(), bounds.getMinY(), bounds.getMaxX(), bounds.getMaxY(), candidates);
+        candidates.sort();
+
+        Area regionArea = new Area(region);
+        int[] kept = new int[candidates.size()];
+        String[] replacements = new String[candidates.size()];
+        objectsKept = 0;
+        objectsClipped = 0;
+
+        for (int c = 0; c < candidates.size(); c++) {
+            int object = candidates.get(c);
+            if (map.symbolId(object) < 0) continue;
+
+            String replacement = null;
+            if (map.type(object) != 1) {
+                int[] points = map.coordinates(object);
+                if (points.length == 0 || !region.contains(points[0], points[1])) continue;
+            } else if (!insideRegion(object, region)) {
+                // Only paths crossing the boundary are decoded
+                int[] points = map.coordinates(object);
+                if (points.length == 0) continue;
+
+                String coords = clipPath(points, filled(object, points), regionArea, region);
+                if (coords == null) continue;
+                if (clip) {
+                    replacement = replaceCoords(map.objectXml(object), coords);
+                    objectsClipped++;
+                }
+            }
+
+            replacements[objectsKept] = replacement;
+            kept[objectsKept++] = object;
+        }
+
+        map.writeObjects(output, Arrays.copyOf(kept, objectsKept), Arrays.copyOf(replacements, objectsKept));
+    }
+
+    private boolean insideRegion(int object, Path2D region) {
+        return region.contains(map.minX(object), map.minY(object),
+                (double) map.maxX(object) - map.minX(object), (double) map.maxY(object) - map.minY(object));
+    }
+
+    /**
+     * Area symbols are filled, and so is any path whose parts are all closed.
+     */
+    private boolean filled(int object, int[] points) {
+        if (map.symbolType(map.symbolId(object)) == 4) return true;
+
+        for (int v = 0; v < points.length / 3; v++) {
+            int flags = points[v * 3 + 2];
+            boolean partEnd = (flags & GeometryCache.HOLE_POINT) != 0 || v == points.length / 3 - 1;
+            if (partEnd && (flags & GeometryCache.CLOSE_POINT) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * The coords text of the path cut to the region, or null if nothing of it is inside.
+     */
+    private static String clipPath(int[] points, boolean filled, Area regionArea, Path2D region) {
+        int n = points.length / 3;
+        int[] xy = new int[n * 2];
+        byte[] flags = new byte[n];
+        for (int v = 0; v < n; v++) {
+            xy[v * 2] = points[v * 3];
+            xy[v * 2 + 1] = points[v * 3 + 1];
+            flags[v] = (byte) points[v * 3 + 2];
+        }
+        Path2D path = GeometryCache.buildPath(xy, flags, 0, n, filled);
+
+        CoordsBuilder coords = new CoordsBuilder();
+        if (filled) {
+            Area clipped = new Area(path);
+            clipped.intersect(regionArea);
+            if (clipped.isEmpty()) return null;
+            appendArea(clipped, coords);
+        } else {
+            appendClippedLines(path, region, coords);
+        }
+
+        return coords.count == 0 ? null : coords.toString();
+    }
+
+    private static void appendArea(Area area, CoordsBuilder coords) {
+        double[] segment = new double[6];
+        for (PathIterator it = area.getPathIterator(null); !it.isDone(); it.next()) {
+            switch (it.currentSegment(segment)) {
+                case PathIterator.SEG_MOVETO:
+                    coords.startPart(segment[0], segment[1]);
+                    break;
+                case PathIterator.SEG_LINETO:
+                    coords.lineTo(segment[0], segment[1]);
+                    break;
+                case PathIterator.SEG_QUADTO:
+                    // Raised to a cubic curve, the only kind the format has
+                    double x0 = coords.lastX, y0 = coords.lastY;
+                    coords.curveTo(x0 + 2.0 / 3 * (segment[0] - x0), y0 + 2.0 / 3 * (segment[1] - y0),
+                            segment[2] + 2.0 / 3 * (segment[0] - segment[2]), segment[3] + 2.0 / 3 * (segment[1] - segment[3]),
+                            segment[2], segment[3]);
+                    break;
+                case PathIterator.SEG_CUBICTO:
+                    coords.curveTo(segment[0], segment[1], segment[2], segment[3], segment[4], segment[5]);
+                    break;
+                case PathIterator.SEG_CLOSE:
+                    coords.closePart();
+                    break;
+            }
+        }
+        coords.endPart(0);
+    }
+
+    /**
+     * Appends the pieces of the path's lines inside the region, each as an open part.
+     */
+    private static void appendClippedLines(Path2D path, Path2D region, CoordsBuilder coords) {
+        double[] edges = flattenedEdges(region);
+        double[] segment = new double[6];
+        double startX = 0, startY = 0, x = 0, y = 0;
+        boolean inside = false;
+
+        for (PathIterator it = path.getPathIterator(null, FLATNESS); !it.isDone(); it.next()) {
+            int type = it.currentSegment(segment);
+            if (type == PathIterator.SEG_MOVETO) {
+                if (inside) coords.endPart(GeometryCache.HOLE_POINT);
+                inside = false;
+                startX = x = segment[0];
+                startY = y = segment[1];
+                continue;
+            }
+
+            double toX = type == PathIterator.SEG_CLOSE ? startX : segment[0];
+            double toY = type == PathIterator.SEG_CLOSE ? startY : segment[1];
+
+            // Cut the segment where it crosses the region's edges and keep the pieces whose middle is inside
+            double[] cuts = crossings(x, y, toX, toY, edges);
+            for (int c = 0; c + 1 < cuts.length; c++) {
+                double t0 = cuts[c], t1 = cuts[c + 1];
+                if (t1 - t0 < 1e-9) continue;
+
+                double middle = (t0 + t1) / 2;
+                boolean pieceInside = region.contains(x + middle * (toX - x), y + middle * (toY - y));
+                if (pieceInside && !inside) {
+                    coords.startPart(x + t0 * (toX - x), y + t0 * (toY - y));
+                } else if (!pieceInside && inside) {
+                    coords.endPart(GeometryCache.HOLE_POINT);
+                }
+                if (pieceInside) coords.lineTo(x + t1 * (toX - x), y + t1 * (toY - y));
+                inside = pieceInside;
+            }
+
+            x = toX;
+            y = toY;
+        }
+        if (inside) coords.endPart(GeometryCache.HOLE_POINT);
+    }
+
+    /**
+     * The region's outline as x1, y1, x2, y2 per edge.
+     */
+    private static double[] flattenedEdges(Path2D region) {
+        List<double[]> edges = new ArrayList<>();
+        double[] segment = new double[6];
+        double startX = 0, startY = 0, x = 0, y = 0;
+
+        for (PathIterator it = region.getPathIterator(null, FLATNESS); !it.isDone(); it.next()) {
+            int type = it.currentSegment(segment);
+            if (type == PathIterator.SEG_MOVETO) {
+                startX = x = segment[0];
+                startY = y = segment[1];
+                continue;
+            }
+
+            double toX = type == PathIterator.SEG_CLOSE ? startX : segment[0];
+            double toY = type == PathIterator.SEG_CLOSE ? startY : segment[1];
+            edges.add(new double[]{x, y, toX, toY});
+            x = toX;
+            y = toY;
+        }
+
+        double[] flat = new double[edges.size() * 4];
+        for (int i = 0; i < edges.size(); i++) System.arraycopy(edges.get(i), 0, flat, i * 4, 4);
+        return flat;
+    }
+
+    /**
+     * Sorted positions 0 .. 1 along the segment where it crosses an edge, including 0 and 1.
+     */
+    private static double[] crossings(double x1, double y1, double x2, double y2, double[] edges) {
+        double[] cuts = new double[2 + edges.length / 4];
+        int count = 0;
+        cuts[count++] = 0;
+
+        double dx = x2 - x1, dy = y2 - y1;
+        for (int e = 0; e < edges.length; e += 4) {
+            double ex = edges[e + 2] - edges[e], ey = edges[e + 3] - edges[e + 1];
+            double denominator = dx * ey - dy * ex;
+            if (denominator == 0) continue;
+
+            double t = ((edges[e] - x1) * ey - (edges[e + 1] - y1) * ex) / denominator;
+            double u = ((edges[e] - x1) * dy - (edges[e + 1] - y1) * dx) / denominator;
+            if (t > 0 && t < 1 && u >= 0 && u <= 1) cuts[count++] = t;
+        }
+
+        cuts[count++] = 1;
+        Arrays.sort(cuts, 0, count);
+        return Arrays.copyOf(cuts, count);
+    }
+
+    /**
+     * The object XML with the text and count of its coords element replaced.
+     */
+    private static String replaceCoords(String objectXml, String coords) {
+        int start = objectXml.indexOf("<coords");
+        int textStart = objectXml.indexOf('>', start) + 1;
+        int end = objectXml.indexOf("</coords>", textStart);
+        int count = 0;
+        for (int i = 0; i < coords.length(); i++) {
+            if (coords.charAt(i) == ';') count++;
+        }
+
+        return objectXml.substring(0, start) + "<coords count=\"" + count + "\">" + coords + objectXml.substring(end);
+    }
+
+    /**
+     * Coords text built part by part, with coordinates rounded to map units.
+     */
+    private static class CoordsBuilder {
+        private final StringBuilder text = new StringBuilder();
+        private final List<int[]> part = new ArrayList<>();
+        int count;
+        double lastX, lastY;
+
+        void startPart(double x, double y) {
+            endPart(0);
+            add(x, y, 0);
+        }
+
+        void lineTo(double x, double y) {
+            int[] last = part.get(part.size() - 1);
+            if (last[0] == Math.round(x) && last[1] == Math.round(y)) return;
+            add(x, y, 0);
+        }
+
+        void curveTo(double x1, double y1, double x2, double y2, double x3, double y3) {
+            part.get(part.size() - 1)[2] |= GeometryCache.CURVE_START;
+            add(x1, y1, 0);
+            add(x2, y2, 0);
+            add(x3, y3, 0);
+        }
+
+        void closePart() {
+            if (part.isEmpty()) return;
+
+            int[] first = part.get(0), last = part.get(part.size() - 1);
+            if (first[0] != last[0] || first[1] != last[1] || part.size() == 1) add(first[0], first[1], 0);
+            endPart(GeometryCache.CLOSE_POINT | GeometryCache.HOLE_POINT);
+        }
+
+        /**
+         * Writes the current part, its last point with endFlags, dropping parts too short to draw.
+         */
+        void endPart(int endFlags) {
+            if (part.size() >= 2) {
+                part.get(part.size() - 1)[2] |= endFlags;
+                for (int[] point : part) {
+                    text.append(point[0]).append(' ').append(point[1]);
+                    if (point[2] != 0) text.append(' ').append(point[2]);
+                    text.append(';');
+                    count++;
+                }
+            }
+            part.clear();
+        }
+
+        private void add(double x, double y, int flags) {
+            part.add(new int[]{(int) Math.round(x), (int) Math.round(y), flags});
+            lastX = x;
+            lastY = y;
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean clip = args.length == 4 && args[3].equals("--clip");
+        if (args.length != 3 && !clip) {
+            System.out.println("Usage: RegionExtractor <input.omap> <output.omap> <minX,minY,maxX,maxY | x1,y1,x2,y2,x3,y3,...> [--clip]");
+            return;
+        }
+
+        Path2D region;
+        try {
+            region = parseRegion(args[2]);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid region: " + e.getMessage());
+            return;
+        }
+
+        try (MappedMap map = new MappedMap(new File(args[0]), MapCache.defaultCache())) {
+            RegionExtractor extractor = new RegionExtractor(map);
+            extractor.extract(region, clip, new File(args[1]));
+
+            System.out.println("Kept " + extractor.objectsKept + " of " + map.objectCount() + " objects"
+                    + (clip ? ", clipped " + extractor.objectsClipped : "") + "; saved to " + args[1]);
+        }
+    }
+}
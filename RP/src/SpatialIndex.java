@@ -0,0 +1,243 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.IntConsumer;
+
+/**
+ * Static R-tree over axis-aligned envelopes, bulk loaded with Sort-Tile-Recursive packing.
+ * Entries are referred to by their index in the arrays passed to the constructor. A built index can be
+ * stored with writeTo() and read back without sorting again.
+ */
+public class SpatialIndex {
+    private static final int NODE_CAPACITY = 16;
+
+    private final int size;
+    private final int[] entries;
+    private final double[] entryBounds;
+    // levels.get(0) are the leaves, the last level holds the single root node
+    private final List<double[]> levels;
+
+    public SpatialIndex(double[] minX, double[] minY, double[] maxX, double[] maxY) {
+        this.size = minX.length;
+        this.entries = sortTileRecursive(minX, minY, maxX, maxY);
+        this.levels = new ArrayList<>();
+
+        this.entryBounds = new double[size * 4];
+        for (int i = 0; i < size; i++) {
+            int entry = entries[i];
+            entryBounds[i * 4] = minX[entry];
+            entryBounds[i * 4 + 1] = minY[entry];
+            entryBounds[i * 4 + 2] = maxX[entry];
+            entryBounds[i * 4 + 3] = maxY[entry];
+        }
+
+        double[] childBounds = entryBounds;
+        int childCount = size;
+        do {
+            int nodeCount = Math.max(1, (childCount + NODE_CAPACITY - 1) / NODE_CAPACITY);
+            double[] bounds = new double[nodeCount * 4];
+
+            for (int node = 0; node < nodeCount; node++) {
+                double nMinX = Double.POSITIVE_INFINITY, nMinY = Double.POSITIVE_INFINITY;
+                double nMaxX = Double.NEGATIVE_INFINITY, nMaxY = Double.NEGATIVE_INFINITY;
+                int end = Math.min(childCount, (node + 1) * NODE_CAPACITY);
+
+                for (int c = node * NODE_CAPACITY; c < end; c++) {
+                    nMinX = Math.min(nMinX, childBounds[c * 4]);
+                    nMinY = Math.min(nMinY, childBounds[c * 4 + 1]);
+                    nMaxX = Math.max(nMaxX, childBounds[c * 4 + 2]);
+                    nMaxY = Math.max(nMaxY, childBounds[c * 4 + 3]);
+                }
+
+                bounds[node * 4] = nMinX;
+                bounds[node * 4 + 1] = nMinY;
+                bounds[node * 4 + 2] = nMaxX;
+                bounds[node * 4 + 3] = nMaxY;
+            }
+
+            levels.add(bounds);
+            childBounds = bounds;
+            childCount = nodeCount;
+        } while (childCount > 1);
+    }
+
+    private SpatialIndex(int size, int[] entries, double[] entryBounds, List<double[]> levels) {
+        this.size = size;
+        this.entries = entries;
+        this.entryBounds = entryBounds;
+        this.levels = levels;
+    }
+
+    public static SpatialIndex readFrom(DataInput in) throws IOException {
+        int size = in.readInt();
+        int[] entries = GeometryCache.readInts(in, size);
+        double[] entryBounds = readDoubles(in, size * 4);
+
+        int levelCount = in.readInt();
+        List<double[]> levels = new ArrayList<>(levelCount);
+        for (int level = 0; level < levelCount; level++) {
+            levels.add(readDoubles(in, in.readInt()));
+        }
+
+        return new SpatialIndex(size, entries, entryBounds, levels);
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(size);
+        GeometryCache.writeInts(out, entries, size);
+        writeDoubles(out, entryBounds);
+
+        out.writeInt(levels.size());
+        for (double[] bounds : levels) {
+            out.writeInt(bounds.length);
+            writeDoubles(out, bounds);
+        }
+    }
+
+    private static double[] readDoubles(DataInput in, int length) throws IOException {
+        byte[] bytes = new byte[length * 8];
+        in.readFully(bytes);
+
+        double[] values = new double[length];
+        ByteBuffer.wrap(bytes).asDoubleBuffer().get(values);
+        return values;
+    }
+
+    private static void writeDoubles(DataOutput out, double[] values) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(values.length * 8);
+        bytes.asDoubleBuffer().put(values);
+        out.write(bytes.array());
+    }
+
+    private static int[] sortTileRecursive(double[] minX, double[] minY, double[] maxX, double[] maxY) {
+        int n = minX.length;
+        int[] order = new int[n];
+        double[] centerX = new double[n];
+        double[] centerY = new double[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+            centerX[i] = minX[i] + maxX[i];
+            centerY[i] = minY[i] + maxY[i];
+        }
+
+        int[] scratch = new int[n];
+        sortByKey(order, 0, n, centerX, scratch);
+
+        int leafCount = (n + NODE_CAPACITY - 1) / NODE_CAPACITY;
+        int sliceCount = (int) Math.ceil(Math.sqrt(leafCount));
+        int sliceSize = Math.max(1, sliceCount * NODE_CAPACITY);
+
+        for (int start = 0; start < n; start += sliceSize) {
+            int end = Math.min(n, start + sliceSize);
+            sortByKey(order, start, end, centerY, scratch);
+        }
+
+        return order;
+    }
+
+    /**
+     * Stable merge sort of order[from, to) by key[order[i]]. Gives the same order as sorting boxed indices
+     * with Comparator.comparingDouble, without the boxing.
+     */
+    private static void sortByKey(int[] order, int from, int to, double[] key, int[] scratch) {
+        if (to - from <= NODE_CAPACITY) {
+            for (int i = from + 1; i < to; i++) {
+                int entry = order[i];
+                int j = i - 1;
+                while (j >= from && Double.compare(key[order[j]], key[entry]) > 0) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = entry;
+            }
+            return;
+        }
+
+        int middle = (from + to) >>> 1;
+        sortByKey(order, from, middle, key, scratch);
+        sortByKey(order, middle, to, key, scratch);
+        if (Double.compare(key[order[middle - 1]], key[order[middle]]) <= 0) return;
+
+        System.arraycopy(order, from, scratch, from, to - from);
+        int left = from, right = middle;
+        for (int i = from; i < to; i++) {
+            if (right == to || left < middle && Double.compare(key[scratch[left]], key[scratch[right]]) <= 0) {
+                order[i] = scratch[left++];
+            } else {
+                order[i] = scratch[right++];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Reports every entry whose envelope intersects the given one. Touching edges count as intersecting.
+     */
+    public void query(double minX, double minY, double maxX, double maxY, IntConsumer visitor) {
+        if (size == 0) return;
+        search(levels.size() - 1, 0, minX, minY, maxX, maxY, visitor);
+    }
+
+    private void search(int level, int node, double minX, double minY, double maxX, double maxY, IntConsumer visitor) {
+        double[] bounds = levels.get(level);
+        if (!intersects(bounds, node, minX, minY, maxX, maxY)) return;
+
+        int start = node * NODE_CAPACITY;
+
+        if (level == 0) {
+            int end = Math.min(size, start + NODE_CAPACITY);
+            for (int i = start; i < end; i++) {
+                if (intersects(entryBounds, i, minX, minY, maxX, maxY)) {
+                    visitor.accept(entries[i]);
+                }
+            }
+            return;
+        }
+
+        int end = Math.min(levels.get(level - 1).length / 4, start + NODE_CAPACITY);
+        for (int child = start; child < end; child++) {
+            search(level - 1, child, minX, minY, maxX, maxY, visitor);
+        }
+    }
+
+    private static boolean intersects(double[] bounds, int node, double minX, double minY, double maxX, double maxY) {
+        return bounds[node * 4] <= maxX && bounds[node * 4 + 2] >= minX
+                && bounds[node * 4 + 1] <= maxY && bounds[node * 4 + 3] >= minY;
+    }
+
+    /**
+     * Entries reported by query() collected into a plain int array, which clear() keeps for the next query.
+     */
+    public static class Hits implements IntConsumer {
+        private int[] entries = new int[NODE_CAPACITY];
+        private int size;
+
+        @Override
+        public void accept(int entry) {
+            if (size == entries.length) entries = Arrays.copyOf(entries, size * 2);
+            entries[size++] = entry;
+        }
+
+        public void clear() {
+            size = 0;
+        }
+
+        /**
+         * Puts the entries in ascending order, which is document order for an index over MapObjects.
+         */
+        public void sort() {
+            Arrays.sort(entries, 0, size);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int get(int i) {
+            return entries[i];
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import org.w3c.dom.*;
+import javax.xml.parsers.ParserConfigurationException;
+import java.util.*;
+
+/**
+ * The sections of a result map that filtering never changes, serialised once per source map: before
+ * <parts> the georeferencing, the colour table and the barrier with all symbols; after it the templates
+ * and view. Results splice these bytes into their output between the <map> start tag and <parts>, and
+ * after </parts>, instead of importing the nodes into every result document and writing them again.
+ *
+ * Sections are kept in memory per source: by path, size and modification time for maps read from files
+ * (the key of FilterObjects' symbol tables), by identity for documents held in memory by MapService. The
+ * bytes are exactly what OmapWriter writes for the same nodes, so outputs do not change.
+ */
+public class StaticSections {
+    private static final int MAX_FILES = 32;
+
+    private static final Map<String, StaticSections> BY_FILE = Collections.synchronizedMap(
+            new LinkedHashMap<String, StaticSections>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, StaticSections> eldest) {
+                    return size() > MAX_FILES;
+                }
+            });
+    private static final Map<Document, StaticSections> BY_DOCUMENT = Collections.synchronizedMap(new WeakHashMap<>());
+
+    // Dropped once the sections are built, so cached sections do not hold on to the whole map
+    private Document source;
+    // Indexed by pretty printing: 0 compact, 1 indented
+    private byte[][] heads;
+    private byte[][] tails;
+
+    private StaticSections(Document source) {
+        this.source = source;
+    }
+
+    /**
+     * Sections of a map read from a file; fileKey identifies the file's version, see FilterObjects.
+     * source is only read if the sections are not cached yet.
+     */
+    static StaticSections forFile(String fileKey, Document source) {
+        return BY_FILE.computeIfAbsent(fileKey, key -> new StaticSections(source));
+    }
+
+    /**
+     * Sections of a document that stays in memory and unchanged across runs.
+     */
+    static StaticSections forDocument(Document source) {
+        return BY_DOCUMENT.computeIfAbsent(source, StaticSections::new);
+    }
+
+    /**
+     * Everything in <map> before <parts>, as OmapWriter writes children of the document element.
+     */
+    byte[] head(boolean pretty) {
+        build();
+        return heads[pretty ? 1 : 0];
+    }
+
+    /**
+     * Everything in <map> after </parts>.
+     */
+    byte[] tail(boolean pretty) {
+        build();
+        return tails[pretty ? 1 : 0];
+    }
+
+    /**
+     * Serialises the sections if that has not been done yet. head() and tail() call it; callers that
+     * only hold a lock on the source while filtering call it then.
+     */
+    synchronized void build() {
+        if (heads != null) return;
+
+        Document scratch;
+        try {
+            scratch = FilterObjects.documentBuilder().newDocument();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+        Element root = scratch.createElement("map");
+        scratch.appendChild(root);
+        Element parts = scratch.createElement("parts");
+        root.appendChild(parts);
+
+        // Built once with the DOM code that builds complete results, so the bytes match
+        FilterObjects.appendStaticSections(source, root);
+
+        List<Node> before = new ArrayList<>(), after = new ArrayList<>();
+        List<Node> current = before;
+        for (Node child = root.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child == parts) {
+                current = after;
+            } else {
+                current.add(child);
+            }
+        }
+
+        heads = new byte[][]{OmapWriter.fragment(before, 1, false), OmapWriter.fragment(before, 1, true)};
+        tails = new byte[][]{OmapWriter.fragment(after, 1, false), OmapWriter.fragment(after, 1, true)};
+        source = null;
+    }
+}
@@ -0,0 +1,603 @@
+import javax.xml.stream.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Filters a map by symbol without building a DOM. The input is read with StAX and every element that is
+ * kept (georeferencing, symbol definitions, objects with unfiltered symbols) is copied straight to the
+ * output, so memory use does not depend on the size of the map. The output is laid out the same way
+ * FilterObjects.saveDoc writes it: compact by default, indented with setPrettyPrint(true).
+ */
+public class StreamingFilter {
+    private static final String INDENT = "    ";
+
+    // StAX factories are thread-safe once configured, so one pair is shared by every run in the JVM
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+    }
+
+    private final File input;
+    private final File outputDir;
+    private final ArrayList<String> objects;
+    public int objsDeleted;
+    private final PipelineMetrics metrics = new PipelineMetrics();
+
+    private final Map<String, Integer> symbolMap = new HashMap<>();
+    private final BitSet idsToFilter = new BitSet();
+
+    // Byte offsets in the spooled output where a count attribute value still has to be inserted
+    private final List<Long> patchOffsets = new ArrayList<>();
+    private final List<String> patchValues = new ArrayList<>();
+
+    private CountingOutputStream out;
+    private XMLStreamWriter writer;
+    private boolean prettyPrint;
+
+    public StreamingFilter(String chosenMapName, ArrayList<String> objects) {
+        this(new File("RP\\src\\maps\\" + chosenMapName), new File("RP\\src\\maps\\"), objects);
+    }
+
+    public StreamingFilter(File input, File outputDir, ArrayList<String> objects) {
+        this.input = input;
+        this.outputDir = outputDir;
+        this.objects = objects;
+    }
+
+    /**
+     * Indents the output with four spaces per level, matching FilterObjects.setPrettyPrint.
+     */
+    public void setPrettyPrint(boolean prettyPrint) {
+        this.prettyPrint = prettyPrint;
+    }
+
+    public PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void filterObjects() throws IOException, XMLStreamException {
+        filterTo(new File(outputDir, "custom_map.omap"));
+    }
+
+    public void filterTo(File output) throws IOException, XMLStreamException {
+        File spool = File.createTempFile("custom_map", ".tmp", output.getAbsoluteFile().getParentFile());
+
+        try {
+            boolean written;
+            try (InputStream in = new BufferedInputStream(new FileInputStream(input));
+                 CountingOutputStream spoolOut = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(spool)))) {
+                XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+                this.out = spoolOut;
+                this.writer = OUTPUT_FACTORY.createXMLStreamWriter(spoolOut, "UTF-8");
+
+                PipelineMetrics.Timer filterTimer = metrics.start(PipelineMetrics.Stage.FILTER);
+                try (filterTimer) {
+                    written = copyMap(reader);
+                    writer.flush();
+                } finally {
+                    writer.close();
+                    reader.close();
+                }
+            }
+
+            if (written) {
+                PipelineMetrics.Timer saveTimer = metrics.start(PipelineMetrics.Stage.SAVE);
+                try (saveTimer) {
+                    applyPatches(spool, output);
+                }
+            }
+        } finally {
+            spool.delete();
+        }
+    }
+
+    private boolean copyMap(XMLStreamReader reader) throws XMLStreamException, IOException {
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n".getBytes(StandardCharsets.UTF_8));
+        writer.writeStartElement("map");
+        writer.writeDefaultNamespace("http://openorienteering.org/apps/mapper/xml/v2");
+        writer.writeAttribute("version", "9");
+
+        boolean georeferencingSeen = false;
+        boolean colorsWritten = false;
+        boolean symbolsWritten = false;
+        boolean objectsWritten = false;
+        boolean templatesWritten = false;
+
+        while (reader.hasNext()) {
+            if (reader.next() != XMLStreamConstants.START_ELEMENT) continue;
+
+            switch (reader.getLocalName()) {
+                case "georeferencing":
+                    if (georeferencingSeen) break;
+                    georeferencingSeen = true;
+                    newLine(1);
+                    copyElement(reader, 1);
+                    break;
+                case "symbols":
+                    if (symbolsWritten) break;
+                    if (!colorsWritten) colorsWritten = writeColors(georeferencingSeen);
+                    copySymbols(reader);
+                    symbolsWritten = true;
+                    break;
+                case "symbol":
+                    // Symbols outside <symbols> only contribute to the name lookup
+                    recordSymbol(reader);
+                    break;
+                case "parts":
+                    if (objectsWritten) break;
+                    if (!colorsWritten) colorsWritten = writeColors(georeferencingSeen);
+                    if (!symbolsWritten) symbolsWritten = writeEmptySymbols();
+                    copyParts(reader);
+                    objectsWritten = true;
+                    break;
+                case "objects":
+                    // Only reached for maps whose objects are not inside <parts>
+                    if (objectsWritten) break;
+                    if (!colorsWritten) colorsWritten = writeColors(georeferencingSeen);
+                    if (!symbolsWritten) symbolsWritten = writeEmptySymbols();
+                    copyObjects(reader);
+                    objectsWritten = true;
+                    break;
+                case "defaults":
+                    if (templatesWritten || !objectsWritten) break;
+                    writeTemplates(reader);
+                    templatesWritten = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (!objectsWritten) {
+            System.out.println("Warning: No 'objects' element found in the document");
+            return false;
+        }
+
+        if (!templatesWritten) writeTemplates(null);
+        writeView();
+
+        newLine(0);
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.writeCharacters("\n");
+        return true;
+    }
+
+    private boolean writeColors(boolean georeferencingSeen) throws XMLStreamException {
+        if (!georeferencingSeen) {
+            System.out.println("Warning: No georeferencing element found in the document");
+        }
+
+        newLine(1);
+        writeStart("colors", "count", String.valueOf(FilterObjects.COLOR_DATA.length));
+
+        for (String[] color : FilterObjects.COLOR_DATA) {
+            newLine(2);
+            writeStart("color", "priority", color[0], "name", color[1], "c", color[2], "m", color[3],
+                    "y", color[4], "k", color[5], "opacity", "1");
+
+            newLine(3);
+            writeStart("spotcolors");
+            newLine(4);
+            writeStart("namedcolor");
+            writer.writeCharacters(color[6]);
+            writer.writeEndElement();
+            newLine(3);
+            writer.writeEndElement();
+
+            newLine(3);
+            writeEmpty("cmyk", "method", "custom");
+            newLine(3);
+            writeEmpty("rgb", "method", "cmyk", "r", color[7], "g", color[8], "b", color[9]);
+
+            newLine(2);
+            writer.writeEndElement();
+        }
+
+        newLine(1);
+        writer.writeEndElement();
+        return true;
+    }
+
+    private void copySymbols(XMLStreamReader reader) throws XMLStreamException, IOException {
+        newLine(1);
+        writeStart("barrier", "required", "0.6.0", "version", "6");
+        newLine(2);
+        writer.writeStartElement("symbols");
+        long countOffset = writeCountPlaceholder();
+        writer.writeAttribute("id", "ISMTBOM");
+
+        int symbolCount = 0;
+        while (reader.hasNext()) {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (reader.getLocalName().equals("symbol")) {
+                    recordSymbol(reader);
+                    newLine(3);
+                    copyElement(reader, 3);
+                    symbolCount++;
+                } else {
+                    skipElement(reader);
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+        }
+
+        patch(countOffset, String.valueOf(symbolCount));
+        if (symbolCount > 0) newLine(2);
+        writer.writeEndElement();
+        newLine(1);
+        writer.writeEndElement();
+
+        for (String name : this.objects) {
+            Integer id = symbolMap.get(name.toLowerCase());
+            if (id != null && id >= 0) idsToFilter.set(id);
+        }
+    }
+
+    private boolean writeEmptySymbols() throws XMLStreamException {
+        newLine(1);
+        writeStart("barrier", "required", "0.6.0", "version", "6");
+        newLine(2);
+        writeEmpty("symbols", "count", "0", "id", "ISMTBOM");
+        newLine(1);
+        writer.writeEndElement();
+        return true;
+    }
+
+    private void recordSymbol(XMLStreamReader reader) {
+        String name = reader.getAttributeValue(null, "name");
+        String id = reader.getAttributeValue(null, "id");
+
+        if (name != null && id != null && !name.isEmpty() && !id.isEmpty()) {
+            try {
+                symbolMap.put(name.toLowerCase(), Integer.parseInt(id));
+            } catch (NumberFormatException e) {
+                // Skip symbols with non-integer IDs
+            }
+        }
+    }
+
+    private void copyObjects(XMLStreamReader reader) throws XMLStreamException, IOException {
+        newLine(1);
+        writeStart("parts", "count", "1", "current", "0");
+        newLine(2);
+        writeStart("part", "name", "default part");
+        newLine(3);
+        copyObjectList(reader);
+        newLine(2);
+        writer.writeEndElement();
+        newLine(1);
+        writer.writeEndElement();
+    }
+
+    /**
+     * Copies every part with its attributes and its unfiltered objects, in the same order.
+     */
+    private void copyParts(XMLStreamReader reader) throws XMLStreamException, IOException {
+        newLine(1);
+        writer.writeStartElement("parts");
+        long countOffset = writeAttributesWithCount(reader);
+
+        int partCount = 0;
+        while (reader.hasNext()) {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (!reader.getLocalName().equals("part")) {
+                    skipElement(reader);
+                    continue;
+                }
+
+                newLine(2);
+                writer.writeStartElement("part");
+                String[] attributes = sortedAttributes(reader);
+                for (int i = 0; i < attributes.length; i += 2) {
+                    writer.writeAttribute(attributes[i], attributes[i + 1]);
+                }
+                copyPart(reader);
+                newLine(2);
+                writer.writeEndElement();
+                partCount++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+        }
+
+        patch(countOffset, String.valueOf(partCount));
+        if (partCount > 0) newLine(1);
+        writer.writeEndElement();
+    }
+
+    private void copyPart(XMLStreamReader reader) throws XMLStreamException, IOException {
+        boolean objectsSeen = false;
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (objectsSeen || !reader.getLocalName().equals("objects")) {
+                    skipElement(reader);
+                    continue;
+                }
+                newLine(3);
+                copyObjectList(reader);
+                objectsSeen = true;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+        }
+
+        if (!objectsSeen) {
+            newLine(3);
+            writeEmpty("objects", "count", "0");
+        }
+    }
+
+    /**
+     * Writes the attributes of the current element in name order, a placeholder for count among them
+     * whatever the source's count was. Returns the offset of the placeholder.
+     */
+    private long writeAttributesWithCount(XMLStreamReader reader) throws XMLStreamException {
+        String[] attributes = sortedAttributes(reader);
+        long countOffset = -1;
+
+        for (int i = 0; i < attributes.length; i += 2) {
+            if (attributes[i].equals("count")) continue;
+            if (countOffset < 0 && attributes[i].compareTo("count") > 0) countOffset = writeCountPlaceholder();
+            writer.writeAttribute(attributes[i], attributes[i + 1]);
+        }
+        return countOffset < 0 ? writeCountPlaceholder() : countOffset;
+    }
+
+    private void copyObjectList(XMLStreamReader reader) throws XMLStreamException, IOException {
+        writer.writeStartElement("objects");
+        long countOffset = writeCountPlaceholder();
+
+        int objectCount = 0;
+        while (reader.hasNext()) {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String symbolAttr = reader.getAttributeValue(null, "symbol");
+                metrics.increment(PipelineMetrics.Counter.OBJECTS_SCANNED);
+
+                // Skip objects with filtered symbols or empty symbol attributes
+                if (symbolAttr == null || symbolAttr.isEmpty()) {
+                    skipElement(reader);
+                    continue;
+                }
+
+                try {
+                    int symbolId = Integer.parseInt(symbolAttr);
+                    if (symbolId >= 0 && idsToFilter.get(symbolId)) {
+                        this.objsDeleted++;
+                        skipElement(reader);
+                        continue;
+                    }
+                } catch (NumberFormatException e) {
+                    // Skip objects with non-integer symbol IDs
+                    skipElement(reader);
+                    continue;
+                }
+
+                newLine(4);
+                copyElement(reader, 4);
+                objectCount++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+        }
+
+        patch(countOffset, String.valueOf(objectCount));
+        if (objectCount > 0) newLine(3);
+        writer.writeEndElement();
+    }
+
+    private void writeTemplates(XMLStreamReader defaults) throws XMLStreamException {
+        newLine(1);
+        writeStart("templates", "count", "1", "first_front_template", "1");
+        newLine(2);
+        writeEmpty("template", "type", "OgrTemplate", "open", "true", "name", "map (1).osm",
+                "path", "C:/Users/38066/Downloads/map (1).osm",
+                "relpath", "../../../../../../Downloads/map (1).osm", "georef", "true");
+
+        if (defaults != null) {
+            newLine(2);
+            copyElement(defaults, 2);
+        }
+
+        newLine(1);
+        writer.writeEndElement();
+    }
+
+    private void writeView() throws XMLStreamException {
+        newLine(1);
+        writeStart("view");
+        newLine(2);
+        writeEmpty("grid", "color", "#646464", "display", "0", "alignment", "0", "additional_rotation", "0",
+                "unit", "1", "h_spacing", "500", "v_spacing", "500", "h_offset", "0", "v_offset", "0",
+                "snapping_enabled", "true");
+        newLine(2);
+        writeStart("map_view", "zoom", "1.41421", "position_x", "867", "position_y", "-10751");
+        newLine(3);
+        writeEmpty("map", "opacity", "1", "visible", "true");
+        newLine(3);
+        writeStart("templates", "count", "1");
+        newLine(4);
+        writeEmpty("ref", "template", "0", "opacity", "1");
+        newLine(3);
+        writer.writeEndElement();
+        newLine(2);
+        writer.writeEndElement();
+        newLine(1);
+        writer.writeEndElement();
+    }
+
+    /**
+     * Copies the element the reader is positioned on, including all of its content, to the output.
+     * Child elements are indented one level deeper than depth, whitespace between them is dropped and
+     * attributes are written in name order, matching the indenting DOM serializer.
+     */
+    private void copyElement(XMLStreamReader reader, int depth) throws XMLStreamException {
+        String name = reader.getLocalName();
+        String[] attributes = sortedAttributes(reader);
+
+        boolean started = false;
+        boolean elementChildren = false;
+        boolean textChildren = false;
+        String pendingWhitespace = null;
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    if (!started) {
+                        writeStart(name, attributes);
+                        started = true;
+                    }
+                    pendingWhitespace = null;
+                    if (!textChildren) newLine(depth + 1);
+                    elementChildren = true;
+                    copyElement(reader, depth + 1);
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    if (reader.isWhiteSpace() && !textChildren) {
+                        pendingWhitespace = pendingWhitespace == null ? reader.getText() : pendingWhitespace + reader.getText();
+                        break;
+                    }
+                    if (!started) {
+                        writeStart(name, attributes);
+                        started = true;
+                    }
+                    if (pendingWhitespace != null && !elementChildren) writer.writeCharacters(pendingWhitespace);
+                    pendingWhitespace = null;
+                    writer.writeCharacters(reader.getText());
+                    textChildren = true;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (!started) {
+                        if (pendingWhitespace == null) {
+                            writeEmpty(name, attributes);
+                            return;
+                        }
+                        writeStart(name, attributes);
+                        writer.writeCharacters(pendingWhitespace);
+                    } else if (elementChildren && !textChildren) {
+                        newLine(depth);
+                    }
+                    writer.writeEndElement();
+                    return;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT) depth--;
+        }
+    }
+
+    private static String[] sortedAttributes(XMLStreamReader reader) {
+        String[] attributes = new String[reader.getAttributeCount() * 2];
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            attributes[i * 2] = reader.getAttributeLocalName(i);
+            attributes[i * 2 + 1] = reader.getAttributeValue(i);
+        }
+        return sortPairs(attributes);
+    }
+
+    private static String[] sortPairs(String[] attributes) {
+        Integer[] order = new Integer[attributes.length / 2];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparing(i -> attributes[i * 2]));
+
+        String[] sorted = new String[attributes.length];
+        for (int i = 0; i < order.length; i++) {
+            sorted[i * 2] = attributes[order[i] * 2];
+            sorted[i * 2 + 1] = attributes[order[i] * 2 + 1];
+        }
+        return sorted;
+    }
+
+    private void writeStart(String name, String... attributes) throws XMLStreamException {
+        writer.writeStartElement(name);
+        writeAttributes(attributes);
+    }
+
+    private void writeEmpty(String name, String... attributes) throws XMLStreamException {
+        writer.writeEmptyElement(name);
+        writeAttributes(attributes);
+    }
+
+    private void writeAttributes(String[] attributes) throws XMLStreamException {
+        String[] sorted = sortPairs(attributes);
+        for (int i = 0; i < sorted.length; i += 2) {
+            writer.writeAttribute(sorted[i], sorted[i + 1]);
+        }
+    }
+
+    private void newLine(int depth) throws XMLStreamException {
+        if (!prettyPrint) return;
+        writer.writeCharacters("\n" + INDENT.repeat(depth));
+    }
+
+    /**
+     * Writes an empty count attribute and returns the output offset of its value.
+     */
+    private long writeCountPlaceholder() throws XMLStreamException {
+        writer.writeAttribute("count", "");
+        writer.flush();
+        return out.count - 1;
+    }
+
+    private void patch(long offset, String value) {
+        // Enclosing elements are patched after their children, so keep the list in offset order
+        int index = patchOffsets.size();
+        while (index > 0 && patchOffsets.get(index - 1) > offset) index--;
+        patchOffsets.add(index, offset);
+        patchValues.add(index, value);
+    }
+
+    private void applyPatches(File spool, File output) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(spool));
+             CountingOutputStream result = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(output)))) {
+            long position = 0;
+            byte[] buffer = new byte[64 * 1024];
+
+            for (int i = 0; i < patchOffsets.size(); i++) {
+                long offset = patchOffsets.get(i);
+                position += copy(in, result, buffer, offset - position);
+                result.write(patchValues.get(i).getBytes(StandardCharsets.UTF_8));
+            }
+
+            copy(in, result, buffer, Long.MAX_VALUE);
+            metrics.add(PipelineMetrics.Counter.BYTES_WRITTEN, result.count);
+        }
+    }
+
+    private static long copy(InputStream in, OutputStream out, byte[] buffer, long length) throws IOException {
+        long copied = 0;
+        while (copied < length) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, length - copied));
+            if (read < 0) break;
+            out.write(buffer, 0, read);
+            copied += read;
+        }
+        return copied;
+    }
+}
@@ -0,0 +1,208 @@
+import org.w3c.dom.*;
+import java.awt.*;
+import java.awt.geom.*;
+import java.util.*;
+import java.util.List;
+
+/**
+ * How each symbol of a map is drawn by TileRenderer, read from the symbol definitions and coloured with
+ * FilterObjects.COLOR_DATA, the colour table every result map carries.
+ *
+ * This is a preview, not Mapper's renderer:
+ * - areas are filled with their inner colour, without patterns;
+ * - lines are stroked in their main colour and width, dashed if the symbol is, without borders or mid
+ *   symbols;
+ * - point symbols draw their circle and their element glyphs;
+ * - text is drawn in its colour and font size at the anchor;
+ * - combined symbols draw each of their parts.
+ */
+public class SymbolStyles {
+    enum Kind {FILL, STROKE, CIRCLE, GLYPH, TEXT}
+
+    /**
+     * One thing drawn for an object, in one colour.
+     */
+    static class Style {
+        final Kind kind;
+        // Index into FilterObjects.COLOR_DATA, which is also the colour's priority: 0 is drawn on top
+        final int color;
+        // Stroke width, circle radius or font size, in map units
+        final float size;
+        // Ring width of a circle, 0 for a filled one; stroke width of a glyph, 0 for a filled one
+        final float ringWidth;
+        final float[] dashes;
+        // Glyph outline or centre line, relative to the point
+        final Shape glyph;
+
+        Style(Kind kind, int color, float size, float ringWidth, float[] dashes, Shape glyph) {
+            this.kind = kind;
+            this.color = color;
+            this.size = size;
+            this.ringWidth = ringWidth;
+            this.dashes = dashes;
+            this.glyph = glyph;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " " + color + " " + size + " " + ringWidth + " " + Arrays.toString(dashes)
+                    + (glyph == null ? "" : " " + glyph.getBounds2D());
+        }
+    }
+
+    private static final int MAX_DEPTH = 4;
+    private static final Color[] COLORS = new Color[FilterObjects.COLOR_DATA.length];
+
+    static {
+        for (int i = 0; i < COLORS.length; i++) {
+            String[] color = FilterObjects.COLOR_DATA[i];
+            COLORS[i] = new Color(Float.parseFloat(color[7]), Float.parseFloat(color[8]), Float.parseFloat(color[9]));
+        }
+    }
+
+    private final Map<Integer, List<Style>> stylesById = new HashMap<>();
+
+    public SymbolStyles(Document document) {
+        Map<Integer, Element> symbolsById = new HashMap<>();
+        NodeList symbols = document.getElementsByTagName("symbol");
+
+        for (int i = 0; i < symbols.getLength(); i++) {
+            Element symbol = (Element) symbols.item(i);
+            if (!symbol.getParentNode().getNodeName().equals("symbols")) continue;
+
+            try {
+                symbolsById.put(Integer.parseInt(symbol.getAttribute("id")), symbol);
+            } catch (NumberFormatException e) {
+                // Skip symbols with non-integer IDs
+            }
+        }
+
+        for (Map.Entry<Integer, Element> symbol : symbolsById.entrySet()) {
+            stylesById.put(symbol.getKey(), parse(symbol.getValue(), symbolsById, 0));
+        }
+    }
+
+    /**
+     * What to draw for objects of the symbol, empty for unknown symbols.
+     */
+    List<Style> styles(int symbolId) {
+        return stylesById.getOrDefault(symbolId, Collections.emptyList());
+    }
+
+    static Color color(int index) {
+        return COLORS[index];
+    }
+
+    private static List<Style> parse(Element symbol, Map<Integer, Element> symbolsById, int depth) {
+        List<Style> styles = new ArrayList<>();
+
+        switch (symbol.getAttribute("type")) {
+            case "1":
+                parsePoint(symbol, symbolsById, depth, styles);
+                break;
+            case "2":
+                Element line = firstElement(symbol, "line_symbol");
+                if (line == null) break;
+
+                float[] dashes = null;
+                if (line.getAttribute("dashed").equals("true")) {
+                    dashes = new float[]{(float) number(line, "dash_length"), (float) number(line, "break_length")};
+                    if (dashes[0] <= 0 || dashes[1] <= 0) dashes = null;
+                }
+                float width = (float) number(line, "line_width");
+                if (width > 0) add(styles, Kind.STROKE, (int) number(line, "color"), width, 0, dashes, null);
+                break;
+            case "4":
+                Element area = firstElement(symbol, "area_symbol");
+                if (area != null) add(styles, Kind.FILL, (int) number(area, "inner_color"), 0, 0, null, null);
+                break;
+            case "8":
+                Element font = firstElement(symbol, "font");
+                Element text = firstElement(symbol, "text");
+                if (font != null && text != null) {
+                    add(styles, Kind.TEXT, (int) number(text, "color"), (float) number(font, "size"), 0, null, null);
+                }
+                break;
+            case "16":
+                Element combined = firstElement(symbol, "combined_symbol");
+                if (combined == null || depth >= MAX_DEPTH) break;
+
+                for (Element part : MapObjects.childElements(combined, "part")) {
+                    Element partSymbol = null;
+                    if (part.hasAttribute("symbol")) {
+                        try {
+                            partSymbol = symbolsById.get(Integer.parseInt(part.getAttribute("symbol")));
+                        } catch (NumberFormatException e) {continue;}
+                    } else {
+                        partSymbol = MapObjects.childElement(part, "symbol");
+                    }
+                    if (partSymbol != null) styles.addAll(parse(partSymbol, symbolsById, depth + 1));
+                }
+                break;
+            default:
+                break;
+        }
+
+        return styles;
+    }
+
+    private static void parsePoint(Element symbol, Map<Integer, Element> symbolsById, int depth, List<Style> styles) {
+        Element point = firstElement(symbol, "point_symbol");
+        if (point == null) return;
+
+        float radius = (float) number(point, "inner_radius");
+        float outerWidth = (float) number(point, "outer_width");
+        if (radius > 0) add(styles, Kind.CIRCLE, (int) number(point, "inner_color"), radius, 0, null, null);
+        if (outerWidth > 0) add(styles, Kind.CIRCLE, (int) number(point, "outer_color"), radius + outerWidth / 2, outerWidth, null, null);
+        if (depth >= MAX_DEPTH) return;
+
+        // Each element is a symbol and an object placed relative to the point
+        for (Element element : MapObjects.childElements(point, "element")) {
+            Element elementSymbol = MapObjects.childElement(element, "symbol");
+            Element elementObject = MapObjects.childElement(element, "object");
+            if (elementSymbol == null || elementObject == null) continue;
+
+            GeometryCache geometry = new GeometryCache(MapObjects.of(List.of(elementObject)));
+            if (!geometry.hasGeometry(0)) continue;
+
+            for (Style style : parse(elementSymbol, symbolsById, depth + 1)) {
+                switch (style.kind) {
+                    case FILL:
+                        add(styles, Kind.GLYPH, style.color, 0, 0, null, geometry.path(0));
+                        break;
+                    case STROKE:
+                        add(styles, Kind.GLYPH, style.color, 0, style.size, style.dashes, geometry.centreLine(0));
+                        break;
+                    case CIRCLE:
+                        double x = geometry.x(0, 0), y = geometry.y(0, 0), r = style.size;
+                        Shape circle = new Ellipse2D.Double(x - r, y - r, 2 * r, 2 * r);
+                        add(styles, Kind.GLYPH, style.color, 0, style.ringWidth, null, circle);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+    }
+
+    private static void add(List<Style> styles, Kind kind, int color, float size, float ringWidth, float[] dashes, Shape glyph) {
+        if (color < 0 || color >= COLORS.length) return;
+        styles.add(new Style(kind, color, size, ringWidth, dashes, glyph));
+    }
+
+    private static Element firstElement(Element parent, String name) {
+        NodeList elements = parent.getElementsByTagName(name);
+        return elements.getLength() == 0 ? null : (Element) elements.item(0);
+    }
+
+    private static double number(Element element, String name) {
+        String value = element.getAttribute(name);
+        if (value.isEmpty()) return -1;
+
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
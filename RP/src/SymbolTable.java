@@ -0,0 +1,268 @@
+import org.w3c.dom.*;
+import java.util.*;
+
+/**
+ * Per-symbol data of one map in dense arrays indexed by the integer symbol id: type, overlap priority,
+ * small-object flag and drawn line width. Built once per symbol set; lookups in the filter and overlap
+ * loops are plain array reads.
+ *
+ * The table is immutable so it can be shared between runs on the same map. Which symbols a run filters
+ * out is a separate BitSet over the same ids, see select().
+ */
+public class SymbolTable {
+    // Symbol ids are indices into the map's symbol list; anything beyond this is treated as missing
+    private static final int MAX_SYMBOL_ID = 1 << 20;
+
+    private final Map<String, Integer> idsByName = new HashMap<>();
+    private final String[] names;
+    private final String[] codes;
+    private final int[] types;
+    private final int[] priorities;
+    private final int[] lineWidths;
+    private final BitSet small;
+    private final BitSet defined;
+
+    public SymbolTable(Document document) {
+        this.small = new BitSet();
+        this.defined = new BitSet();
+        Map<Integer, Element> symbolsById = new LinkedHashMap<>();
+        int maxId = -1;
+
+        // Only search the symbol definitions; getLength() on a document-wide list walks every object
+        NodeList symbolsNodes = document.getElementsByTagName("symbols");
+        NodeList symbols = symbolsNodes.getLength() > 0
+                ? ((Element) symbolsNodes.item(0)).getElementsByTagName("symbol")
+                : document.getElementsByTagName("symbol");
+        int symbolCount = symbols.getLength();
+        for (int i = 0; i < symbolCount; i++) {
+            Element symbol = (Element) symbols.item(i);
+            String idAttr = symbol.getAttribute("id");
+            if (idAttr.trim().isEmpty()) continue;
+
+            int id;
+            try {
+                id = Integer.parseInt(idAttr.trim());
+            } catch (NumberFormatException e) {continue;}
+
+            if (id < 0 || id >= MAX_SYMBOL_ID) {
+                System.out.println("Warning: Ignoring symbol with out of range id " + id);
+                continue;
+            }
+
+            symbolsById.put(id, symbol);
+            maxId = Math.max(maxId, id);
+
+            String name = symbol.getAttribute("name");
+            if (!name.isEmpty()) idsByName.put(name.toLowerCase(), id);
+        }
+
+        this.names = new String[maxId + 1];
+        this.codes = new String[maxId + 1];
+        this.types = new int[maxId + 1];
+        this.priorities = new int[maxId + 1];
+        this.lineWidths = new int[maxId + 1];
+
+        for (Map.Entry<Integer, Element> entry : symbolsById.entrySet()) {
+            int id = entry.getKey();
+            Element symbol = entry.getValue();
+
+            defined.set(id);
+            names[id] = symbol.getAttribute("name");
+            codes[id] = symbol.getAttribute("code");
+            types[id] = parseInt(symbol.getAttribute("type"));
+            priorities[id] = calculatePriority(symbol, symbol.getAttribute("name").toLowerCase());
+            lineWidths[id] = lineWidth(symbol, symbolsById, 0);
+            small.set(id, (id > 43 && id < 65) || (id > 0 && id < 19));
+        }
+    }
+
+    private SymbolTable(SymbolTable table, int[] priorities, BitSet small) {
+        this.idsByName.putAll(table.idsByName);
+        this.names = table.names;
+        this.codes = table.codes;
+        this.types = table.types;
+        this.lineWidths = table.lineWidths;
+        this.defined = table.defined;
+        this.priorities = priorities;
+        this.small = small;
+    }
+
+    /**
+     * A copy of this table with other overlap priorities and small-object flags, as set by filter rules.
+     * Both are indexed by symbol id like the rest of the table.
+     */
+    SymbolTable withPriorities(int[] priorities, BitSet small) {
+        if (priorities.length != this.priorities.length) {
+            throw new IllegalArgumentException("expected " + this.priorities.length + " priorities, got " + priorities.length);
+        }
+        return new SymbolTable(this, priorities, small);
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int calculatePriority(Element symbol, String name) {
+        int priority = 50;
+
+        if (name.contains("building") || name.contains("tower")) {
+            priority = 90;
+        } else if (name.contains("water") || name.contains("lake") || name.contains("pond")) {
+            priority = 80;
+        } else if (name.contains("path") || name.contains("road") || name.contains("track") || name.contains("area")) {
+            priority = 85;
+        } else if (name.contains("forest") || name.contains("vegetation") || name.equals("vineyard")) {
+            priority = 30;
+        } else if (name.contains("open") || name.contains("field")) {
+            priority = 20;
+        } else if (name.contains("contour") || name.contains("slope")) {
+            priority = 70;
+        } else if (name.contains("index")) {
+            priority = 75;
+        }
+
+        if (symbol.getElementsByTagName("point_symbol").getLength() > 0 ||
+                symbol.getElementsByTagName("point").getLength() > 0) {
+            priority += 5;
+        }
+
+        if (symbol.getElementsByTagName("line_symbol").getLength() > 0 ||
+                symbol.getElementsByTagName("line").getLength() > 0) {
+            priority += 3;
+        }
+
+        priority = Math.max(0, Math.min(priority, 100));
+
+        return priority;
+    }
+
+    /**
+     * Full drawn width of a line symbol including its borders. Combined symbols count as lines when all
+     * of their parts are lines. Area, point and text symbols have no width.
+     */
+    private static int lineWidth(Element symbol, Map<Integer, Element> symbolsById, int depth) {
+        String type = symbol.getAttribute("type");
+
+        if (type.equals("2")) {
+            NodeList lineSymbols = symbol.getElementsByTagName("line_symbol");
+            if (lineSymbols.getLength() == 0) return 0;
+
+            Element line = (Element) lineSymbols.item(0);
+            double halfWidth = parseDouble(line.getAttribute("line_width")) / 2;
+            double extent = halfWidth;
+
+            NodeList borders = line.getElementsByTagName("border");
+            for (int i = 0; i < borders.getLength(); i++) {
+                Element border = (Element) borders.item(i);
+                extent = Math.max(extent, halfWidth + parseDouble(border.getAttribute("shift"))
+                        + parseDouble(border.getAttribute("width")) / 2);
+            }
+
+            return (int) Math.round(extent * 2);
+        }
+
+        if (type.equals("16") && depth < 4) {
+            int width = 0;
+            NodeList parts = symbol.getElementsByTagName("part");
+
+            for (int i = 0; i < parts.getLength(); i++) {
+                Element part = (Element) parts.item(i);
+                if (part.getParentNode().getParentNode() != symbol) continue;
+
+                Element partSymbol = null;
+                if (part.hasAttribute("symbol")) {
+                    try {
+                        partSymbol = symbolsById.get(Integer.parseInt(part.getAttribute("symbol")));
+                    } catch (NumberFormatException e) {continue;}
+                } else {
+                    NodeList nested = part.getElementsByTagName("symbol");
+                    if (nested.getLength() > 0) partSymbol = (Element) nested.item(0);
+                }
+
+                int partWidth = partSymbol == null ? 0 : lineWidth(partSymbol, symbolsById, depth + 1);
+                if (partWidth <= 0) return 0;
+                width = Math.max(width, partWidth);
+            }
+
+            return width;
+        }
+
+        return 0;
+    }
+
+    private static double parseDouble(String value) {
+        if (value == null || value.isEmpty()) return 0;
+
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Ids of the named symbols (case-insensitive) as a bitset; names the map does not define are skipped.
+     */
+    public BitSet select(Collection<String> names) {
+        BitSet selected = new BitSet(types.length);
+
+        for (String name : names) {
+            Integer id = idsByName.get(name.toLowerCase());
+            if (id != null) selected.set(id);
+        }
+
+        return selected;
+    }
+
+    public Integer idOf(String name) {
+        return idsByName.get(name.toLowerCase());
+    }
+
+    /**
+     * Name of the symbol as written in the map, or null for ids the map does not define.
+     */
+    public String name(int id) {
+        return id >= 0 && id < names.length ? names[id] : null;
+    }
+
+    /**
+     * ISOM code such as "501.1", empty if the symbol has none; null for ids the map does not define.
+     */
+    public String code(int id) {
+        return id >= 0 && id < codes.length ? codes[id] : null;
+    }
+
+    public boolean contains(int id) {
+        return id >= 0 && defined.get(id);
+    }
+
+    public int type(int id) {
+        return id >= 0 && id < types.length ? types[id] : 0;
+    }
+
+    /**
+     * Overlap priority; the object with the lower priority is hidden. Unknown symbols get 0.
+     */
+    public int priority(int id) {
+        return id >= 0 && id < priorities.length ? priorities[id] : 0;
+    }
+
+    public int lineWidth(int id) {
+        return id >= 0 && id < lineWidths.length ? lineWidths[id] : 0;
+    }
+
+    /**
+     * Small objects (point-like symbols) are never hidden by overlap resolution.
+     */
+    public boolean isSmall(int id) {
+        return id >= 0 && small.get(id);
+    }
+
+    public int maxId() {
+        return types.length - 1;
+    }
+}
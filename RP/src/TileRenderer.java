@@ -0,0 +1,428 @@
+import org.w3c.dom.*;
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.geom.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Headless preview of a map as PNG tiles, drawn with java.awt.Graphics2D in the styles of SymbolStyles.
+ *
+ * Zoom level z splits the map's extent into 2^z by 2^z tiles of TILE_SIZE pixels, written to
+ * directory/z/x/y.png; tiles without objects are not written. Tiles are rendered in parallel.
+ *
+ * Rendered tiles are kept in a MapCache keyed by a hash of everything drawn on them: the tile's position
+ * and scale plus the symbol, styles, coordinates and text of each object it shows. After a re-filter, only
+ * tiles whose objects changed get a new key and are rendered again; the others are copied from the cache.
+ * The extent is snapped to a power-of-two grid so that removing objects rarely moves the tiles, and can be
+ * given explicitly to render a filtered map on exactly the tiles of its source.
+ */
+public class TileRenderer {
+    public static final int TILE_SIZE = 256;
+    // Lines narrower than this many pixels are widened so that they stay visible when zoomed out
+    private static final float MIN_LINE_PIXELS = 0.75f;
+    private static final long DEFAULT_CACHE_BYTES = 256L * 1024 * 1024;
+    // Part of every tile key; bump when the drawing changes
+    private static final String RENDER_VERSION = "tiles 1";
+
+    private final GeometryCache geometry;
+    private final SymbolStyles styles;
+    private final MapCache cache;
+    private final Rectangle2D extent;
+    private final SpatialIndex index;
+    private final Shape[] outlines;
+    private final Shape[] centreLines;
+    private final double[] rotations;
+    private final String[] texts;
+    private final byte[][] objectKeys;
+    public int tilesRendered;
+    public int tilesCached;
+
+    /**
+     * @param cache cache for rendered tiles, or null to render every tile
+     */
+    public TileRenderer(Document document, MapCache cache) {
+        this(document, cache, null);
+    }
+
+    /**
+     * @param extent area covered by zoom level 0, or null for the grid-snapped extent of the objects
+     */
+    public TileRenderer(Document document, MapCache cache, Rectangle2D extent) {
+        this.geometry = new GeometryCache(MapObjects.of(document), new SymbolTable(document));
+        this.styles = new SymbolStyles(document);
+        this.cache = cache;
+
+        int count = geometry.size();
+        this.rotations = new double[count];
+        this.texts = new String[count];
+        for (int i = 0; i < count; i++) {
+            Element object = geometry.element(i);
+            try {
+                rotations[i] = object.hasAttribute("rotation") ? Double.parseDouble(object.getAttribute("rotation")) : 0;
+            } catch (NumberFormatException e) {
+                rotations[i] = 0;
+            }
+            Element text = MapObjects.childElement(object, "text");
+            texts[i] = text == null ? "" : text.getTextContent();
+        }
+
+        // Shapes and keys are built once and then only read, by all tile threads
+        this.outlines = new Shape[count];
+        this.centreLines = new Shape[count];
+        this.objectKeys = new byte[count][];
+        IntStream.range(0, count).parallel().forEach(i -> {
+            if (geometry.hasGeometry(i) && geometry.type(i) == 1) {
+                outlines[i] = geometry.path(i);
+                centreLines[i] = geometry.centreLine(i);
+            }
+            objectKeys[i] = objectKey(i);
+        });
+
+        double[] minX = new double[count], minY = new double[count], maxX = new double[count], maxY = new double[count];
+        for (int i = 0; i < count; i++) {
+            Rectangle2D bounds = bounds(i);
+            minX[i] = bounds.getMinX();
+            minY[i] = bounds.getMinY();
+            maxX[i] = bounds.getMaxX();
+            maxY[i] = bounds.getMaxY();
+        }
+        this.index = new SpatialIndex(minX, minY, maxX, maxY);
+        this.extent = extent != null ? extent : snappedExtent(minX, minY, maxX, maxY);
+    }
+
+    /**
+     * Cache in omap-tiles under the system temp directory, bounded to 256 MB.
+     */
+    public static MapCache defaultCache() {
+        return new MapCache(new File(System.getProperty("java.io.tmpdir"), "omap-tiles"), DEFAULT_CACHE_BYTES);
+    }
+
+    public Rectangle2D getExtent() {
+        return extent;
+    }
+
+    /**
+     * Area an object may draw on: its envelope grown by its line width, or by the size of its point
+     * symbol or text.
+     */
+    private Rectangle2D bounds(int object) {
+        if (!geometry.hasGeometry(object)) return new Rectangle2D.Double(Double.MAX_VALUE, Double.MAX_VALUE, 0, 0);
+
+        double margin = geometry.lineWidth(object) / 2.0;
+        for (SymbolStyles.Style style : styles.styles(geometry.symbolId(object))) {
+            if (style.kind == SymbolStyles.Kind.GLYPH) {
+                Rectangle2D glyph = style.glyph.getBounds2D();
+                margin = Math.max(margin, Math.max(Math.max(-glyph.getMinX(), glyph.getMaxX()), Math.max(-glyph.getMinY(), glyph.getMaxY())) + style.ringWidth);
+            } else if (style.kind == SymbolStyles.Kind.TEXT) {
+                // Text runs right of its anchor; a generous guess at its length
+                margin = Math.max(margin, style.size * Math.max(1, texts[object].length()));
+            } else {
+                margin = Math.max(margin, style.size + style.ringWidth);
+            }
+        }
+
+        return new Rectangle2D.Double(geometry.minX(object) - margin, geometry.minY(object) - margin,
+                (double) geometry.maxX(object) - geometry.minX(object) + 2 * margin,
+                (double) geometry.maxY(object) - geometry.minY(object) + 2 * margin);
+    }
+
+    /**
+     * The smallest square of a power-of-two side, aligned to a multiple of half its side, holding all
+     * objects. Half sides, as whole ones never fit objects on both sides of a multiple of every size.
+     */
+    private static Rectangle2D snappedExtent(double[] minX, double[] minY, double[] maxX, double[] maxY) {
+        double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE, x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+        for (int i = 0; i < minX.length; i++) {
+            if (minX[i] == Double.MAX_VALUE) continue;
+            x0 = Math.min(x0, minX[i]);
+            y0 = Math.min(y0, minY[i]);
+            x1 = Math.max(x1, maxX[i]);
+            y1 = Math.max(y1, maxY[i]);
+        }
+        if (x0 > x1) return new Rectangle2D.Double(0, 0, TILE_SIZE, TILE_SIZE);
+
+        double side = TILE_SIZE;
+        while (true) {
+            double half = side / 2;
+            double originX = Math.floor(x0 / half) * half, originY = Math.floor(y0 / half) * half;
+            if (originX + side >= x1 && originY + side >= y1) return new Rectangle2D.Double(originX, originY, side, side);
+            side *= 2;
+        }
+    }
+
+    /**
+     * Renders zoom levels 0 .. zoomLevels - 1 into directory.
+     */
+    public void renderTiles(File directory, int zoomLevels) throws IOException {
+        List<int[]> tiles = new ArrayList<>();
+        for (int zoom = 0; zoom < zoomLevels; zoom++) {
+            for (int x = 0; x < 1 << zoom; x++) {
+                for (int y = 0; y < 1 << zoom; y++) tiles.add(new int[]{zoom, x, y});
+            }
+        }
+
+        // 0 empty, 1 rendered, 2 from the cache
+        int[] outcomes = new int[tiles.size()];
+        try {
+            IntStream.range(0, tiles.size()).parallel().forEach(t -> {
+                int[] tile = tiles.get(t);
+                try {
+                    outcomes[t] = renderTile(directory, tile[0], tile[1], tile[2]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        tilesRendered = 0;
+        tilesCached = 0;
+        for (int outcome : outcomes) {
+            if (outcome == 1) tilesRendered++;
+            if (outcome == 2) tilesCached++;
+        }
+    }
+
+    private int renderTile(File directory, int zoom, int x, int y) throws IOException {
+        double side = extent.getWidth() / (1 << zoom);
+        Rectangle2D area = new Rectangle2D.Double(extent.getX() + x * side, extent.getY() + y * side, side, side);
+
+        List<Integer> objects = objectsIn(area);
+        if (objects.isEmpty()) return 0;
+
+        String key = tileKey(area, objects);
+        byte[] png = cache == null ? null : cache.load(key, in -> in.readAllBytes());
+        int outcome = 2;
+        if (png == null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ImageIO.write(render(area, objects, TILE_SIZE, TILE_SIZE), "png", bytes);
+            png = bytes.toByteArray();
+            if (cache != null) {
+                byte[] rendered = png;
+                cache.store(key, out -> out.write(rendered));
+            }
+            outcome = 1;
+        }
+
+        File file = new File(directory, zoom + File.separator + x + File.separator + y + ".png");
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), png);
+        return outcome;
+    }
+
+    /**
+     * The whole extent as one image, width pixels square.
+     */
+    public BufferedImage renderImage(int width) {
+        return render(extent, objectsIn(extent), width, width);
+    }
+
+    private List<Integer> objectsIn(Rectangle2D area) {
+        List<Integer> objects = new ArrayList<>();
+        index.query(area.getMinX(), area.getMinY(), area.getMaxX(), area.getMaxY(), objects::add);
+        Collections.sort(objects);
+        return objects;
+    }
+
+    private BufferedImage render(Rectangle2D area, List<Integer> objects, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+
+        double scale = width / area.getWidth();
+        g.scale(scale, height / area.getHeight());
+        g.translate(-area.getX(), -area.getY());
+        float minWidth = (float) (MIN_LINE_PIXELS / scale);
+
+        // Colours with a higher index are drawn first, so colour 0 ends up on top as in Mapper
+        List<long[]> operations = new ArrayList<>();
+        for (int object : objects) {
+            List<SymbolStyles.Style> objectStyles = styles.styles(geometry.symbolId(object));
+            for (int s = 0; s < objectStyles.size(); s++) {
+                operations.add(new long[]{objectStyles.get(s).color, object, s});
+            }
+        }
+        operations.sort(Comparator.<long[]>comparingLong(o -> -o[0]).thenComparingLong(o -> o[1]).thenComparingLong(o -> o[2]));
+
+        for (long[] operation : operations) {
+            int object = (int) operation[1];
+            draw(g, styles.styles(geometry.symbolId(object)).get((int) operation[2]), object, minWidth);
+        }
+
+        g.dispose();
+        return image;
+    }
+
+    private void draw(Graphics2D g, SymbolStyles.Style style, int object, float minWidth) {
+        int type = geometry.type(object);
+        g.setColor(SymbolStyles.color(style.color));
+
+        switch (style.kind) {
+            case FILL:
+                if (outlines[object] != null) g.fill(outlines[object]);
+                break;
+            case STROKE:
+                if (centreLines[object] != null) {
+                    g.setStroke(stroke(Math.max(style.size, minWidth), style.dashes));
+                    g.draw(centreLines[object]);
+                }
+                break;
+            case CIRCLE:
+                if (type != 0) break;
+                double r = style.size;
+                Shape circle = new Ellipse2D.Double(geometry.x(object, 0) - r, geometry.y(object, 0) - r, 2 * r, 2 * r);
+                if (style.ringWidth > 0) {
+                    g.setStroke(stroke(Math.max(style.ringWidth, minWidth), null));
+                    g.draw(circle);
+                } else {
+                    g.fill(circle);
+                }
+                break;
+            case GLYPH:
+                if (type != 0) break;
+                AffineTransform transform = AffineTransform.getTranslateInstance(geometry.x(object, 0), geometry.y(object, 0));
+                transform.rotate(-rotations[object]);
+                Shape glyph = transform.createTransformedShape(style.glyph);
+                if (style.ringWidth > 0) {
+                    g.setStroke(stroke(Math.max(style.ringWidth, minWidth), style.dashes));
+                    g.draw(glyph);
+                } else {
+                    g.fill(glyph);
+                }
+                break;
+            case TEXT:
+                if (type != 4 || texts[object].isEmpty() || style.size <= 0) break;
+                AffineTransform saved = g.getTransform();
+                g.translate(geometry.x(object, 0), geometry.y(object, 0));
+                g.rotate(-rotations[object]);
+                g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 1).deriveFont(style.size));
+                g.drawString(texts[object], 0, 0);
+                g.setTransform(saved);
+                break;
+        }
+    }
+
+    private static BasicStroke stroke(float width, float[] dashes) {
+        return dashes == null
+                ? new BasicStroke(width, BasicStroke.CAP_BUTT, BasicStroke.JOIN_ROUND)
+                : new BasicStroke(width, BasicStroke.CAP_BUTT, BasicStroke.JOIN_ROUND, 10, dashes, 0);
+    }
+
+    /**
+     * Hash of what the object looks like: its symbol's styles, type, rotation, text and points.
+     */
+    private byte[] objectKey(int object) {
+        MessageDigest digest = sha256();
+        digest.update(styles.styles(geometry.symbolId(object)).toString().getBytes(StandardCharsets.UTF_8));
+        digest.update((geometry.type(object) + " " + rotations[object] + " " + texts[object] + "\n").getBytes(StandardCharsets.UTF_8));
+
+        int vertices = geometry.hasGeometry(object) ? geometry.vertexCount(object) : 0;
+        byte[] points = new byte[vertices * 9];
+        for (int v = 0; v < vertices; v++) {
+            putInt(points, v * 9, geometry.x(object, v));
+            putInt(points, v * 9 + 4, geometry.y(object, v));
+            points[v * 9 + 8] = (byte) geometry.flags(object, v);
+        }
+        digest.update(points);
+        return digest.digest();
+    }
+
+    private String tileKey(Rectangle2D area, List<Integer> objects) {
+        MessageDigest digest = sha256();
+        digest.update((RENDER_VERSION + " " + TILE_SIZE + " " + area).getBytes(StandardCharsets.UTF_8));
+        for (int object : objects) digest.update(objectKeys[object]);
+
+        StringBuilder hex = new StringBuilder("tile-");
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >> 24);
+        bytes[offset + 1] = (byte) (value >> 16);
+        bytes[offset + 2] = (byte) (value >> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Before and after of the same extent in one image: unchanged pixels faded, pixels that became
+     * background (removed objects) in red and other changed pixels in blue.
+     */
+    public static BufferedImage diff(BufferedImage before, BufferedImage after) {
+        int width = Math.min(before.getWidth(), after.getWidth());
+        int height = Math.min(before.getHeight(), after.getHeight());
+        BufferedImage diff = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int oldPixel = before.getRGB(x, y) & 0xFFFFFF, newPixel = after.getRGB(x, y) & 0xFFFFFF;
+                if (oldPixel == newPixel) {
+                    diff.setRGB(x, y, fade(newPixel));
+                } else {
+                    diff.setRGB(x, y, newPixel == 0xFFFFFF ? 0xE00000 : 0x0050E0);
+                }
+            }
+        }
+        return diff;
+    }
+
+    // Three quarters of the way to white
+    private static int fade(int rgb) {
+        int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+        return ((r + 3 * 255) / 4) << 16 | ((g + 3 * 255) / 4) << 8 | (b + 3 * 255) / 4;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+
+        if (args.length >= 3 && args[0].equals("--diff")) {
+            int width = args.length > 4 ? Integer.parseInt(args[4]) : 2048;
+            TileRenderer before = new TileRenderer(FilterObjects.parseMap(new File(args[1])), null);
+            TileRenderer after = new TileRenderer(FilterObjects.parseMap(new File(args[2])), null, before.getExtent());
+            File output = new File(args.length > 3 ? args[3] : "diff.png");
+
+            ImageIO.write(diff(before.renderImage(width), after.renderImage(width)), "png", output);
+            System.out.println("Diff saved to " + output.getPath());
+            return;
+        }
+
+        if (args.length < 2) {
+            System.out.println("Usage: TileRenderer <map.omap> <directory> [zoom levels] [--extent-of <source.omap>]");
+            System.out.println("       TileRenderer --diff <before.omap> <after.omap> [diff.png] [width]");
+            return;
+        }
+
+        int zoomLevels = args.length > 2 && !args[2].startsWith("--") ? Integer.parseInt(args[2]) : 4;
+        Rectangle2D extent = null;
+        int extentOption = Arrays.asList(args).indexOf("--extent-of");
+        if (extentOption >= 0 && extentOption + 1 < args.length) {
+            extent = new TileRenderer(FilterObjects.parseMap(new File(args[extentOption + 1])), null).getExtent();
+        }
+
+        TileRenderer renderer = new TileRenderer(FilterObjects.parseMap(new File(args[0])), defaultCache(), extent);
+        renderer.renderTiles(new File(args[1]), zoomLevels);
+        System.out.println("Rendered " + renderer.tilesRendered + " tiles, " + renderer.tilesCached + " from the cache; saved to " + args[1]);
+    }
+}
@@ -0,0 +1,88 @@
+import org.junit.jupiter.api.Test;
+import java.awt.BasicStroke;
+import java.awt.geom.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Cross-checks OverlayHandler.getAreaSize against the share of a sample grid over the shape's bounds that
+ * Area.contains puts inside the shape.
+ */
+class OverlayAreaTest {
+    private static final int GRID = 2000;
+    // The grid estimate is off by a fraction of the cells along the outline, well below this
+    private static final double SAMPLE_TOLERANCE = 0.005;
+
+    @Test
+    void polygonWithHoles() {
+        Area area = new Area(new Rectangle2D.Double(0, 0, 10_000, 8_000));
+        area.subtract(new Area(new Rectangle2D.Double(1_000, 1_000, 3_000, 2_000)));
+        area.subtract(new Area(polygon(6_000, 2_000, 9_000, 2_000, 7_500, 6_000)));
+
+        assertEquals(80_000_000 - 6_000_000 - 6_000_000, OverlayHandler.getAreaSize(area), 1e-6);
+        assertMatchesSamples(area);
+    }
+
+    @Test
+    void curvedShape() {
+        Area ellipse = new Area(new Ellipse2D.Double(0, 0, 6_000, 4_000));
+        // Flattening to within AREA_FLATNESS loses far less than 0.1% of an ellipse this size
+        assertEquals(Math.PI * 3_000 * 2_000, OverlayHandler.getAreaSize(ellipse), Math.PI * 3_000 * 2_000 * 0.001);
+
+        Path2D lobe = new Path2D.Double();
+        lobe.moveTo(5_000, 2_000);
+        lobe.curveTo(9_000, -2_000, 11_000, 6_000, 5_500, 3_500);
+        lobe.quadTo(4_000, 3_000, 5_000, 2_000);
+        lobe.closePath();
+
+        Area area = new Area(ellipse);
+        area.add(new Area(lobe));
+        area.subtract(new Area(new Ellipse2D.Double(1_500, 1_000, 2_000, 1_500)));
+        assertMatchesSamples(area);
+    }
+
+    @Test
+    void bufferedLine() {
+        Path2D line = new Path2D.Double();
+        line.moveTo(0, 0);
+        line.lineTo(6_000, 0);
+        line.lineTo(6_000, 4_000);
+        line.lineTo(2_000, -1_000);
+
+        // The stroke GeometryCache builds for objects with a line symbol
+        BasicStroke stroke = new BasicStroke(400, BasicStroke.CAP_BUTT, BasicStroke.JOIN_ROUND);
+        Area area = new Area(stroke.createStrokedShape(line));
+        assertMatchesSamples(area);
+
+        // The overlap findOverlaps measures between the line and an area object with a hole
+        Area polygon = new Area(new Rectangle2D.Double(1_000, -2_000, 4_000, 5_000));
+        polygon.subtract(new Area(new Rectangle2D.Double(2_000, -500, 1_000, 1_000)));
+        area.intersect(polygon);
+        assertMatchesSamples(area);
+    }
+
+    private static void assertMatchesSamples(Area area) {
+        Rectangle2D bounds = area.getBounds2D();
+        double cellWidth = bounds.getWidth() / GRID;
+        double cellHeight = bounds.getHeight() / GRID;
+
+        int inside = 0;
+        for (int row = 0; row < GRID; row++) {
+            double y = bounds.getMinY() + (row + 0.5) * cellHeight;
+            for (int column = 0; column < GRID; column++) {
+                if (area.contains(bounds.getMinX() + (column + 0.5) * cellWidth, y)) inside++;
+            }
+        }
+
+        double sampled = inside * cellWidth * cellHeight;
+        assertEquals(sampled, OverlayHandler.getAreaSize(area), sampled * SAMPLE_TOLERANCE);
+    }
+
+    private static Path2D polygon(double... coordinates) {
+        Path2D path = new Path2D.Double();
+        path.moveTo(coordinates[0], coordinates[1]);
+        for (int i = 2; i < coordinates.length; i += 2) path.lineTo(coordinates[i], coordinates[i + 1]);
+        path.closePath();
+        return path;
+    }
+}